@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+
+/**
+ * Measures looking up {@link MessageAction}s by message type, for a mix of registered
+ * and unregistered types (in the same package, since the lookup is package-private).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageActionsBenchmark {
+  private static final int[] REGISTERED_TYPES = {1, 2, 4, 5, 6, 7, 15, 2001, 2011, 2031,
+      3008};
+  private static final int NUM_TYPES = 1024;
+
+  private final MessageActions actions = new MessageActions();
+  private final int[] types = new int[NUM_TYPES];
+
+  @Setup
+  public void setup() {
+    final MessageAction<Reference, IwanaContext<?>> action =
+        new MessageAction<Reference, IwanaContext<?>>(Reference.PARSER) {
+          @Override
+          protected void onMessage(Reference message, ArchiveInfo ai, MessageInfo mi,
+              IwanaContext<?> context) {
+          }
+        };
+    actions.setAction(REGISTERED_TYPES, action);
+
+    // roughly one in eight messages has a registered action
+    final Random random = new Random(42);
+    for (int i = 0; i < NUM_TYPES; i++) {
+      types[i] =
+          random.nextInt(8) == 0 ? REGISTERED_TYPES[random.nextInt(REGISTERED_TYPES.length)]
+              : 200 + random.nextInt(12000);
+    }
+    actions.getAction(0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_TYPES)
+  public void getAction(final Blackhole bh) {
+    for (int type : types) {
+      bh.consume(actions.getAction(type));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_TYPES)
+  public void hasAction(final Blackhole bh) {
+    for (int type : types) {
+      bh.consume(actions.hasAction(type));
+    }
+  }
+}
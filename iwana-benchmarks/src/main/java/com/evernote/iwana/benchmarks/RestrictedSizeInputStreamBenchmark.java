@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.evernote.iwana.RestrictedSizeInputStream;
+
+/**
+ * Measures reading a stream in message-sized slices via a
+ * {@link RestrictedSizeInputStream}: each slice is read to its end, in reads of half
+ * the slice length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RestrictedSizeInputStreamBenchmark {
+  private static final int DATA_LENGTH = 4 * 1024 * 1024;
+
+  @Param({"64", "4096"})
+  int sliceLength;
+
+  private final byte[] data = new byte[DATA_LENGTH];
+  private byte[] buffer;
+
+  @Setup
+  public void setup() {
+    buffer = new byte[Math.max(1, sliceLength / 2)];
+  }
+
+  @Benchmark
+  public long readSlices() throws IOException {
+    final RestrictedSizeInputStream in =
+        new RestrictedSizeInputStream(new ByteArrayInputStream(data));
+    long total = 0;
+    for (int off = 0; off < DATA_LENGTH; off += sliceLength) {
+      in.setNumBytesReadable(sliceLength);
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        total += read;
+      }
+      in.skipRest();
+    }
+    return total;
+  }
+}
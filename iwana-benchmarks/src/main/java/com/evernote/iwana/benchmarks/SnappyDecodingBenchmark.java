@@ -0,0 +1,93 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.evernote.iwana.IWorkGenerator;
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+import com.evernote.iwana.SnappyNoCRCFramedDecoder;
+import com.evernote.iwana.SnappyNoCRCFramedInputStream;
+
+/**
+ * Measures decoding a synthetic, Snappy-framed {@code .iwa} file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SnappyDecodingBenchmark {
+  @Param({"100", "1000"})
+  int objects;
+
+  private byte[] iwa;
+  private final byte[] buffer = new byte[8192];
+  private SnappyNoCRCFramedDecoder reusedDecoder;
+
+  @Setup
+  public void setup() throws IOException {
+    iwa = new IWorkGenerator().setObjects(objects).generateIndexFiles(DocumentType.PAGES)
+        .get("Index/Document.iwa");
+    reusedDecoder = new SnappyNoCRCFramedDecoder(new ByteArrayInputStream(iwa));
+  }
+
+  @Benchmark
+  public long inputStream() throws IOException {
+    long total = 0;
+    try (InputStream in = new SnappyNoCRCFramedInputStream(new ByteArrayInputStream(iwa))) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long decoder() throws IOException {
+    final SnappyNoCRCFramedDecoder decoder =
+        new SnappyNoCRCFramedDecoder(new ByteArrayInputStream(iwa));
+    long total = 0;
+    while (decoder.fill()) {
+      total += decoder.remaining();
+      decoder.consume(decoder.remaining());
+    }
+    decoder.release();
+    return total;
+  }
+
+  @Benchmark
+  public long reusedDecoder() throws IOException {
+    reusedDecoder.reset(new ByteArrayInputStream(iwa));
+    long total = 0;
+    while (reusedDecoder.fill()) {
+      total += reusedDecoder.remaining();
+      reusedDecoder.consume(reusedDecoder.remaining());
+    }
+    return total;
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.evernote.iwana.IWorkGenerator;
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+
+/**
+ * Measures full text extraction runs on synthetic Keynote, Pages and Numbers documents,
+ * read either from a file or from a stream (in the same package, since
+ * {@link ExtractTextIWAParser} is package-private).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractTextBenchmark {
+  @Param({"KEYNOTE", "PAGES", "NUMBERS"})
+  DocumentType type;
+
+  @Param({"20", "200"})
+  int objects;
+
+  @Param({"10"})
+  int fillerMessages;
+
+  @Param({"false", "true"})
+  boolean streaming;
+
+  @Param({"false", "true"})
+  boolean offHeap;
+
+  @Param({"false", "true"})
+  boolean lazyObjects;
+
+  private final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+  private byte[] document;
+  private File file;
+
+  private static final class CountingCallback extends ExtractTextCallback {
+    long chars = 0;
+
+    @Override
+    public void onTextBlock(String text, TextAttributes attrs) {
+      chars += text.length();
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    parser.setStreaming(streaming);
+    parser.setObjectStoreFactory(offHeap ? ObjectStore.offHeap() : ObjectStore.HEAP);
+    parser.setLazyObjects(lazyObjects);
+    document =
+        new IWorkGenerator().setObjects(objects).setFillerMessages(fillerMessages)
+            .generate(type, "Benchmark");
+    file = File.createTempFile("iwana-benchmark", ".zip");
+    file.deleteOnExit();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(document);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public long parseFile() throws IOException {
+    final CountingCallback callback = new CountingCallback();
+    parser.parse(file, callback);
+    return callback.chars;
+  }
+
+  @Benchmark
+  public long parseStream() throws IOException {
+    final CountingCallback callback = new CountingCallback();
+    parser.parse(new ByteArrayInputStream(document), callback);
+    return callback.chars;
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.Arrays;
+
+/**
+ * The identifiers of the archives of one {@code .iwa} file, in the order they were read.
+ *
+ * @see IwanaContext#onArchivesRead(long[])
+ */
+final class ArchiveIdentifiers {
+  private long[] identifiers = new long[64];
+  private int size = 0;
+
+  void add(final long identifier) {
+    if (size == identifiers.length) {
+      identifiers = Arrays.copyOf(identifiers, size * 2);
+    }
+    identifiers[size++] = identifier;
+  }
+
+  long[] toArray() {
+    return Arrays.copyOf(identifiers, size);
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A {@link ZipInputStream} that charges the data of skipped entries to a
+ * {@link ParseBudget}, so that an entry that inflates to an excessive size cannot
+ * occupy the parser indefinitely. The data of entries that are read is charged where it
+ * is decoded.
+ */
+final class BudgetedZipInputStream extends ZipInputStream {
+  private final ParseBudget budget;
+  private boolean skipping = false;
+
+  BudgetedZipInputStream(final InputStream in, final ParseBudget budget) {
+    super(in);
+    this.budget = budget;
+  }
+
+  /**
+   * Creates a {@link ZipInputStream} that charges skipped data to the given budget, if
+   * any.
+   *
+   * @param in The zip data.
+   * @param budget The budget, or {@code null}.
+   * @return The stream.
+   */
+  static ZipInputStream newInstance(final InputStream in, final ParseBudget budget) {
+    return (budget == null) ? new ZipInputStream(in) : new BudgetedZipInputStream(in,
+        budget);
+  }
+
+  @Override
+  public void closeEntry() throws IOException {
+    // skips the rest of the entry by reading it
+    skipping = true;
+    try {
+      super.closeEntry();
+    } finally {
+      skipping = false;
+    }
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final int n = super.read(b, off, len);
+    if (skipping && n > 0) {
+      budget.addBytes(n);
+    }
+    return n;
+  }
+}
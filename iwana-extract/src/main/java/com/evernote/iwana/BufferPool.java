@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+/**
+ * A per-thread cache of large byte arrays, so that the buffers of the Snappy decoders are
+ * reused across {@code .iwa} files and documents, instead of being allocated anew (and,
+ * being large, often directly in the old generation) for every file.
+ *
+ * Each thread keeps up to {@value #MAX_BUFFERS} arrays of {@value #MIN_BUFFER_LENGTH} to
+ * {@value #MAX_BUFFER_LENGTH} bytes. Arrays are handed out exclusively, and their
+ * contents are undefined. An array may be released on a different thread than the one it
+ * was acquired on, but must not be accessed in any way after being released.
+ */
+final class BufferPool {
+  static final int MAX_BUFFERS = 4;
+  static final int MIN_BUFFER_LENGTH = 8 * 1024;
+  static final int MAX_BUFFER_LENGTH = 4 * 1024 * 1024;
+
+  private static final ThreadLocal<byte[][]> BUFFERS = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[MAX_BUFFERS][];
+    }
+  };
+
+  private BufferPool() {
+  }
+
+  /**
+   * Returns the smallest cached array of at least the given length, or a new array of
+   * exactly that length.
+   *
+   * @param minLength The minimum length.
+   * @return The array.
+   */
+  static byte[] acquire(final int minLength) {
+    final byte[][] buffers = BUFFERS.get();
+    int best = -1;
+    for (int i = 0; i < buffers.length; i++) {
+      final byte[] buffer = buffers[i];
+      if (buffer != null && buffer.length >= minLength
+          && (best == -1 || buffer.length < buffers[best].length)) {
+        best = i;
+      }
+    }
+    if (best == -1) {
+      return new byte[minLength];
+    }
+    final byte[] buffer = buffers[best];
+    buffers[best] = null;
+    return buffer;
+  }
+
+  /**
+   * Returns the given array if it has at least the given length, or otherwise releases it
+   * and acquires a longer one. The contents of the array are not preserved.
+   *
+   * @param buffer The array, or {@code null}.
+   * @param minLength The minimum length.
+   * @return The array.
+   */
+  static byte[] ensureLength(final byte[] buffer, final int minLength) {
+    if (buffer != null && buffer.length >= minLength) {
+      return buffer;
+    }
+    release(buffer);
+    return acquire(minLength);
+  }
+
+  /**
+   * Returns the given array to the current thread's cache, replacing the smallest cached
+   * array if the cache is full. Arrays outside the range of cached lengths are dropped.
+   *
+   * @param buffer The array, or {@code null}.
+   */
+  static void release(final byte[] buffer) {
+    if (buffer == null || buffer.length < MIN_BUFFER_LENGTH
+        || buffer.length > MAX_BUFFER_LENGTH) {
+      return;
+    }
+    final byte[][] buffers = BUFFERS.get();
+    int smallest = -1;
+    for (int i = 0; i < buffers.length; i++) {
+      if (buffers[i] == null) {
+        buffers[i] = buffer;
+        return;
+      }
+      if (smallest == -1 || buffers[i].length < buffers[smallest].length) {
+        smallest = i;
+      }
+    }
+    if (buffers[smallest].length < buffer.length) {
+      buffers[smallest] = buffer;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads from a {@link ByteBuffer}, without copying the
+ * buffer's contents.
+ *
+ * The stream operates on a duplicate of the given buffer; the original buffer's position
+ * and limit are not modified.
+ */
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer buf;
+
+  /**
+   * Creates a new {@link ByteBufferInputStream} that reads the remaining bytes of the
+   * given {@link ByteBuffer}.
+   *
+   * @param buf The buffer to read from.
+   */
+  public ByteBufferInputStream(final ByteBuffer buf) {
+    this.buf = buf.duplicate();
+  }
+
+  /**
+   * Returns a view of the bytes that have not been read yet.
+   *
+   * @return The remaining bytes, as a read-only {@link ByteBuffer}.
+   */
+  public ByteBuffer remainingBuffer() {
+    return buf.slice().asReadOnlyBuffer();
+  }
+
+  @Override
+  public int read() {
+    if (!buf.hasRemaining()) {
+      return -1;
+    }
+    return buf.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    int remaining = buf.remaining();
+    if (remaining == 0) {
+      return -1;
+    }
+    if (len > remaining) {
+      len = remaining;
+    }
+    buf.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0) {
+      return 0;
+    }
+    int skip = (int) Math.min(n, buf.remaining());
+    buf.position(buf.position() + skip);
+    return skip;
+  }
+
+  @Override
+  public int available() {
+    return buf.remaining();
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of a .zip file (or of a stored .zip file within one) that is read via
+ * positional {@link FileChannel} reads, rather than being memory-mapped like a
+ * {@link MappedZipFile}.
+ *
+ * Only the central directory is read up front, so this is suitable for inspecting a few
+ * small parts of a file (such as when estimating a {@link DocumentCost}). Reads do not
+ * change the channel's position.
+ */
+final class ChannelZipFile {
+  /**
+   * The largest central directory that is read into memory.
+   */
+  private static final int MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+
+  private final FileChannel fc;
+  private final long base;
+  private final long length;
+  private final List<ZipEntry> entries;
+
+  private ChannelZipFile(final FileChannel fc, final long base, final long length,
+      final List<ZipEntry> entries) {
+    this.fc = fc;
+    this.base = base;
+    this.length = length;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Reads the central directory of the given {@link FileChannel}. The channel must remain
+   * open while the returned {@link ChannelZipFile} is used.
+   *
+   * @param fc The channel.
+   * @return The {@link ChannelZipFile}.
+   * @throws ZipException if the file cannot be read via its central directory (ZIP64,
+   *           corrupt, etc.)
+   * @throws IOException on I/O error.
+   */
+  static ChannelZipFile open(final FileChannel fc) throws IOException {
+    return open(fc, 0, fc.size());
+  }
+
+  private static ChannelZipFile open(final FileChannel fc, final long base,
+      final long length) throws IOException {
+    final int tailLength = (int) Math.min(length,
+        MappedZipFile.END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+    final long tailOffset = length - tailLength;
+    final ByteBuffer tail = read(fc, base + tailOffset, tailLength);
+    final int eocd = MappedZipFile.findEndOfCentralDirectory(tail);
+    final MappedZipFile.CentralDirectory cd =
+        MappedZipFile.CentralDirectory.read(tail, eocd, tailOffset + eocd);
+    if (cd.size > MAX_CENTRAL_DIRECTORY_SIZE) {
+      throw new ZipException("Central directory too large: " + cd.size);
+    }
+    return new ChannelZipFile(fc, base, length,
+        MappedZipFile.readEntries(read(fc, base + cd.offset, (int) cd.size), cd));
+  }
+
+  /**
+   * Reads the given number of bytes at the given position of the channel.
+   *
+   * @return A little-endian buffer holding the bytes.
+   */
+  private static ByteBuffer read(final FileChannel fc, final long position, final int n)
+      throws IOException {
+    final ByteBuffer buf = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining()) {
+      if (fc.read(buf, position + buf.position()) == -1) {
+        throw new ZipException("Unexpected end of file");
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Returns all entries, in the order listed in the central directory.
+   *
+   * @return The entries.
+   */
+  List<ZipEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the offset of the given entry's data, relative to the start of this .zip
+   * file, reading its local header if necessary.
+   */
+  private long getDataOffset(final ZipEntry entry) throws IOException {
+    final MappedZipFile.MappedEntry me = (MappedZipFile.MappedEntry) entry;
+    if (me.dataOffset < 0) {
+      final long lho = me.localHeaderOffset;
+      if (lho + MappedZipFile.LOCAL_HEADER_SIZE > length) {
+        throw new ZipException("Invalid local header for entry " + me.getName());
+      }
+      me.dataOffset = lho + MappedZipFile.localHeaderLength(
+          read(fc, base + lho, MappedZipFile.LOCAL_HEADER_SIZE), 0, me);
+    }
+    if (me.dataOffset + me.getCompressedSize() > length) {
+      throw new ZipException("Entry data exceeds archive bounds: " + me.getName());
+    }
+    return me.dataOffset;
+  }
+
+  /**
+   * Returns an {@link InputStream} that reads the data of the given
+   * {@link ZipEntry#STORED} entry. Skipping is free.
+   *
+   * @param entry The entry, obtained from {@link #getEntries()}.
+   * @return The stream.
+   * @throws ZipException if the entry is not stored, or its local header is invalid.
+   * @throws IOException on I/O error.
+   */
+  InputStream getStoredInputStream(final ZipEntry entry) throws IOException {
+    checkStored(entry);
+    return new RegionInputStream(fc, base + getDataOffset(entry), entry.getSize());
+  }
+
+  /**
+   * Reads the central directory of the .zip file held in the given
+   * {@link ZipEntry#STORED} entry.
+   *
+   * @param entry The entry, obtained from {@link #getEntries()}.
+   * @return The {@link ChannelZipFile}.
+   * @throws ZipException if the entry is not stored, or its data cannot be read via its
+   *           central directory.
+   * @throws IOException on I/O error.
+   */
+  ChannelZipFile openStored(final ZipEntry entry) throws IOException {
+    checkStored(entry);
+    return open(fc, base + getDataOffset(entry), entry.getSize());
+  }
+
+  private static void checkStored(final ZipEntry entry) throws ZipException {
+    if (entry.getMethod() != ZipEntry.STORED) {
+      throw new ZipException("Entry is not stored: " + entry.getName());
+    }
+  }
+
+  /**
+   * Reads a region of a {@link FileChannel}, without changing the channel's position.
+   */
+  private static final class RegionInputStream extends InputStream {
+    private final FileChannel fc;
+    private long position;
+    private final long end;
+
+    RegionInputStream(final FileChannel fc, final long position, final long length) {
+      this.fc = fc;
+      this.position = position;
+      this.end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      final int n = fc.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)),
+          position);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+/**
+ * Reports the decompression of the Snappy chunks of one {@code .iwa} file to a
+ * {@link ParseListener}. Instances are immutable, and may be used from any thread.
+ */
+final class ChunkTrace {
+  private final ParseListener listener;
+  private final String documentName;
+  private final String iwaName;
+
+  ChunkTrace(final ParseListener listener, final String documentName,
+      final String iwaName) {
+    this.listener = listener;
+    this.documentName = documentName;
+    this.iwaName = iwaName;
+  }
+
+  /**
+   * Called before a chunk is decompressed.
+   */
+  void begin() {
+    listener.onBeginSnappyChunk();
+  }
+
+  /**
+   * Called after a chunk has been decompressed, on the same thread as {@link #begin()}.
+   *
+   * @param compressedLength The length of the chunk's compressed data.
+   * @param uncompressedLength The length of the decompressed data.
+   */
+  void end(final int compressedLength, final int uncompressedLength) {
+    listener.onEndSnappyChunk(documentName, iwaName, compressedLength,
+        uncompressedLength);
+  }
+}
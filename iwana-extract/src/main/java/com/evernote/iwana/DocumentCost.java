@@ -0,0 +1,228 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * The cost of parsing an iWork'13 document, estimated up front without decoding it.
+ *
+ * The estimate is based on the document's {@code .iwa} index entries, as recorded in the
+ * zip central directories (of the document itself, and of its {@code Index.zip}, if any).
+ * Media files and previews are not counted, since the parser never reads them.
+ *
+ * Two figures are provided: the size of the Snappy-compressed index data (which is cheap
+ * to determine, and proportional to the parsing time), and the size of the decoded index
+ * data (which is what the parser keeps in memory, and is determined by walking the Snappy
+ * chunk headers of stored entries).
+ *
+ * Only the central directories and chunk headers are read, using positional reads; the
+ * file is not memory-mapped.
+ */
+public final class DocumentCost {
+  /**
+   * A document of unknown cost.
+   */
+  public static final DocumentCost UNKNOWN = new DocumentCost(-1, -1);
+
+  /**
+   * The assumed ratio of decoded to compressed index data, for entries whose chunk headers
+   * cannot be accessed directly.
+   */
+  static final int ASSUMED_COMPRESSION_RATIO = 3;
+
+  private final long indexBytes;
+  private final long uncompressedIndexBytes;
+
+  /**
+   * Creates a new {@link DocumentCost}.
+   *
+   * @param indexBytes The size of the compressed index data, or {@code -1} if unknown.
+   * @param uncompressedIndexBytes The size of the decoded index data, or {@code -1} if
+   *          unknown.
+   */
+  public DocumentCost(final long indexBytes, final long uncompressedIndexBytes) {
+    this.indexBytes = indexBytes;
+    this.uncompressedIndexBytes = uncompressedIndexBytes;
+  }
+
+  /**
+   * Returns the size of the compressed index data, in bytes, or {@code -1} if unknown.
+   */
+  public long getIndexBytes() {
+    return indexBytes;
+  }
+
+  /**
+   * Returns the size of the decoded index data, in bytes, or {@code -1} if unknown.
+   */
+  public long getUncompressedIndexBytes() {
+    return uncompressedIndexBytes;
+  }
+
+  public boolean isKnown() {
+    return indexBytes >= 0;
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentCost[index=" + indexBytes + ", uncompressed=" + uncompressedIndexBytes
+        + "]";
+  }
+
+  /**
+   * Estimates the cost of parsing the given iWork'13 file (or bundle directory).
+   *
+   * If the file cannot be read via its central directory (for example, a ZIP64 archive),
+   * the estimate is based on the size of the file instead.
+   *
+   * @param iworkFile The file.
+   * @return The estimated cost.
+   * @throws IOException on I/O error.
+   */
+  public static DocumentCost estimate(final File iworkFile) throws IOException {
+    final Sum sum = new Sum();
+
+    if (iworkFile.isDirectory()) {
+      final File indexZip = new File(iworkFile, "Index.zip");
+      if (!indexZip.isFile()) {
+        throw new FileNotFoundException("Could not find Index.zip: " + indexZip);
+      }
+      try (FileInputStream in = new FileInputStream(indexZip)) {
+        final ChannelZipFile zip = open(in.getChannel());
+        if (zip == null) {
+          sum.addUnknown(indexZip.length());
+        } else {
+          sum.addIndexEntries(zip, "");
+        }
+      }
+      return sum.toCost();
+    }
+
+    try (FileInputStream in = new FileInputStream(iworkFile)) {
+      final ChannelZipFile zip = open(in.getChannel());
+      if (zip == null) {
+        sum.addUnknown(iworkFile.length());
+        return sum.toCost();
+      }
+
+      for (ZipEntry entry : zip.getEntries()) {
+        final String name = entry.getName();
+        if (!entry.isDirectory() && name.endsWith("/Index.zip")
+            && name.indexOf('/') == name.length() - "/Index.zip".length()) {
+          if (entry.getMethod() == ZipEntry.STORED) {
+            try {
+              sum.addIndexEntries(zip.openStored(entry), "");
+              return sum.toCost();
+            } catch (ZipException e) {
+              // fall through
+            }
+          }
+          sum.addUnknown(entry.getSize());
+          return sum.toCost();
+        }
+      }
+
+      // Index data embedded in single file
+      sum.addIndexEntries(zip, "Index/");
+      return sum.toCost();
+    }
+  }
+
+  /**
+   * Reads the central directory of the given file via positional reads. The file is not
+   * memory-mapped, since only small parts of it are read.
+   *
+   * @return The {@link ChannelZipFile}, or {@code null} if the central directory cannot
+   *         be read.
+   */
+  private static ChannelZipFile open(final FileChannel fc) throws IOException {
+    try {
+      return ChannelZipFile.open(fc);
+    } catch (ZipException e) {
+      return null;
+    }
+  }
+
+  private static final class Sum {
+    long indexBytes = 0;
+    long uncompressedIndexBytes = 0;
+
+    void addUnknown(final long size) {
+      indexBytes += size;
+      uncompressedIndexBytes += size * ASSUMED_COMPRESSION_RATIO;
+    }
+
+    void addIndexEntries(final ChannelZipFile zip, final String prefix)
+        throws IOException {
+      for (ZipEntry entry : zip.getEntries()) {
+        final String name = entry.getName();
+        if (!entry.isDirectory() && name.startsWith(prefix) && name.endsWith(".iwa")) {
+          indexBytes += entry.getSize();
+          if (entry.getMethod() == ZipEntry.STORED) {
+            uncompressedIndexBytes += uncompressedLength(zip, entry);
+          } else {
+            uncompressedIndexBytes += entry.getSize() * ASSUMED_COMPRESSION_RATIO;
+          }
+        }
+      }
+    }
+
+    DocumentCost toCost() {
+      return new DocumentCost(indexBytes, uncompressedIndexBytes);
+    }
+  }
+
+  /**
+   * Determines the decoded length of a Snappy-framed, stored entry by reading the
+   * uncompressed length that precedes each compressed chunk. Chunk data is skipped.
+   */
+  private static long uncompressedLength(final ChannelZipFile zip, final ZipEntry entry)
+      throws IOException {
+    final byte[] lengthBytes = new byte[5];
+    long total = 0;
+    try (InputStream in = zip.getStoredInputStream(entry)) {
+      final SnappyChunkReader reader = new SnappyChunkReader(in);
+      int type;
+      while ((type = reader.nextDataChunkHeader()) != -1) {
+        final int len = reader.getChunkLength();
+        if (type == SnappyChunkReader.TYPE_UNCOMPRESSED) {
+          reader.skipChunkData(len);
+          total += len;
+        } else {
+          final int n = Math.min(len, lengthBytes.length);
+          reader.readChunkData(lengthBytes, 0, n);
+          reader.skipChunkData(len - n);
+          total += SnappyChunkReader.checkUncompressedLength(len,
+              Snappy.getUncompressedLength(lengthBytes, 0));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // malformed data; this is reported by the parser
+      return entry.getSize() * ASSUMED_COMPRESSION_RATIO;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Memoizes the messages read from {@code .iwa} files, so that files that are unchanged
+ * between two versions of a document, or that are shared by many documents (such as the
+ * archives of a common theme), are not decoded again.
+ *
+ * Each file is identified by the SHA-256 digest of its contents and its size, and by the
+ * {@link MessageActions} that it was read with, so its (Snappy-compressed) data is read
+ * in full before the lookup, but not decompressed. For regular files, the raw payloads
+ * of the messages that had an action are kept, and the file's name is part of its
+ * identity; upon a hit, the payloads are dispatched to the same actions in their
+ * original order, without decompressing the file or parsing its archive headers again.
+ *
+ * Shared files (by default, theme, master slide and stylesheet archives) are identified
+ * by their contents only, and their messages are kept in parsed form, which is immutable.
+ * Upon a hit, the very same message instances are handed to the actions of every
+ * document, so these files are neither decoded nor parsed again.
+ *
+ * Files that contain invalid messages are not memoized. The memo is bounded by the
+ * approximate size of all kept messages, and evicts the least recently used files
+ * first. Instances are thread-safe, and are meant to be shared by all
+ * {@link IwanaParser}s in a process.
+ *
+ * @see IwanaParser#setIWAMemo(IWAMemo)
+ */
+public final class IWAMemo {
+  /**
+   * The default pattern for the names of shared files: theme, master slide and stylesheet
+   * archives.
+   */
+  public static final Pattern DEFAULT_SHARED_FILES = Pattern
+      .compile("(?:^|/)(?:Theme|MasterSlide|[^/]*Stylesheet)[^/]*\\.iwa$");
+
+  private static final int RECORD_OVERHEAD = 64;
+
+  private final long maxBytes;
+  private final Pattern sharedFiles;
+  private final boolean otherFiles;
+  private final LinkedHashMap<Key, Messages> files = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a new, empty {@link IWAMemo} for all files, sharing the files that match
+   * {@link #DEFAULT_SHARED_FILES}.
+   *
+   * @param maxBytes The approximate maximum size of all memoized messages, in bytes.
+   */
+  public IWAMemo(final long maxBytes) {
+    this(maxBytes, DEFAULT_SHARED_FILES, true);
+  }
+
+  /**
+   * Creates a new, empty {@link IWAMemo}.
+   *
+   * @param maxBytes The approximate maximum size of all memoized messages, in bytes.
+   * @param sharedFiles The pattern for the names of shared files (see above), or
+   *          {@code null}.
+   * @param otherFiles Whether to memoize files that are not shared.
+   */
+  public IWAMemo(final long maxBytes, final Pattern sharedFiles,
+      final boolean otherFiles) {
+    this.maxBytes = maxBytes;
+    this.sharedFiles = sharedFiles;
+    this.otherFiles = otherFiles;
+  }
+
+  /**
+   * Returns the number of {@code .iwa} files that were served from this memo.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of memoizable {@code .iwa} files that had to be decoded.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the approximate size of all memoized messages, in bytes.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Removes all memoized files.
+   */
+  public synchronized void clear() {
+    files.clear();
+    bytes = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "IWAMemo[hits=" + getHitCount() + ", misses=" + getMissCount() + ", bytes="
+        + getBytes() + "]";
+  }
+
+  /**
+   * Checks whether the given {@code .iwa} file is to be memoized at all.
+   *
+   * @param name The name of the file.
+   * @return {@code true} if the file is to be memoized.
+   */
+  boolean accepts(final String name) {
+    return otherFiles || isShared(name);
+  }
+
+  private boolean isShared(final String name) {
+    return sharedFiles != null && sharedFiles.matcher(name).find();
+  }
+
+  /**
+   * Returns the key for the given {@code .iwa} file, which must be
+   * {@link #accepts(String) accepted}.
+   *
+   * @param name The name of the file.
+   * @param data The file's contents.
+   * @param actions The actions that the file is read with.
+   * @return The key.
+   */
+  Key keyFor(final String name, final byte[] data, final MessageActions actions) {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+    return new Key(isShared(name) ? null : name, md.digest(data), data.length, actions);
+  }
+
+  /**
+   * Returns the memoized messages for the given file, counting a hit or a miss.
+   *
+   * @param key The key.
+   * @return The messages, or {@code null} if the file has not been memoized.
+   */
+  Messages get(final Key key) {
+    final Messages messages;
+    synchronized (this) {
+      messages = files.get(key);
+    }
+    (messages == null ? misses : hits).incrementAndGet();
+    return messages;
+  }
+
+  synchronized void put(final Key key, final Messages messages) {
+    if (messages.size > maxBytes) {
+      return;
+    }
+    final Messages old = files.put(key, messages);
+    if (old != null) {
+      bytes -= old.size;
+    }
+    bytes += messages.size;
+
+    final Iterator<Messages> it = files.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().size;
+      it.remove();
+    }
+  }
+
+  /**
+   * Identifies an {@code .iwa} file. The {@link MessageActions} are compared by identity.
+   */
+  static final class Key {
+    private final String name;
+    private final byte[] digest;
+    private final long size;
+    private final MessageActions actions;
+
+    /**
+     * @param name The name of the file, or {@code null} for a shared file.
+     * @param digest The SHA-256 digest of the file's contents.
+     */
+    Key(final String name, final byte[] digest, final long size,
+        final MessageActions actions) {
+      this.name = name;
+      this.digest = digest;
+      this.size = size;
+      this.actions = actions;
+    }
+
+    boolean isShared() {
+      return name == null;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((name == null ? 0 : name.hashCode()) * 31 + Arrays.hashCode(digest)) * 31
+          + (int) size;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return size == other.size && actions == other.actions
+          && Arrays.equals(digest, other.digest)
+          && (name == null ? other.name == null : name.equals(other.name));
+    }
+  }
+
+  /**
+   * The memoized messages of one {@code .iwa} file.
+   */
+  static final class Messages {
+    private final ArchiveInfo[] archiveInfos;
+    private final MessageInfo[] messageInfos;
+
+    /**
+     * The raw payloads, or {@code null} for a shared file.
+     */
+    private final byte[][] payloads;
+
+    /**
+     * The actions and shared, parsed payloads of a shared file, or {@code null}.
+     */
+    private final MessageAction<?, ?>[] sharedActions;
+    private final Object[] sharedPayloads;
+
+    /**
+     * The identifiers of all archives in the file.
+     */
+    private final long[] archiveIdentifiers;
+
+    final long size;
+
+    private Messages(final Recorder recorder) {
+      final int n = recorder.messageInfos.size();
+      this.archiveInfos = recorder.archiveInfos.toArray(new ArchiveInfo[n]);
+      this.messageInfos = recorder.messageInfos.toArray(new MessageInfo[n]);
+      this.archiveIdentifiers = recorder.archives.toArray();
+      long sz = RECORD_OVERHEAD + 8L * archiveIdentifiers.length;
+      if (recorder.shared) {
+        this.payloads = null;
+        this.sharedActions = recorder.actions.toArray(new MessageAction<?, ?>[n]);
+        this.sharedPayloads = recorder.payloads.toArray();
+        for (Object payload : sharedPayloads) {
+          // parsed messages take up more space than their serialized form
+          sz += RECORD_OVERHEAD
+              + (payload instanceof Message ? 2L * ((Message) payload).getSerializedSize()
+                  : 0);
+        }
+      } else {
+        this.payloads = recorder.payloads.toArray(new byte[n][]);
+        this.sharedActions = null;
+        this.sharedPayloads = null;
+        for (byte[] payload : payloads) {
+          sz += RECORD_OVERHEAD + payload.length;
+        }
+      }
+      this.size = sz;
+    }
+
+    /**
+     * Dispatches the messages to the given actions, as if the file had been read again.
+     */
+    @SuppressWarnings("unchecked")
+    void replay(final MessageActions actions, final IwanaContext<?> context)
+        throws IOException {
+      if (payloads == null) {
+        for (int i = 0; i < sharedPayloads.length; i++) {
+          final MessageAction<Message, IwanaContext<?>> action =
+              (MessageAction<Message, IwanaContext<?>>) sharedActions[i];
+          action.dispatch(action.fromShared(sharedPayloads[i]), archiveInfos[i],
+              messageInfos[i], context);
+        }
+      } else {
+        for (int i = 0; i < payloads.length; i++) {
+          final CodedInputStream in = CodedInputStream.newInstance(payloads[i]);
+          in.pushLimit(payloads[i].length);
+          actions.onMessage(in, archiveInfos[i], messageInfos[i], context);
+        }
+      }
+      if (context.isTrackingArchives()) {
+        context.onArchivesRead(archiveIdentifiers);
+      }
+    }
+
+    /**
+     * Returns the number of memoized messages.
+     */
+    int getMessageCount() {
+      return messageInfos.length;
+    }
+
+    /**
+     * Counts the memoized messages in the given profile.
+     */
+    void countMessages(final ParseProfile profile) {
+      for (MessageInfo mi : messageInfos) {
+        profile.countMessage(mi.getType());
+        profile.countSeenMessage(mi.getType());
+      }
+    }
+  }
+
+  /**
+   * Records the messages of one {@code .iwa} file while it is being read.
+   */
+  static final class Recorder {
+    private final Key key;
+    private final boolean shared;
+    private final List<ArchiveInfo> archiveInfos = new ArrayList<>();
+    private final List<MessageInfo> messageInfos = new ArrayList<>();
+    private final List<MessageAction<?, ?>> actions = new ArrayList<>();
+    private final List<Object> payloads = new ArrayList<>();
+    private final ArchiveIdentifiers archives = new ArchiveIdentifiers();
+    private boolean valid = true;
+
+    /**
+     * @param key The key of the file.
+     */
+    Recorder(final Key key) {
+      this.key = key;
+      this.shared = key.isShared();
+    }
+
+    /**
+     * Returns the key of the file.
+     */
+    Key getKey() {
+      return key;
+    }
+
+    /**
+     * Reads a message with the given action, and records it.
+     *
+     * @param in The {@link CodedInputStream}, limited to the payload of the message.
+     * @return The value returned by {@link MessageAction#read(CodedInputStream)}.
+     * @throws IOException
+     */
+    Object read(CodedInputStream in, final ArchiveInfo ai, final MessageInfo mi,
+        final MessageAction<?, ?> action) throws IOException {
+      if (!shared) {
+        final byte[] raw = in.readRawBytes(in.getBytesUntilLimit());
+        add(ai, mi, action, raw);
+        in = CodedInputStream.newInstance(raw);
+        in.pushLimit(raw.length);
+        return action.read(in);
+      }
+
+      final Object payload = action.read(in);
+      try {
+        add(ai, mi, action, action.toShared(payload));
+      } catch (InvalidProtocolBufferException e) {
+        // reported when the message is accessed
+        invalidate();
+      }
+      return payload;
+    }
+
+    /**
+     * Records an archive of the file, whether or not it has any messages to be read.
+     */
+    void addArchive(final long identifier) {
+      archives.add(identifier);
+    }
+
+    private void add(final ArchiveInfo ai, final MessageInfo mi,
+        final MessageAction<?, ?> action, final Object payload) {
+      archiveInfos.add(ai);
+      messageInfos.add(mi);
+      actions.add(action);
+      payloads.add(payload);
+    }
+
+    /**
+     * Marks the file as not memoizable, e.g. because it contains invalid messages.
+     */
+    void invalidate() {
+      valid = false;
+    }
+
+    /**
+     * Returns the recorded messages, or {@code null} if the file is not memoizable.
+     */
+    Messages toMessages() {
+      return valid ? new Messages(this) : null;
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Reads the archives and messages of a single {@code .iwa} file.
+ *
+ * The file is decompressed into the window of a {@link SnappyNoCRCFramedDecoder}, and a
+ * single {@link CodedInputStream} is used to read from that window; archive and message
+ * boundaries are handled with {@link CodedInputStream#pushLimit(int)} and
+ * {@link CodedInputStream#popLimit(int)}, and unread message data is skipped via
+ * {@link CodedInputStream#skipRawBytes(int)}. Messages that are not accepted by the
+ * {@link MessageSink} are skipped in bulk, without being parsed; where possible, without
+ * even being decompressed.
+ *
+ * Since an array-backed {@link CodedInputStream} cannot be extended, a new one is created
+ * whenever the window needs to be refilled. The window is filled with at least
+ * {@value #MIN_WINDOW_FILL} bytes at a time, so most {@code .iwa} files are read with one
+ * {@link CodedInputStream} in total.
+ */
+final class IWAReader {
+  private static final int MIN_WINDOW_FILL = 1024 * 1024;
+
+  private final SnappyNoCRCFramedDecoder decoder;
+  private final ParseProfile profile;
+  private ParseBudget budget = null;
+
+  private CodedInputStream cis = null;
+  private byte[] cisArray = null;
+  private int cisLimit = 0;
+  private int cisGeneration = 0;
+
+  /**
+   * Receives the messages read by {@link IWAReader#read(MessageSink)}.
+   */
+  abstract static class MessageSink {
+    /**
+     * Checks whether the given message should be passed to
+     * {@link #onMessage(CodedInputStream, ArchiveInfo, MessageInfo)}. Messages that are
+     * not accepted are skipped without being parsed.
+     * 
+     * @param mi The {@link MessageInfo} that describes the message.
+     * @return {@code true} if the message should be read.
+     */
+    abstract boolean accept(MessageInfo mi);
+
+    /**
+     * Called for each archive, before any of its messages. Does nothing by default.
+     *
+     * @param ai The {@link ArchiveInfo}.
+     */
+    void onArchive(ArchiveInfo ai) {
+    }
+
+    /**
+     * Called for each message in an .iwa file.
+     *
+     * @param in The {@link CodedInputStream}, limited to the payload of the message
+     *          object. Any unread bytes are skipped after this method returns.
+     * @param ai The {@link ArchiveInfo} that owns this message.
+     * @param mi The {@link MessageInfo} that describes this message.
+     * @throws IOException
+     */
+    abstract void onMessage(CodedInputStream in, ArchiveInfo ai, MessageInfo mi)
+        throws IOException;
+
+    /**
+     * Called when {@link #onMessage(CodedInputStream, ArchiveInfo, MessageInfo)} threw an
+     * {@link InvalidProtocolBufferException}. Reading continues with the next message
+     * unless this method throws an exception.
+     *
+     * @param ai The {@link ArchiveInfo} that owns the message.
+     * @param mi The {@link MessageInfo} that describes the message.
+     * @param e The exception.
+     * @throws IOException
+     */
+    abstract void onInvalidMessage(ArchiveInfo ai, MessageInfo mi,
+        InvalidProtocolBufferException e) throws IOException;
+  }
+
+  /**
+   * Creates a new {@link IWAReader} for the given Snappy-compressed .iwa data.
+   *
+   * @param in The .iwa data. Not closed by this reader.
+   * @param chunkExecutor The executor used to decompress chunks in parallel, or
+   *          {@code null}.
+   * @param chunkReadAhead The maximum number of chunks decompressed ahead.
+   */
+  IWAReader(final InputStream in, final Executor chunkExecutor, final int chunkReadAhead) {
+    this(in, chunkExecutor, chunkReadAhead, null, null);
+  }
+
+  /**
+   * Creates a new {@link IWAReader} for the given Snappy-compressed .iwa data.
+   *
+   * @param in The .iwa data. Not closed by this reader.
+   * @param chunkExecutor The executor used to decompress chunks in parallel, or
+   *          {@code null}.
+   * @param chunkReadAhead The maximum number of chunks decompressed ahead.
+   * @param profile The profile that receives the time spent for Snappy decompression and
+   *          {@link ArchiveInfo} parsing, or {@code null}. Reading from {@code in} should
+   *          be added to the same profile, as {@link ParseProfile.Stage#ZIP}.
+   * @param trace The trace that receives each decompressed chunk, or {@code null}.
+   */
+  IWAReader(final InputStream in, final Executor chunkExecutor, final int chunkReadAhead,
+      final ParseProfile profile, final ChunkTrace trace) {
+    this.decoder = new SnappyNoCRCFramedDecoder(in, chunkExecutor, chunkReadAhead);
+    this.decoder.setChunkTrace(trace);
+    this.profile = profile;
+  }
+
+  /**
+   * Enforces the given budget: on the decompressed data, upon each archive, and on each
+   * message's length before the message is read or skipped.
+   *
+   * @param budget The budget, or {@code null}.
+   */
+  void setBudget(final ParseBudget budget) {
+    this.budget = budget;
+    decoder.setBudget(budget);
+  }
+
+  /**
+   * Reads all messages, until the end of the data is reached or the current thread is
+   * interrupted, or the budget (if any) is exceeded. Afterwards, the decoder's buffers
+   * are returned to the pool, and this reader must not be used anymore.
+   *
+   * @param sink The receiver of the messages.
+   * @throws IOException
+   */
+  void read(final MessageSink sink) throws IOException {
+    try {
+      readMessages(sink);
+    } finally {
+      cis = null;
+      cisArray = null;
+      decoder.release();
+    }
+  }
+
+  private void readMessages(final MessageSink sink) throws IOException {
+    long skip = 0;
+    while (!Thread.interrupted()) {
+      if (skip > 0) {
+        skip(skip);
+        skip = 0;
+      }
+      sync();
+
+      final int aiLength = peekArchiveInfoLength();
+      if (aiLength == -1) {
+        break;
+      }
+      if (!isValid()) {
+        require(MIN_WINDOW_FILL);
+        reset();
+      }
+
+      final long time = (profile == null) ? 0 : profile.nanoTime();
+      final int aiLimit = cis.pushLimit(cis.readRawVarint32());
+      final ArchiveInfo ai = ArchiveInfo.PARSER.parseFrom(cis);
+      cis.popLimit(aiLimit);
+      if (profile != null) {
+        profile.add(ParseProfile.Stage.ARCHIVE_INFO, profile.nanoTime() - time, aiLength);
+      }
+      sink.onArchive(ai);
+      if (budget != null) {
+        budget.checkDeadline();
+        budget.addMessages(ai.getMessageInfosCount());
+        for (MessageInfo mi : ai.getMessageInfosList()) {
+          budget.checkMessageLength(mi.getLength());
+        }
+      }
+
+      for (MessageInfo mi : ai.getMessageInfosList()) {
+        if (mi.getLength() < 0) {
+          // a uint32 length of 2 GB or more; the following data cannot be located
+          sink.onInvalidMessage(ai, mi, new InvalidProtocolBufferException(
+              "Invalid message length: " + (mi.getLength() & 0xFFFFFFFFL)));
+          return;
+        }
+        if (profile != null) {
+          profile.countSeenMessage(mi.getType());
+        }
+        if (!sink.accept(mi)) {
+          // skipped in bulk, together with any following unwanted messages
+          skip += mi.getLength();
+          continue;
+        }
+        if (skip > 0) {
+          skip(skip);
+          skip = 0;
+        }
+        if (mi.getLength() > available()) {
+          sync();
+          require(Math.max(mi.getLength(), MIN_WINDOW_FILL));
+          reset();
+        }
+
+        final int length = Math.min(mi.getLength(), available());
+        final int end = cis.getTotalBytesRead() + length;
+        final int msgLimit = cis.pushLimit(length);
+        try {
+          sink.onMessage(cis, ai, mi);
+        } catch (InvalidProtocolBufferException e) {
+          // the stream's internal state (nested limits, recursion depth) is undefined
+          cis.popLimit(msgLimit);
+          skipTo(end);
+          sync();
+          reset();
+
+          sink.onInvalidMessage(ai, mi, e);
+          continue;
+        }
+        cis.popLimit(msgLimit);
+        skipTo(end);
+      }
+    }
+  }
+
+  /**
+   * Skips the given number of bytes, without requiring them to be in the decoder's
+   * window.
+   */
+  private void skip(final long n) throws IOException {
+    if (n <= available()) {
+      cis.skipRawBytes((int) n);
+    } else {
+      sync();
+      if (profile == null || !profile.isTimed()) {
+        decoder.skip(n);
+      } else {
+        final long zipNanos = profile.getNanos(ParseProfile.Stage.ZIP);
+        final long time = System.nanoTime();
+        decoder.skip(n);
+        profile.add(ParseProfile.Stage.SNAPPY, System.nanoTime() - time
+            - (profile.getNanos(ParseProfile.Stage.ZIP) - zipNanos), n);
+      }
+      require(MIN_WINDOW_FILL);
+      reset();
+    }
+  }
+
+  /**
+   * Calls {@link SnappyNoCRCFramedDecoder#require(int)}, adding the time spent to the
+   * profile, if any.
+   */
+  private boolean require(final int n) throws IOException {
+    if (profile == null || !profile.isTimed()) {
+      return decoder.require(n);
+    }
+    final long zipNanos = profile.getNanos(ParseProfile.Stage.ZIP);
+    final long time = System.nanoTime();
+    final boolean result = decoder.require(n);
+    profile.add(ParseProfile.Stage.SNAPPY, System.nanoTime() - time
+        - (profile.getNanos(ParseProfile.Stage.ZIP) - zipNanos), 0);
+    return result;
+  }
+
+  private void skipTo(final int end) throws IOException {
+    final int skip = end - cis.getTotalBytesRead();
+    if (skip > 0) {
+      cis.skipRawBytes(skip);
+    }
+  }
+
+  /**
+   * Checks whether the current {@link CodedInputStream} still covers the decoder's
+   * window.
+   */
+  private boolean isValid() {
+    return cis != null && cisArray == decoder.array() && cisLimit == decoder.limit()
+        && cisGeneration == decoder.generation();
+  }
+
+  /**
+   * Marks all bytes read via the current {@link CodedInputStream} as consumed in the
+   * decoder.
+   */
+  private void sync() {
+    if (cis != null) {
+      decoder.consume(cis.getTotalBytesRead());
+      if (profile != null) {
+        profile.add(ParseProfile.Stage.SNAPPY, 0, cis.getTotalBytesRead());
+      }
+      cis.resetSizeCounter();
+    }
+  }
+
+  /**
+   * Creates a new {@link CodedInputStream} covering the decoder's window. Must be called
+   * after {@link #sync()}.
+   */
+  private void reset() {
+    cisArray = decoder.array();
+    cisLimit = decoder.limit();
+    cisGeneration = decoder.generation();
+    cis = CodedInputStream.newInstance(cisArray, decoder.position(), decoder.remaining());
+    cis.setSizeLimit(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the number of decompressed bytes that have not been read via the current
+   * {@link CodedInputStream}.
+   */
+  private int available() {
+    return cisLimit - decoder.position() - cis.getTotalBytesRead();
+  }
+
+  /**
+   * Makes sure that the next {@link ArchiveInfo} is contained in the decoder's window,
+   * and returns its length, without consuming any data. Must be called after
+   * {@link #sync()}.
+   *
+   * @return The length, or {@code -1} if the end of the data has been reached.
+   * @throws IOException
+   */
+  private int peekArchiveInfoLength() throws IOException {
+    if (!require(1)) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = 0; i < 5; i++) {
+      if (!require(i + 1)) {
+        throw truncatedMessage();
+      }
+      final byte b = decoder.array()[decoder.position() + i];
+      result |= (b & 0x7f) << (7 * i);
+      if (b >= 0) {
+        if (!require(i + 1 + result)) {
+          throw truncatedMessage();
+        }
+        return result;
+      }
+    }
+    throw new InvalidProtocolBufferException("ArchiveInfo length is malformed");
+  }
+
+  private static InvalidProtocolBufferException truncatedMessage() {
+    return new InvalidProtocolBufferException(
+        "While parsing a protocol message, the input ended unexpectedly");
+  }
+}
@@ -15,6 +15,7 @@
  */
 package com.evernote.iwana;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -26,6 +27,7 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
 
   private final String documentFilename;
   private String currentFile;
+  private RandomAccessIndex randomAccessIndex = null;
 
   /**
    * Creates a new {@link IwanaContext} instance.
@@ -68,6 +70,22 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
     this.currentFile = currentFile;
   }
 
+  /**
+   * Returns random access to the {@code .iwa} files of the document's index, if the
+   * document is read from a random-access source (such as a file). Available from
+   * {@link #onBeginParseIndexZip()} on.
+   *
+   * @return The {@link RandomAccessIndex}, or {@code null} if the index can only be read
+   *         once.
+   */
+  public RandomAccessIndex getRandomAccessIndex() {
+    return randomAccessIndex;
+  }
+
+  void setRandomAccessIndex(RandomAccessIndex randomAccessIndex) {
+    this.randomAccessIndex = randomAccessIndex;
+  }
+
   /**
    * Called when the parser beings parsing the named {@code .iwa} file.
    * 
@@ -84,6 +102,27 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
   public void onEndParseIWAFile(String name) {
   }
 
+  /**
+   * Checks whether the parser should report the identifiers of all archives via
+   * {@link #onArchivesRead(long[])}.
+   *
+   * @return {@code false} by default.
+   */
+  protected boolean isTrackingArchives() {
+    return false;
+  }
+
+  /**
+   * Called at the end of each {@code .iwa} file, before
+   * {@link #onEndParseIWAFile(String)}, with the identifiers of all archives in the file,
+   * including those without any registered action. Only called if
+   * {@link #isTrackingArchives()}.
+   *
+   * @param identifiers The identifiers, in the order they were read.
+   */
+  protected void onArchivesRead(long[] identifiers) {
+  }
+
   /**
    * Called when the parser skips the named file (e.g., an {@code .iwa} file where
    * {@link #acceptIWAFile(String)} returned {@false}, or any another resource
@@ -101,12 +140,43 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
   public void onBeginParseIndexZip() {
   }
 
+  /**
+   * Called when the parser has successfully parsed all files of the {@code index.zip}
+   * archive, before {@link #onEndParseIndexZip()}. Not called if parsing failed.
+   * 
+   * Contexts that read files again via {@link #getRandomAccessIndex()} should do so here,
+   * so that any failure fails the document.
+   * 
+   * @throws IOException if the document cannot be processed.
+   */
+  public void onFinishParseIndexZip() throws IOException {
+  }
+
   /**
    * Called when the parser has finished parsing the {@code index.zip} archive.
    */
   public void onEndParseIndexZip() {
   }
 
+  /**
+   * Returns an estimate of the memory currently retained by this context, in bytes. Only
+   * called when collecting {@link ParseStats}.
+   *
+   * @return The estimate; {@code 0} by default.
+   */
+  protected long estimateRetainedBytes() {
+    return 0;
+  }
+
+  /**
+   * Adds the context-specific figures (retained objects, text blocks) to the given
+   * stats, at the end of the document. Does nothing by default.
+   *
+   * @param stats The stats.
+   */
+  protected void collectStats(ParseStats stats) {
+  }
+
   /**
    * Returns the base filename of the document being parsed.
    * 
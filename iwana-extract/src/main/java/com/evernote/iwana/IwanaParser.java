@@ -15,45 +15,465 @@
  */
 package com.evernote.iwana;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
 
 /**
  * The base class used to implement a document parser.
  */
 public abstract class IwanaParser<T extends IwanaParserCallback> {
+  /**
+   * Enables profiling when collecting {@link ParseStats} without a listener.
+   */
+  private static final ParseListener NO_LISTENER = new ParseListener() {
+  };
+
+  private Executor executor = null;
+  private int maxPendingFiles = 0;
+  private Executor chunkExecutor = null;
+  private int chunkReadAhead = 0;
+  private IWAMemo iwaMemo = null;
+  private ParseListener parseListener = null;
+  private ParseMetrics metrics = null;
+  private ParseLimits limits = null;
+
+  /**
+   * The budget of the document that is currently being parsed, or {@code null}.
+   */
+  private ParseBudget budget = null;
+
+  /**
+   * The context of the document that is currently being parsed, for {@link ParseMetrics}
+   * and {@link ParseStats}.
+   */
+  private IwanaContext<T> currentContext = null;
+
+  /**
+   * The stats to be collected for the next document, and for the document that is
+   * currently being parsed, or {@code null}.
+   */
+  private ParseStats pendingStats = null;
+  private ParseStats stats = null;
+
+  /**
+   * The listener and profile of the document that is currently being parsed, or
+   * {@code null} if profiling is disabled.
+   */
+  private ParseListener profileListener = null;
+  private ParseProfile profile = null;
+
+  /**
+   * The listener that receives message events for the current document, or {@code null}.
+   */
+  private ParseListener messageListener = null;
+  private String profileDocumentName = null;
+
+  /**
+   * Enables parallel decoding of the {@code .iwa} files within a document, using the
+   * given {@link Executor} (for example, a {@link java.util.concurrent.ForkJoinPool}).
+   * 
+   * Messages are still dispatched to the {@link IwanaContext} on the calling thread, in
+   * archive order, so the results are identical to those of sequential parsing.
+   * 
+   * @param executor The executor, or {@code null} to parse sequentially (the default).
+   */
+  public void setExecutor(final Executor executor) {
+    setExecutor(executor, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Enables parallel decoding of the {@code .iwa} files within a document, using the
+   * given {@link Executor}.
+   * 
+   * @param executor The executor, or {@code null} to parse sequentially (the default).
+   * @param maxPendingFiles The maximum number of files decoded ahead of the file whose
+   *          messages are currently being dispatched.
+   * @see #setExecutor(Executor)
+   */
+  public void setExecutor(final Executor executor, final int maxPendingFiles) {
+    this.executor = executor;
+    this.maxPendingFiles = maxPendingFiles;
+  }
+
+  /**
+   * Enables parallel decompression of the Snappy chunks within each {@code .iwa} file
+   * that is decoded on the calling thread, using the given {@link Executor}.
+   * 
+   * This is most useful for documents with a few very large {@code .iwa} files. Files
+   * decoded via {@link #setExecutor(Executor)} are not affected.
+   * 
+   * @param executor The executor, or {@code null} to decompress sequentially (the
+   *          default).
+   * @param readAheadChunks The maximum number of chunks decompressed ahead.
+   * @see SnappyNoCRCFramedDecoder#SnappyNoCRCFramedDecoder(InputStream, Executor, int)
+   */
+  public void setChunkExecutor(final Executor executor, final int readAheadChunks) {
+    this.chunkExecutor = executor;
+    this.chunkReadAhead = readAheadChunks;
+  }
+
+  /**
+   * Enables memoization of the messages read from each {@code .iwa} file, so that files
+   * that are unchanged between versions of a document are not decoded again.
+   * 
+   * @param memo The memo (which may be shared with other parsers), or {@code null} to
+   *          decode every file (the default).
+   */
+  public void setIWAMemo(final IWAMemo memo) {
+    this.iwaMemo = memo;
+  }
+
+  IWAMemo getIWAMemo() {
+    return iwaMemo;
+  }
+
+  /**
+   * Enables profiling: for every document, and every {@code .iwa} file within, the given
+   * listener receives a {@link ParseProfile} that tells the time spent per parsing stage
+   * (unless {@link ParseListener#isTimingStages()} returns {@code false}).
+   * 
+   * @param listener The listener, or {@code null} to disable profiling (the default).
+   */
+  public void setParseListener(final ParseListener listener) {
+    this.parseListener = listener;
+  }
+
+  /**
+   * Enables metrics: every parsed document, and every invalid message, is recorded in
+   * the given {@link ParseMetrics}.
+   * 
+   * @param metrics The metrics (which may be shared with other parsers), or {@code null}
+   *          to disable metrics (the default).
+   */
+  public void setMetrics(final ParseMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Limits the time and memory spent on each document. A document that exceeds any of
+   * the limits is aborted with a {@link ParseLimitExceededException}. Untrusted documents
+   * should be parsed with at least {@link ParseLimits#DEFAULT}; without limits, only the
+   * size that each Snappy chunk declares is checked for plausibility.
+   * 
+   * @param limits The limits, or {@code null} to parse without limits (the default).
+   */
+  public void setLimits(final ParseLimits limits) {
+    this.limits = limits;
+  }
+
+  ParseBudget getBudget() {
+    return budget;
+  }
+
+  /**
+   * Records a parsed document in the given metrics.
+   * 
+   * @param documentMetrics The metrics.
+   * @param startTime The value of {@link System#nanoTime()} before parsing.
+   * @param documentBytes The size of the document.
+   * @param failed Whether parsing failed.
+   */
+  private void recordMetrics(final ParseMetrics documentMetrics, final long startTime,
+      final long documentBytes, final boolean failed) {
+    final IwanaContext<T> context = currentContext;
+    documentMetrics.recordDocument(context == null ? "unknown" : context.getClass()
+        .getSimpleName(), documentBytes, System.nanoTime() - startTime, failed);
+  }
+
+  /**
+   * Creates a new context via {@link #newContext(String, IwanaParserCallback)}, and
+   * remembers it for the metrics and stats.
+   */
+  private IwanaContext<T> createContext(final String documentName, final T target) {
+    final IwanaContext<T> context = newContext(documentName, target);
+    currentContext = context;
+    return context;
+  }
+
+  private void beginProfile(final String documentName) {
+    stats = pendingStats;
+    pendingStats = null;
+    profileListener =
+        (parseListener != null) ? parseListener : (stats != null) ? NO_LISTENER : null;
+    if (profileListener != null) {
+      profile = new ParseProfile(stats != null || profileListener.isTimingStages());
+      messageListener = profileListener.isListeningToMessages() ? profileListener : null;
+      profileDocumentName = documentName;
+      profileListener.onBeginDocument(documentName);
+    }
+  }
+
+  private void endProfile(final String documentName) {
+    final ParseListener listener = profileListener;
+    final ParseProfile documentProfile = profile;
+    final ParseStats documentStats = stats;
+    profileListener = null;
+    profile = null;
+    messageListener = null;
+    profileDocumentName = null;
+    stats = null;
+    if (documentStats != null) {
+      documentStats.getProfile().add(documentProfile);
+      final IwanaContext<T> context = currentContext;
+      if (context != null) {
+        documentStats.updatePeakRetainedBytes(context.estimateRetainedBytes());
+        context.collectStats(documentStats);
+      }
+    }
+    if (listener != null && listener != NO_LISTENER) {
+      listener.onEndDocument(documentName, documentProfile);
+    }
+  }
+
+  /**
+   * Counts an {@code .iwa} file in the stats, if any.
+   * 
+   * @param accepted Whether the file was accepted by the context.
+   */
+  void countIWAFile(final boolean accepted) {
+    if (stats != null) {
+      stats.countIWAFile(accepted);
+    }
+  }
+
+  /**
+   * Returns a new profile for an {@code .iwa} file.
+   * 
+   * @return The profile, or {@code null} if profiling is disabled.
+   */
+  ParseProfile newFileProfile() {
+    return (profile == null) ? null : new ParseProfile(profile.isTimed());
+  }
+
+  /**
+   * Returns the listener of the document that is currently being parsed.
+   * 
+   * @return The listener, or {@code null} if profiling is disabled.
+   */
+  ParseListener getProfileListener() {
+    return profileListener;
+  }
+
+  /**
+   * Returns the listener that receives {@link ParseListener#onBeginMessage()} and
+   * {@link ParseListener#onEndMessage(int, int)} for the current document.
+   * 
+   * @return The listener, or {@code null} if there is none.
+   */
+  ParseListener getMessageListener() {
+    return messageListener;
+  }
+
+  /**
+   * Returns a new {@link ChunkTrace} for an {@code .iwa} file.
+   * 
+   * @param name The name of the file.
+   * @return The trace, or {@code null} if profiling is disabled.
+   */
+  ChunkTrace newChunkTrace(final String name) {
+    return (profile == null) ? null
+        : new ChunkTrace(profileListener, profileDocumentName, name);
+  }
+
+  /**
+   * Calls {@link IwanaContext#onBeginParseIWAFile(String)}, notifying the listener first,
+   * if profiling.
+   */
+  void beginParseIWAFile(final String name, final IwanaContext<?> context,
+      final ParseProfile fileProfile) throws ParseLimitExceededException {
+    if (budget != null) {
+      budget.checkDeadline();
+    }
+    if (fileProfile != null) {
+      profileListener.onBeginIWAFile(name);
+    }
+    context.onBeginParseIWAFile(name);
+  }
+
+  /**
+   * Calls {@link IwanaContext#onEndParseIWAFile(String)}, and reports the file's profile,
+   * if any.
+   */
+  void endParseIWAFile(final String name, final IwanaContext<?> context,
+      final ParseProfile fileProfile) {
+    if (fileProfile == null) {
+      context.onEndParseIWAFile(name);
+      return;
+    }
+    final long time = System.nanoTime();
+    try {
+      context.onEndParseIWAFile(name);
+    } finally {
+      fileProfile.add(ParseProfile.Stage.PROCESS_ROOT, System.nanoTime() - time, 0);
+      profile.add(fileProfile);
+      profileListener.onIWAFile(name, fileProfile);
+      if (stats != null) {
+        stats.updatePeakRetainedBytes(context.estimateRetainedBytes());
+      }
+    }
+  }
+
+  /**
+   * Calls {@link IwanaContext#onFinishParseIndexZip()}, adding the time spent to the
+   * profile, if any.
+   */
+  private void finishParseIndexZip(final IwanaContext<?> context) throws IOException {
+    if (profile == null) {
+      context.onFinishParseIndexZip();
+      return;
+    }
+    final long time = System.nanoTime();
+    try {
+      context.onFinishParseIndexZip();
+    } finally {
+      profile.add(ParseProfile.Stage.PROCESS_ROOT, System.nanoTime() - time, 0);
+    }
+  }
+
+  /**
+   * Calls {@link IwanaContext#onEndParseIndexZip()}, adding the time spent to the profile,
+   * if any.
+   */
+  private void endParseIndexZip(final IwanaContext<?> context) {
+    if (profile == null) {
+      context.onEndParseIndexZip();
+      return;
+    }
+    final long time = System.nanoTime();
+    try {
+      context.onEndParseIndexZip();
+    } finally {
+      profile.add(ParseProfile.Stage.PROCESS_ROOT, System.nanoTime() - time, 0);
+    }
+  }
+
   /**
    * Parses the given iWork'13 file and adds the parser results to the given target
    * object.
    * 
+   * Regular files are memory-mapped and accessed via the zip central directory, so that
+   * only the index data has to be read. If the file cannot be read that way (e.g., it is
+   * too large to be mapped, or a ZIP64 archive), it is streamed instead.
+   * 
    * @param iworkFile The input file.
    * @param target The target.
    * @throws IOException
    */
   public void parse(final File iworkFile, final T target) throws IOException {
+    final ParseMetrics documentMetrics = metrics;
+    final long startTime = (documentMetrics == null) ? 0 : System.nanoTime();
+    boolean failed = true;
+    budget = (limits == null) ? null : new ParseBudget(limits);
+    beginProfile(iworkFile.getPath());
     target.onBeginDocument();
     try {
       if (iworkFile.isDirectory()) {
         parseDirectory(iworkFile, target);
       } else {
         try (FileInputStream fin = new FileInputStream(iworkFile)) {
-          parseInternal(fin, target);
+          MappedZipFile zip = mapZipFile(fin.getChannel());
+          if (zip != null) {
+            parseMapped(zip, target);
+          } else {
+            parseInternal(fin, target);
+          }
         }
       }
+      failed = false;
     } finally {
       target.onEndDocument();
+      endProfile(iworkFile.getPath());
+      if (documentMetrics != null) {
+        recordMetrics(documentMetrics, startTime, iworkFile.isDirectory()
+            ? new File(iworkFile, "Index.zip").length() : iworkFile.length(), failed);
+      }
+      currentContext = null;
+      budget = null;
     }
   }
 
+  /**
+   * Parses the given iWork'13 file like {@link #parse(File, IwanaParserCallback)}, and
+   * returns the resources consumed by doing so.
+   * 
+   * @param iworkFile The input file.
+   * @param target The target.
+   * @return The stats.
+   * @throws IOException
+   */
+  public ParseStats parseWithStats(final File iworkFile, final T target)
+      throws IOException {
+    final ParseStats documentStats = new ParseStats();
+    final long cpuTime = currentThreadCpuTime();
+    final long time = System.nanoTime();
+    pendingStats = documentStats;
+    try {
+      parse(iworkFile, target);
+    } finally {
+      pendingStats = null;
+      setTimes(documentStats, time, cpuTime);
+    }
+    return documentStats;
+  }
+
+  /**
+   * Parses the given iWork'13 file like {@link #parse(InputStream, IwanaParserCallback)},
+   * and returns the resources consumed by doing so.
+   * 
+   * @param zipIn The input stream, a iWork'13 .zip file.
+   * @param target The target.
+   * @return The stats.
+   * @throws IOException
+   */
+  public ParseStats parseWithStats(final InputStream zipIn, final T target)
+      throws IOException {
+    final ParseStats documentStats = new ParseStats();
+    final long cpuTime = currentThreadCpuTime();
+    final long time = System.nanoTime();
+    pendingStats = documentStats;
+    try {
+      parse(zipIn, target);
+    } finally {
+      pendingStats = null;
+      setTimes(documentStats, time, cpuTime);
+    }
+    return documentStats;
+  }
+
+  /**
+   * Returns the CPU time of the current thread, in nanoseconds, or {@code -1} if it is
+   * not measured.
+   */
+  private static long currentThreadCpuTime() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime()
+        : -1;
+  }
+
+  private static void setTimes(final ParseStats documentStats, final long startTime,
+      final long startCpuTime) {
+    final long cpuTime = (startCpuTime == -1) ? -1 : currentThreadCpuTime();
+    documentStats.setTimes(System.nanoTime() - startTime,
+        (cpuTime == -1) ? -1 : cpuTime - startCpuTime);
+  }
+
   /**
    * Parses the given iWork'13 file's contents and adds the parser results to the given
    * target object.
@@ -63,7 +483,7 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * @throws IOException
    */
   private void parseDirectory(final File dir, final T target) throws IOException {
-    final IwanaContext<T> context = newContext(dir.getName(), target);
+    final IwanaContext<T> context = createContext(dir.getName(), target);
 
     final File indexZip = new File(dir, "Index.zip");
     if (!indexZip.isFile()) {
@@ -71,7 +491,110 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
     }
 
     try (FileInputStream in = new FileInputStream(indexZip)) {
-      parseIndexZip(in, context);
+      MappedZipFile zip = mapZipFile(in.getChannel());
+      if (zip != null) {
+        parseIndexZip(zip, context);
+      } else {
+        parseIndexZip(in, context);
+      }
+    }
+  }
+
+  /**
+   * Tries to memory-map the given .zip file.
+   * 
+   * @param fc The file channel.
+   * @return The {@link MappedZipFile}, or {@code null} if the file cannot be accessed via
+   *         its central directory; in that case, the channel's position is reset to 0.
+   * @throws IOException
+   */
+  private static MappedZipFile mapZipFile(final FileChannel fc) throws IOException {
+    try {
+      return MappedZipFile.map(fc);
+    } catch (ZipException e) {
+      fc.position(0);
+      return null;
+    }
+  }
+
+  /**
+   * Parses an iWork'13 .zip file via random access, skipping over all entries that are
+   * not part of the index.
+   * 
+   * @param zip The memory-mapped file.
+   * @param target The target.
+   * @throws IOException
+   */
+  private void parseMapped(final MappedZipFile zip, final T target) throws IOException {
+    IwanaContext<T> context = null;
+
+    for (ZipEntry entry : zip.getEntries()) {
+      String name = entry.getName();
+      if (entry.isDirectory()) {
+        continue;
+      }
+
+      if (context == null && name.endsWith("/Index.zip")) {
+        int iSlash = name.indexOf('/');
+        int iIndex = name.indexOf("/Index.zip");
+
+        if (iSlash == iIndex) {
+          context = createContext(name.substring(0, iSlash), target);
+
+          MappedZipFile indexZip = null;
+          if (entry.getMethod() == ZipEntry.STORED) {
+            try {
+              indexZip = MappedZipFile.open(zip.getStoredData(entry));
+            } catch (ZipException e) {
+              // fall back to streaming
+            }
+          }
+          if (indexZip != null) {
+            parseIndexZip(indexZip, context);
+          } else {
+            try (InputStream in = zip.getInputStream(entry)) {
+              parseIndexZip(in, context);
+            }
+          }
+          return;
+        }
+      }
+    }
+
+    // Index data embedded in single file
+    ParallelIWADecoder<T> decoder = null;
+    try {
+      for (ZipEntry entry : zip.getEntries()) {
+        String name = entry.getName();
+        if (name.startsWith("Index/") && !entry.isDirectory()) {
+          if (context == null) {
+            context = createContext("yoo", target);
+            context.setRandomAccessIndex(new RandomAccessIndex(this, zip, "Index/"));
+            context.onBeginParseIndexZip();
+            decoder = newParallelDecoder(context);
+          }
+          if (decoder != null) {
+            decoder.add(entry, null, zip);
+          } else {
+            try (InputStream in = zip.getInputStream(entry)) {
+              parseIndexZipEntry(in, entry, context);
+            }
+          }
+        }
+      }
+
+      if (context == null) {
+        throw new IOException("Could not find Index.zip archive");
+      }
+      if (decoder != null) {
+        decoder.finish();
+      }
+      finishParseIndexZip(context);
+      endParseIndexZip(context);
+    } finally {
+      if (decoder != null) {
+        decoder.cancel();
+      }
     }
   }
 
@@ -84,20 +607,35 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * @throws IOException
    */
   public void parse(final InputStream zipIn, final T target) throws IOException {
+    final ParseMetrics documentMetrics = metrics;
+    final long startTime = (documentMetrics == null) ? 0 : System.nanoTime();
+    final CountingInputStream counter =
+        (documentMetrics == null) ? null : new CountingInputStream(zipIn);
+    boolean failed = true;
+    budget = (limits == null) ? null : new ParseBudget(limits);
+    beginProfile(null);
     target.onBeginDocument();
     try {
-      parseInternal(zipIn, target);
+      parseInternal(counter == null ? zipIn : counter, target);
+      failed = false;
     } finally {
       target.onEndDocument();
+      endProfile(null);
+      if (documentMetrics != null) {
+        recordMetrics(documentMetrics, startTime, counter.getCount(), failed);
+      }
+      currentContext = null;
+      budget = null;
     }
   }
 
   private void parseInternal(final InputStream zipIn, final T target) throws IOException {
     IwanaContext<T> context = null;
+    ParallelIWADecoder<T> decoder = null;
 
     boolean hasIndexDir = false;
 
-    try (ZipInputStream zis = new ZipInputStream(zipIn)) {
+    try (ZipInputStream zis = BudgetedZipInputStream.newInstance(zipIn, budget)) {
       ZipEntry entry;
 
       while ((entry = zis.getNextEntry()) != null) {
@@ -108,7 +646,7 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
           int iIndex = name.indexOf("/Index.zip");
 
           if (iSlash == iIndex) {
-            context = newContext(name.substring(0, iSlash), target);
+            context = createContext(name.substring(0, iSlash), target);
 
             parseIndexZip(zis, context);
             break;
@@ -117,12 +655,17 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
           // Index data embedded in single file
 
           if (context == null) {
-            context = newContext("yoo", target);
+            context = createContext("yoo", target);
             context.onBeginParseIndexZip();
             hasIndexDir = true;
+            decoder = newParallelDecoder(context);
           }
 
-          parseIndexZipEntry(zis, entry, context);
+          if (decoder != null) {
+            decoder.add(entry, zis, null);
+          } else {
+            parseIndexZipEntry(zis, entry, context);
+          }
         }
       }
 
@@ -131,7 +674,15 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
       }
 
       if (hasIndexDir) {
-        context.onEndParseIndexZip();
+        if (decoder != null) {
+          decoder.finish();
+        }
+        finishParseIndexZip(context);
+        endParseIndexZip(context);
+      }
+    } finally {
+      if (decoder != null) {
+        decoder.cancel();
       }
     }
   }
@@ -139,34 +690,88 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
   private void parseIndexZip(final InputStream indexZipIn, final IwanaContext<T> context)
       throws IOException {
 
-    try (ZipInputStream zis = new ZipInputStream(indexZipIn)) {
+    ParallelIWADecoder<T> decoder = null;
+    try (ZipInputStream zis = BudgetedZipInputStream.newInstance(indexZipIn, budget)) {
       ZipEntry entry;
 
       context.onBeginParseIndexZip();
+      decoder = newParallelDecoder(context);
 
       boolean foundIWA = false;
       while ((entry = zis.getNextEntry()) != null) {
-        foundIWA |= parseIndexZipEntry(zis, entry, context);
+        if (decoder != null) {
+          foundIWA |= decoder.add(entry, zis, null);
+        } else {
+          foundIWA |= parseIndexZipEntry(zis, entry, context);
+        }
+      }
+      if (decoder != null) {
+        decoder.finish();
       }
 
       if (!foundIWA) {
         throw new IOException("Index.zip does not contain any .iwa files");
       }
+      finishParseIndexZip(context);
     } finally {
-      context.onEndParseIndexZip();
+      if (decoder != null) {
+        decoder.cancel();
+      }
+      endParseIndexZip(context);
     }
   }
 
+  private void parseIndexZip(final MappedZipFile indexZip, final IwanaContext<T> context)
+      throws IOException {
+    ParallelIWADecoder<T> decoder = null;
+    try {
+      context.setRandomAccessIndex(new RandomAccessIndex(this, indexZip, ""));
+      context.onBeginParseIndexZip();
+      decoder = newParallelDecoder(context);
+
+      boolean foundIWA = false;
+      for (ZipEntry entry : indexZip.getEntries()) {
+        if (decoder != null) {
+          foundIWA |= decoder.add(entry, null, indexZip);
+        } else {
+          try (InputStream in = indexZip.getInputStream(entry)) {
+            foundIWA |= parseIndexZipEntry(in, entry, context);
+          }
+        }
+      }
+      if (decoder != null) {
+        decoder.finish();
+      }
+
+      if (!foundIWA) {
+        throw new IOException("Index.zip does not contain any .iwa files");
+      }
+      finishParseIndexZip(context);
+    } finally {
+      if (decoder != null) {
+        decoder.cancel();
+      }
+      endParseIndexZip(context);
+    }
+  }
+
+  private ParallelIWADecoder<T> newParallelDecoder(final IwanaContext<T> context) {
+    if (executor == null) {
+      return null;
+    }
+    return new ParallelIWADecoder<>(this, context, executor, maxPendingFiles);
+  }
+
   /**
-   * Processes an .iwa file, provided as a zip entry in a {@link ZipInputStream}.
+   * Processes an .iwa file, provided as a zip entry.
    * 
-   * @param zis The input stream.
+   * @param zis The input stream, positioned at the start of the entry's data.
    * @param entry The zip entry.
    * @param context Our parser context.
    * @return {@code true} if the entry was a valid *.iwa file.
    * @throws IOException
    */
-  private boolean parseIndexZipEntry(final ZipInputStream zis, final ZipEntry entry,
+  private boolean parseIndexZipEntry(final InputStream zis, final ZipEntry entry,
       final IwanaContext<T> context) throws IOException {
     if (entry.isDirectory()) {
       return false;
@@ -174,13 +779,16 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
     String name = entry.getName();
 
     if (name.endsWith(".iwa")) {
-      if (context.acceptIWAFile(name)) {
-        context.onBeginParseIWAFile(name);
+      final boolean accepted = context.acceptIWAFile(name);
+      countIWAFile(accepted);
+      if (accepted) {
+        final ParseProfile fileProfile = newFileProfile();
+        beginParseIWAFile(name, context, fileProfile);
         try {
           context.setCurrentFile(name);
-          parseIWA(zis, name, context);
+          parseIWA(zis, entry, context, fileProfile);
         } finally {
-          context.onEndParseIWAFile(name);
+          endParseIWAFile(name, context, fileProfile);
         }
       } else {
         context.onSkipFile(name, zis);
@@ -194,30 +802,156 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
     }
   }
 
-  private void parseIWA(final InputStream in, final String filename,
-      final IwanaContext<T> context) throws IOException {
+  /**
+   * Parses an .iwa file, provided as a zip entry, applying the context's actions. The
+   * messages are taken from the {@link IWAMemo}, if possible.
+   */
+  private void parseIWA(InputStream in, final ZipEntry entry, final IwanaContext<?> context,
+      final ParseProfile fileProfile) throws IOException {
     final MessageActions actions = context.getMessageTypeActions();
-    final InputStream bin = new SnappyNoCRCFramedInputStream(in, false);
-    final RestrictedSizeInputStream rsIn = new RestrictedSizeInputStream(bin, 0);
+    final IWAMemo memo = iwaMemo;
+    if (fileProfile != null) {
+      in = new ProfilingInputStream(in, fileProfile, ParseProfile.Stage.ZIP);
+    }
+    if (memo == null || !memo.accepts(entry.getName())) {
+      parseIWA(in, actions, context, context.isTrackingArchives(), null, fileProfile,
+          newChunkTrace(entry.getName()));
+      return;
+    }
+
+    // the whole file is held in memory to compute the memo key
+    final byte[] data = ParallelIWADecoder.readFully(in, entry.getSize(), budget);
+    final IWAMemo.Key key = memo.keyFor(entry.getName(), data, actions);
+    final IWAMemo.Messages memoized = memo.get(key);
+    if (memoized != null) {
+      replay(memoized, actions, context, fileProfile, budget);
+      return;
+    }
+    final IWAMemo.Recorder recorder = new IWAMemo.Recorder(key);
+    parseIWA(new ByteArrayInputStream(data), actions, context,
+        context.isTrackingArchives(), recorder, fileProfile,
+        newChunkTrace(entry.getName()));
+    final IWAMemo.Messages messages = recorder.toMessages();
+    if (messages != null) {
+      memo.put(key, messages);
+    }
+  }
+
+  /**
+   * Parses an .iwa file, applying the given actions.
+   */
+  void parseIWA(final InputStream in, final MessageActions actions,
+      final IwanaContext<?> context) throws IOException {
+    parseIWA(in, actions, context, false, null, null, null);
+  }
 
-    while (!Thread.interrupted()) {
-      ArchiveInfo ai;
-      ai = ArchiveInfo.parseDelimitedFrom(bin);
-      if (ai == null) {
-        break;
+  /**
+   * Replays memoized messages, adding the time spent to the file's profile, if any.
+   */
+  static void replay(final IWAMemo.Messages memoized, final MessageActions actions,
+      final IwanaContext<?> context, final ParseProfile fileProfile,
+      final ParseBudget budget) throws IOException {
+    if (budget != null) {
+      budget.addMessages(memoized.getMessageCount());
+    }
+    if (fileProfile == null) {
+      memoized.replay(actions, context);
+      return;
+    }
+    final long time = System.nanoTime();
+    memoized.replay(actions, context);
+    fileProfile.add(ParseProfile.Stage.MEMO_REPLAY, System.nanoTime() - time, 0);
+    memoized.countMessages(fileProfile);
+  }
+
+  /**
+   * Parses an .iwa file, applying the given actions, optionally reporting its archives to
+   * the context, recording the messages for an {@link IWAMemo}, and profiling.
+   */
+  private void parseIWA(final InputStream in, final MessageActions actions,
+      final IwanaContext<?> context, final boolean trackArchives,
+      final IWAMemo.Recorder recorder, final ParseProfile fileProfile,
+      final ChunkTrace trace) throws IOException {
+    final ParseListener listener = messageListener;
+    final IWAReader reader =
+        new IWAReader(in, chunkExecutor, chunkReadAhead, fileProfile, trace);
+    reader.setBudget(budget);
+    final ArchiveIdentifiers archives = trackArchives ? new ArchiveIdentifiers() : null;
+    reader.read(new IWAReader.MessageSink() {
+      @Override
+      boolean accept(MessageInfo mi) {
+        return actions.hasAction(mi.getType());
       }
 
-      for (MessageInfo mi : ai.getMessageInfosList()) {
-        rsIn.setNumBytesReadable(mi.getLength());
-        try {
-          actions.onMessage(rsIn, ai, mi, context);
-        } catch (InvalidProtocolBufferException e) {
-          handleInvalidProtocolBufferException(ai, mi, e);
-        } finally {
-          rsIn.skipRest();
+      @Override
+      void onArchive(ArchiveInfo ai) {
+        if (archives != null) {
+          archives.add(ai.getIdentifier());
+        }
+        if (recorder != null) {
+          recorder.addArchive(ai.getIdentifier());
+        }
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      void onMessage(CodedInputStream in, ArchiveInfo ai, MessageInfo mi)
+          throws IOException {
+        if (recorder == null && fileProfile == null) {
+          actions.onMessage(in, ai, mi, context);
+          return;
+        }
+
+        final MessageAction<Message, IwanaContext<?>> action =
+            (MessageAction<Message, IwanaContext<?>>) actions.getAction(mi.getType());
+        final long time = (fileProfile == null) ? 0 : fileProfile.nanoTime();
+        final int length = in.getBytesUntilLimit();
+        final Object payload =
+            (recorder == null) ? action.read(in) : recorder.read(in, ai, mi, action);
+        if (fileProfile == null) {
+          action.dispatch(payload, ai, mi, context);
+          return;
+        }
+        final long parsed = fileProfile.nanoTime();
+        if (listener == null) {
+          action.dispatch(payload, ai, mi, context);
+        } else {
+          listener.onBeginMessage();
+          action.dispatch(payload, ai, mi, context);
+          listener.onEndMessage(mi.getType(), length);
         }
+        fileProfile.add(ParseProfile.Stage.MESSAGE_PARSE, parsed - time, length);
+        fileProfile.add(ParseProfile.Stage.MESSAGE_HANDLER,
+            fileProfile.nanoTime() - parsed, 0);
+        fileProfile.countMessage(mi.getType());
       }
+
+      @Override
+      void onInvalidMessage(ArchiveInfo ai, MessageInfo mi,
+          InvalidProtocolBufferException e) throws IOException {
+        if (recorder != null) {
+          recorder.invalidate();
+        }
+        IwanaParser.this.onInvalidMessage(ai, mi, e);
+      }
+    });
+    if (archives != null) {
+      context.onArchivesRead(archives.toArray());
+    }
+  }
+
+  /**
+   * Records an invalid message in the metrics, if any, and then calls
+   * {@link #handleInvalidProtocolBufferException(ArchiveInfo, MessageInfo,
+   * InvalidProtocolBufferException)}.
+   */
+  void onInvalidMessage(final ArchiveInfo ai, final MessageInfo mi,
+      final InvalidProtocolBufferException e) throws InvalidProtocolBufferException {
+    final ParseMetrics m = metrics;
+    if (m != null) {
+      m.recordInvalidMessage();
     }
+    handleInvalidProtocolBufferException(ai, mi, e);
   }
 
   /**
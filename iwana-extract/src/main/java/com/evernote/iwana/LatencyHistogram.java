@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, in the style of HdrHistogram.
+ *
+ * Durations are recorded with microsecond resolution into log-linear buckets: each power
+ * of two is divided into {@value #SUB_BUCKETS} buckets of equal width, so that any
+ * recorded value is reported with a relative error of at most 1/{@value #SUB_BUCKETS}
+ * (about 6%). Durations of up to 2<sup>40</sup> microseconds (about 12 days) are
+ * distinguished; longer ones are recorded as the maximum.
+ *
+ * Recording is wait-free apart from the maximum, which is updated via compare-and-set.
+ * Readers see a consistent view of each bucket, but not necessarily of the histogram as a
+ * whole while values are being recorded.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 39;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int NUM_BUCKETS = index(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos The duration, in nanoseconds.
+   */
+  public void record(final long nanos) {
+    final long micros = Math.min(Math.max(nanos / 1000, 0), MAX_VALUE);
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    sumMicros.addAndGet(micros);
+    long max;
+    while (micros > (max = maxMicros.get())) {
+      if (maxMicros.compareAndSet(max, micros)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of recorded durations.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the sum of all recorded durations, in nanoseconds.
+   */
+  public long getSumNanos() {
+    return sumMicros.get() * 1000;
+  }
+
+  /**
+   * Returns the longest recorded duration, in nanoseconds.
+   */
+  public long getMaxNanos() {
+    return maxMicros.get() * 1000;
+  }
+
+  /**
+   * Returns the durations at the given percentiles, in nanoseconds. Each value is the
+   * highest duration that falls into the same bucket as the actual percentile, but no
+   * more than {@link #getMaxNanos()}.
+   *
+   * @param percentiles The percentiles, in ascending order, each between 0 and 100.
+   * @return The durations, or all zeros if nothing has been recorded.
+   */
+  public long[] getPercentileNanos(final double... percentiles) {
+    final long[] values = new long[percentiles.length];
+    long total = 0;
+    final long[] snapshot = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return values;
+    }
+    final long max = maxMicros.get();
+
+    int p = 0;
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS && p < percentiles.length; i++) {
+      seen += snapshot[i];
+      while (p < percentiles.length && seen > 0
+          && seen >= Math.ceil(percentiles[p] / 100.0 * total)) {
+        values[p++] = Math.min(highestEquivalentValue(i), max) * 1000;
+      }
+    }
+    while (p < percentiles.length) {
+      values[p++] = max * 1000;
+    }
+    return values;
+  }
+
+  /**
+   * Returns the bucket for the given value.
+   */
+  private static int index(final long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * Returns the highest value that falls into the given bucket.
+   */
+  private static long highestEquivalentValue(final int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKETS - 1;
+    final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable summary of the parse latencies of one kind of document, as reported by
+ * {@link ParseMetrics}.
+ */
+public final class LatencySummary {
+  private final String documentType;
+  private final String sizeClass;
+  private final long count;
+  private final double meanMillis;
+  private final double p50Millis;
+  private final double p90Millis;
+  private final double p99Millis;
+  private final double p999Millis;
+  private final double maxMillis;
+
+  @ConstructorProperties({
+      "documentType", "sizeClass", "count", "meanMillis", "p50Millis", "p90Millis",
+      "p99Millis", "p999Millis", "maxMillis"})
+  public LatencySummary(final String documentType, final String sizeClass,
+      final long count, final double meanMillis, final double p50Millis,
+      final double p90Millis, final double p99Millis, final double p999Millis,
+      final double maxMillis) {
+    this.documentType = documentType;
+    this.sizeClass = sizeClass;
+    this.count = count;
+    this.meanMillis = meanMillis;
+    this.p50Millis = p50Millis;
+    this.p90Millis = p90Millis;
+    this.p99Millis = p99Millis;
+    this.p999Millis = p999Millis;
+    this.maxMillis = maxMillis;
+  }
+
+  /**
+   * Returns the type of document, i.e., the simple name of its {@link IwanaContext}
+   * class, e.g. {@code KeynoteContext}.
+   */
+  public String getDocumentType() {
+    return documentType;
+  }
+
+  /**
+   * Returns the size class of the documents, e.g. {@code <1MiB}.
+   */
+  public String getSizeClass() {
+    return sizeClass;
+  }
+
+  /**
+   * Returns the number of documents parsed.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  public double getMeanMillis() {
+    return meanMillis;
+  }
+
+  public double getP50Millis() {
+    return p50Millis;
+  }
+
+  public double getP90Millis() {
+    return p90Millis;
+  }
+
+  public double getP99Millis() {
+    return p99Millis;
+  }
+
+  public double getP999Millis() {
+    return p999Millis;
+  }
+
+  public double getMaxMillis() {
+    return maxMillis;
+  }
+}
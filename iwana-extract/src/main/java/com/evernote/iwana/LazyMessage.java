@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * A protobuf message that is parsed from its raw payload upon first access.
+ *
+ * Once parsed, the message is cached, and the raw payload is released. Instances are not
+ * thread-safe.
+ *
+ * @see LazyMessageAction
+ */
+public final class LazyMessage<T extends Message> {
+  private Parser<T> parser;
+  private byte[] data;
+  private T message;
+
+  /**
+   * Creates a {@link LazyMessage} from an already parsed message.
+   *
+   * @param message The message.
+   */
+  public LazyMessage(final T message) {
+    this.message = message;
+  }
+
+  /**
+   * Creates a {@link LazyMessage} that parses the given payload upon first access.
+   *
+   * @param parser The parser to use.
+   * @param data The raw payload. Must not be modified afterwards.
+   */
+  public LazyMessage(final Parser<T> parser, final byte[] data) {
+    this.parser = parser;
+    this.data = data;
+  }
+
+  /**
+   * Returns the message, parsing it if necessary.
+   *
+   * @return The message.
+   * @throws InvalidProtocolBufferException if the payload could not be parsed. The
+   *           payload is retained, so subsequent calls will fail again.
+   */
+  public T get() throws InvalidProtocolBufferException {
+    if (message == null) {
+      message = parser.parseFrom(data);
+      parser = null;
+      data = null;
+    }
+    return message;
+  }
+
+  /**
+   * Returns the parser for this message's payload.
+   *
+   * @return The parser.
+   */
+  @SuppressWarnings("unchecked")
+  public Parser<T> getParser() {
+    return message == null ? parser : (Parser<T>) message.getParserForType();
+  }
+
+  /**
+   * Returns the raw payload, serializing the message if it has already been parsed.
+   *
+   * @return The payload. Must not be modified.
+   */
+  public byte[] toByteArray() {
+    return message == null ? data : message.toByteArray();
+  }
+
+  /**
+   * Returns the size of the raw payload, in bytes, without serializing the message.
+   *
+   * @return The size.
+   */
+  public int getSerializedSize() {
+    return message == null ? data.length : message.getSerializedSize();
+  }
+
+  /**
+   * Checks whether the message has already been parsed.
+   *
+   * @return {@code true} if parsed.
+   */
+  public boolean isParsed() {
+    return message != null;
+  }
+}
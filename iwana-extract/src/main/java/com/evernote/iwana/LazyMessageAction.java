@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * A {@link MessageAction} that does not parse the message upon reading. Instead, only a
+ * copy of the raw payload is kept, wrapped in a {@link LazyMessage} that parses it upon
+ * first access.
+ *
+ * Useful for messages that are merely stored for later lookup, and of which only a
+ * fraction is ever accessed.
+ */
+public abstract class LazyMessageAction<T extends Message, C extends IwanaContext<?>>
+    extends MessageAction<T, C> {
+
+  /**
+   * Constructs a new {@link LazyMessageAction} that parses protobuf messages using the
+   * given {@link Parser}, when needed.
+   *
+   * @param parser The parser to use.
+   */
+  protected LazyMessageAction(final Parser<T> parser) {
+    super(parser);
+  }
+
+  @Override
+  Object read(final CodedInputStream in) throws InvalidProtocolBufferException {
+    try {
+      return new LazyMessage<T>(getParser(), in.readRawBytes(in.getBytesUntilLimit()));
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  void dispatch(final Object payload, final ArchiveInfo ai, final MessageInfo mi,
+      final C context) throws IOException {
+    onMessage((LazyMessage<T>) payload, ai, mi, context);
+  }
+
+  /**
+   * Parses the given {@link LazyMessage}, since only the parsed message is immutable.
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  Object toShared(final Object payload) throws InvalidProtocolBufferException {
+    return ((LazyMessage<T>) payload).get();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  Object fromShared(final Object shared) {
+    return new LazyMessage<T>((T) shared);
+  }
+
+  /**
+   * Wraps the given, already parsed message into a {@link LazyMessage}, and calls
+   * {@link #onMessage(LazyMessage, ArchiveInfo, MessageInfo, IwanaContext)}.
+   */
+  @Override
+  protected final void onMessage(final T message, final ArchiveInfo ai,
+      final MessageInfo mi, final C context) throws IOException {
+    onMessage(new LazyMessage<T>(message), ai, mi, context);
+  }
+
+  /**
+   * Called upon encountering a particular message that matches this {@link MessageAction}
+   * (as defined by {@link MessageAction}, for example).
+   *
+   * @param message The {@link LazyMessage}, holding the not yet parsed payload.
+   * @param ai The {@link ArchiveInfo} that owns this message.
+   * @param mi The {@link MessageInfo} that describes this message.
+   * @param context The {@link IwanaContext} that holds the parser state for this
+   *          document.
+   * @throws IOException
+   */
+  protected abstract void onMessage(LazyMessage<T> message, final ArchiveInfo ai,
+      final MessageInfo mi, final C context) throws IOException;
+}
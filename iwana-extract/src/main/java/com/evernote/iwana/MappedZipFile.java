@@ -0,0 +1,360 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only, random-access view of a .zip file that is held in a {@link ByteBuffer}
+ * (usually memory-mapped from a {@link FileChannel}).
+ *
+ * Unlike {@link java.util.zip.ZipInputStream}, entries are located using the zip
+ * file's central directory, so unrelated entries (such as media files) never have to be
+ * read. The contents of {@link ZipEntry#STORED} entries are served as zero-copy slices of
+ * the underlying buffer. CRC values are not verified.
+ *
+ * ZIP64 archives are not supported; {@link #open(ByteBuffer)} throws a
+ * {@link ZipException} in that case, and callers should fall back to streaming.
+ */
+public class MappedZipFile {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+  static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final int FLAG_UTF8 = 1 << 11;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset CP437 = Charset.forName("IBM437");
+
+  private final ByteBuffer buf;
+  private final List<ZipEntry> entries;
+
+  private MappedZipFile(final ByteBuffer buf, final List<ZipEntry> entries) {
+    this.buf = buf;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Memory-maps the given {@link FileChannel} and reads its central directory.
+   *
+   * @param fc The channel, positioned anywhere.
+   * @return The {@link MappedZipFile}.
+   * @throws ZipException if the file cannot be read via its central directory (too
+   *           large, ZIP64, corrupt, etc.)
+   * @throws IOException on I/O error.
+   */
+  public static MappedZipFile map(final FileChannel fc) throws IOException {
+    final long size = fc.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new ZipException("File too large to be mapped: " + size);
+    }
+    return open(fc.map(FileChannel.MapMode.READ_ONLY, 0, size));
+  }
+
+  /**
+   * Reads the central directory of the .zip file held in the remaining bytes of the
+   * given {@link ByteBuffer}.
+   *
+   * @param buffer The buffer.
+   * @return The {@link MappedZipFile}.
+   * @throws ZipException if the data cannot be read via its central directory.
+   */
+  public static MappedZipFile open(final ByteBuffer buffer) throws ZipException {
+    final ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    final int eocd = findEndOfCentralDirectory(buf);
+    final CentralDirectory cd = CentralDirectory.read(buf, eocd, eocd);
+
+    ByteBuffer cdBuf = buf.duplicate();
+    cdBuf.limit((int) (cd.offset + cd.size));
+    cdBuf.position((int) cd.offset);
+    cdBuf = cdBuf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    return new MappedZipFile(buf, readEntries(cdBuf, cd));
+  }
+
+  /**
+   * Parses the central directory headers held in the given buffer.
+   *
+   * @param buf The central directory, in a little-endian buffer of its own.
+   * @param cd The location of the central directory.
+   * @return The entries, in the order listed in the central directory.
+   * @throws ZipException if a header is invalid.
+   */
+  static List<ZipEntry> readEntries(final ByteBuffer buf, final CentralDirectory cd)
+      throws ZipException {
+    final List<ZipEntry> entries = new ArrayList<>(cd.numEntries);
+    int ptr = 0;
+    final int cdEnd = buf.limit();
+    for (int i = 0; i < cd.numEntries; i++) {
+      if (ptr + CENTRAL_HEADER_SIZE > cdEnd || buf.getInt(ptr) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory header at offset "
+            + (cd.offset + ptr));
+      }
+
+      final int flags = buf.getShort(ptr + 8) & 0xFFFF;
+      final int method = buf.getShort(ptr + 10) & 0xFFFF;
+      final long crc = buf.getInt(ptr + 16) & 0xFFFFFFFFL;
+      final long compressedSize = buf.getInt(ptr + 20) & 0xFFFFFFFFL;
+      final long size = buf.getInt(ptr + 24) & 0xFFFFFFFFL;
+      final int nameLen = buf.getShort(ptr + 28) & 0xFFFF;
+      final int extraLen = buf.getShort(ptr + 30) & 0xFFFF;
+      final int commentLen = buf.getShort(ptr + 32) & 0xFFFF;
+      final long localHeaderOffset = buf.getInt(ptr + 42) & 0xFFFFFFFFL;
+
+      if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL
+          || localHeaderOffset == 0xFFFFFFFFL) {
+        throw new ZipException("ZIP64 archives are not supported");
+      }
+      if (ptr + CENTRAL_HEADER_SIZE + nameLen > cdEnd) {
+        throw new ZipException("Invalid central directory header at offset "
+            + (cd.offset + ptr));
+      }
+
+      byte[] nameBytes = new byte[nameLen];
+      ByteBuffer nameBuf = buf.duplicate();
+      nameBuf.position(ptr + CENTRAL_HEADER_SIZE);
+      nameBuf.get(nameBytes);
+      final String name = new String(nameBytes, (flags & FLAG_UTF8) != 0 ? UTF8 : CP437);
+
+      MappedEntry entry = new MappedEntry(name, localHeaderOffset);
+      entry.setMethod(method);
+      entry.setCrc(crc);
+      entry.setCompressedSize(compressedSize);
+      entry.setSize(size);
+      entries.add(entry);
+
+      ptr += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+    }
+    return entries;
+  }
+
+  /**
+   * Finds the end of central directory record in the given little-endian buffer, which
+   * must end where the zip file ends.
+   *
+   * @param buf The buffer.
+   * @return The position of the record in the buffer.
+   * @throws ZipException if there is no such record.
+   */
+  static int findEndOfCentralDirectory(final ByteBuffer buf) throws ZipException {
+    final int limit = buf.limit();
+    final int minPos = Math.max(0, limit - END_OF_CENTRAL_DIRECTORY_SIZE - 0xFFFF);
+    for (int pos = limit - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= minPos; pos--) {
+      if (buf.getInt(pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        int commentLen = buf.getShort(pos + 20) & 0xFFFF;
+        if (pos + END_OF_CENTRAL_DIRECTORY_SIZE + commentLen == limit) {
+          return pos;
+        }
+      }
+    }
+    throw new ZipException("Could not find end of central directory");
+  }
+
+  /**
+   * Returns the length of the local header at the given position of the given
+   * little-endian buffer, including the file name and extra field.
+   *
+   * @param buf The buffer, holding at least the fixed-size part of the header.
+   * @param pos The position of the header.
+   * @param entry The entry the header belongs to.
+   * @return The length.
+   * @throws ZipException if there is no local header at the given position.
+   */
+  static int localHeaderLength(final ByteBuffer buf, final int pos, final ZipEntry entry)
+      throws ZipException {
+    if ((long) pos + LOCAL_HEADER_SIZE > buf.limit()
+        || buf.getInt(pos) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header for entry " + entry.getName());
+    }
+    int nameLen = buf.getShort(pos + 26) & 0xFFFF;
+    int extraLen = buf.getShort(pos + 28) & 0xFFFF;
+    return LOCAL_HEADER_SIZE + nameLen + extraLen;
+  }
+
+  /**
+   * Returns all entries, in the order listed in the central directory.
+   *
+   * @return The entries.
+   */
+  public List<ZipEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the raw (possibly compressed) data of the given entry, as a slice of the
+   * underlying buffer.
+   *
+   * @param entry The entry, obtained from {@link #getEntries()}.
+   * @return The raw data.
+   * @throws ZipException if the entry's local header is invalid.
+   */
+  public ByteBuffer getRawData(final ZipEntry entry) throws ZipException {
+    final MappedEntry me = (MappedEntry) entry;
+    if (me.dataOffset < 0) {
+      final long lho = me.localHeaderOffset;
+      if (lho > buf.limit()) {
+        throw new ZipException("Invalid local header for entry " + me.getName());
+      }
+      me.dataOffset = lho + localHeaderLength(buf, (int) lho, me);
+    }
+
+    final long end = me.dataOffset + me.getCompressedSize();
+    if (end > buf.limit()) {
+      throw new ZipException("Entry data exceeds archive bounds: " + me.getName());
+    }
+
+    ByteBuffer data = buf.duplicate();
+    data.limit((int) end);
+    data.position((int) me.dataOffset);
+    return data.slice();
+  }
+
+  /**
+   * Returns the uncompressed data of the given {@link ZipEntry#STORED} entry, as a
+   * read-only slice of the underlying buffer.
+   *
+   * @param entry The entry, obtained from {@link #getEntries()}.
+   * @return The data.
+   * @throws ZipException if the entry is not stored, or its local header is invalid.
+   */
+  public ByteBuffer getStoredData(final ZipEntry entry) throws ZipException {
+    if (entry.getMethod() != ZipEntry.STORED) {
+      throw new ZipException("Entry is not stored: " + entry.getName());
+    }
+    return getRawData(entry).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns an {@link InputStream} that reads the uncompressed data of the given entry.
+   *
+   * @param entry The entry, obtained from {@link #getEntries()}.
+   * @return The stream.
+   * @throws ZipException if the compression method is unsupported, or the entry's local
+   *           header is invalid.
+   */
+  public InputStream getInputStream(final ZipEntry entry) throws ZipException {
+    switch (entry.getMethod()) {
+      case ZipEntry.STORED:
+        return new ByteBufferInputStream(getRawData(entry));
+      case ZipEntry.DEFLATED:
+        return new MappedInflaterInputStream(new ByteBufferInputStream(getRawData(entry)));
+      default:
+        throw new ZipException("Unsupported compression method " + entry.getMethod()
+            + " for entry " + entry.getName());
+    }
+  }
+
+  /**
+   * The location of a zip file's central directory, as recorded in its end of central
+   * directory record.
+   */
+  static final class CentralDirectory {
+    final int numEntries;
+    final long offset;
+    final long size;
+
+    private CentralDirectory(final int numEntries, final long offset, final long size) {
+      this.numEntries = numEntries;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    /**
+     * Reads the end of central directory record at the given position.
+     *
+     * @param buf A little-endian buffer holding the record.
+     * @param eocd The position of the record in the buffer.
+     * @param eocdOffset The offset of the record in the zip file.
+     * @return The location of the central directory, which precedes the record.
+     * @throws ZipException if the record is invalid, or a ZIP64 record.
+     */
+    static CentralDirectory read(final ByteBuffer buf, final int eocd,
+        final long eocdOffset) throws ZipException {
+      final int numEntries = buf.getShort(eocd + 10) & 0xFFFF;
+      final long cdSize = buf.getInt(eocd + 12) & 0xFFFFFFFFL;
+      final long cdOffset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+      if (numEntries == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+        throw new ZipException("ZIP64 archives are not supported");
+      }
+      if (cdOffset + cdSize > eocdOffset) {
+        throw new ZipException("Invalid central directory offset: " + cdOffset);
+      }
+      return new CentralDirectory(numEntries, cdOffset, cdSize);
+    }
+  }
+
+  /**
+   * A {@link ZipEntry} read from a central directory, which records where its local
+   * header is located.
+   */
+  static final class MappedEntry extends ZipEntry {
+    final long localHeaderOffset;
+    long dataOffset = -1;
+
+    MappedEntry(final String name, final long localHeaderOffset) {
+      super(name);
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  /**
+   * Inflates raw deflate data, releasing the {@link Inflater} upon {@link #close()}.
+   */
+  private static final class MappedInflaterInputStream extends InflaterInputStream {
+    private boolean eof = false;
+
+    MappedInflaterInputStream(final InputStream in) {
+      super(in, new Inflater(true), 8192);
+    }
+
+    @Override
+    protected void fill() throws IOException {
+      if (eof) {
+        throw new EOFException("Unexpected end of deflated entry");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        // "nowrap" inflaters may need an extra dummy byte at the end of the input
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      inf.end();
+      super.close();
+    }
+  }
+}
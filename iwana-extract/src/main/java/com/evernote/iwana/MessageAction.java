@@ -16,10 +16,10 @@
 package com.evernote.iwana;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
@@ -48,10 +48,10 @@ public abstract class MessageAction<T extends Message, C extends IwanaContext<?>
    * this {@link MessageAction} (as defined by {@link MessageAction}, for example).
    * 
    * The default implementation calls this instance's parser to read the message from the
-   * {@link InputStream} and to convert it into a protobuf Message, then calls
+   * given {@link CodedInputStream} and to convert it into a protobuf Message, then calls
    * {@link #onMessage(Message, ArchiveInfo, MessageInfo, IwanaContext)}.
    * 
-   * @param in The {@link InputStream} containing the payload of the message object.
+   * @param in The {@link CodedInputStream}, limited to the payload of the message object.
    * @param ai The {@link ArchiveInfo} that owns this message.
    * @param mi The {@link MessageInfo} that describes this message.
    * @param context The {@link IwanaContext} that holds the parser state for this
@@ -59,10 +59,74 @@ public abstract class MessageAction<T extends Message, C extends IwanaContext<?>
    * @throws InvalidProtocolBufferException
    * @throws IOException
    */
-  void onMessage(InputStream in, final ArchiveInfo ai, final MessageInfo mi,
+  void onMessage(final CodedInputStream in, final ArchiveInfo ai, final MessageInfo mi,
       final C context) throws InvalidProtocolBufferException, IOException {
-    T message = parser.parseFrom(in);
-    onMessage(message, ai, mi, context);
+    dispatch(read(in), ai, mi, context);
+  }
+
+  /**
+   * Reads the message payload, by default by parsing it using this instance's parser.
+   * 
+   * This method does not access any {@link IwanaContext}, and may therefore be called
+   * from a thread other than the one dispatching messages.
+   * 
+   * @param in The {@link CodedInputStream}, limited to the payload of the message object.
+   * @return The value to pass to {@link #dispatch(Object, ArchiveInfo, MessageInfo,
+   *         IwanaContext)}.
+   * @throws InvalidProtocolBufferException
+   */
+  Object read(final CodedInputStream in) throws InvalidProtocolBufferException {
+    return parser.parseFrom(in);
+  }
+
+  /**
+   * Hands a value returned by {@link #read(CodedInputStream)} to this action.
+   * 
+   * @param payload The value.
+   * @param ai The {@link ArchiveInfo} that owns this message.
+   * @param mi The {@link MessageInfo} that describes this message.
+   * @param context The {@link IwanaContext} that holds the parser state for this
+   *          document.
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  void dispatch(final Object payload, final ArchiveInfo ai, final MessageInfo mi,
+      final C context) throws IOException {
+    onMessage((T) payload, ai, mi, context);
+  }
+
+  /**
+   * Converts a value returned by {@link #read(CodedInputStream)} into an immutable form
+   * that may be shared between documents and threads. By default, the value is a parsed
+   * {@link Message}, which is immutable already.
+   * 
+   * @param payload The value.
+   * @return The shareable value.
+   * @throws InvalidProtocolBufferException
+   * @see #fromShared(Object)
+   */
+  Object toShared(final Object payload) throws InvalidProtocolBufferException {
+    return payload;
+  }
+
+  /**
+   * Converts a value returned by {@link #toShared(Object)} into a value that can be
+   * passed to {@link #dispatch(Object, ArchiveInfo, MessageInfo, IwanaContext)}.
+   * 
+   * @param shared The shared value.
+   * @return The value.
+   */
+  Object fromShared(final Object shared) {
+    return shared;
+  }
+
+  /**
+   * Returns the parser used by this instance.
+   * 
+   * @return The parser.
+   */
+  Parser<T> getParser() {
+    return parser;
   }
 
   /**
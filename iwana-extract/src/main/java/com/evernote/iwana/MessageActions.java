@@ -16,12 +16,13 @@
 package com.evernote.iwana;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
@@ -31,10 +32,15 @@ import com.google.protobuf.Message;
  * A {@link MessageAction} can be called for one or more message types. A type is an
  * application-specific integer value that is defined in an Objective-C
  * {@code TSPRegistry} instance.
+ * 
+ * Upon first lookup, the registered actions are compiled into an immutable
+ * {@link DispatchTable}, so that the per-message lookup does not box the type. Any
+ * subsequent call to {@link #setAction(int, MessageAction)} discards the compiled table.
  */
 public class MessageActions {
   private final Map<Integer, MessageAction<? extends Message, ? extends IwanaContext<?>>> actions =
       new HashMap<>();
+  private volatile DispatchTable table = null;
 
   /**
    * Creates a new {@link MessageAction} registry.
@@ -60,6 +66,7 @@ public class MessageActions {
   public void setAction(final int type,
       final MessageAction<? extends Message, ? extends IwanaContext<?>> action) {
     actions.put(type, action);
+    table = null;
   }
 
   /**
@@ -74,6 +81,46 @@ public class MessageActions {
     for (int type : types) {
       actions.put(type, ma);
     }
+    table = null;
+  }
+
+  /**
+   * Returns the {@link MessageAction} registered for the given type.
+   * 
+   * @param type The type.
+   * @return The action, or {@code null} if there is none.
+   */
+  MessageAction<? extends Message, ? extends IwanaContext<?>> getAction(final int type) {
+    return getDispatchTable().get(type);
+  }
+
+  /**
+   * Checks whether a {@link MessageAction} is registered for the given type, i.e.,
+   * whether messages of that type need to be parsed at all.
+   * 
+   * @param type The type.
+   * @return {@code true} if there is an action.
+   */
+  boolean hasAction(final int type) {
+    return getDispatchTable().get(type) != null;
+  }
+
+  /**
+   * Returns the compiled {@link DispatchTable}, compiling it if necessary.
+   * 
+   * @return The table.
+   */
+  DispatchTable getDispatchTable() {
+    DispatchTable t = table;
+    if (t == null) {
+      synchronized (actions) {
+        t = table;
+        if (t == null) {
+          t = table = new DispatchTable(actions);
+        }
+      }
+    }
+    return t;
   }
 
   /**
@@ -81,7 +128,7 @@ public class MessageActions {
    * 
    * If no action is associated with the message type, the message is silently skipped.
    * 
-   * @param in The {@link InputStream} containing the payload of the message object.
+   * @param in The {@link CodedInputStream}, limited to the payload of the message object.
    * @param ai The {@link ArchiveInfo} that owns this message.
    * @param mi The {@link MessageInfo} that describes this message.
    * @param context The {@link IwanaContext} that holds the parser state for this
@@ -90,12 +137,81 @@ public class MessageActions {
    * @throws IOException
    */
   @SuppressWarnings("unchecked")
-  void onMessage(final InputStream in, final ArchiveInfo ai, final MessageInfo mi,
-      IwanaContext<?> context) throws InvalidProtocolBufferException, IOException {
+  void onMessage(final CodedInputStream in, final ArchiveInfo ai, final MessageInfo mi,
+      IwanaContext<?> context)
+      throws InvalidProtocolBufferException, IOException {
     final MessageAction<? extends Message, ? extends IwanaContext<?>> action =
-        actions.get(mi.getType());
+        getAction(mi.getType());
     if (action != null) {
       ((MessageAction<Message, IwanaContext<?>>) action).onMessage(in, ai, mi, context);
     }
   }
+
+  /**
+   * An immutable snapshot of the registered {@link MessageAction}s.
+   * 
+   * Types between 0 and {@link #MAX_DENSE_TYPE} (which covers all types defined by the
+   * iWork applications) are looked up in a dense array; any other types are looked up via
+   * binary search.
+   */
+  static final class DispatchTable {
+    private static final int MAX_DENSE_TYPE = 0xffff;
+
+    private final MessageAction<?, ?>[] dense;
+    private final int[] sparseTypes;
+    private final MessageAction<?, ?>[] sparseActions;
+
+    DispatchTable(
+        final Map<Integer, MessageAction<? extends Message, ? extends IwanaContext<?>>> actions) {
+      int maxDense = -1;
+      int numSparse = 0;
+      for (int type : actions.keySet()) {
+        if (type >= 0 && type <= MAX_DENSE_TYPE) {
+          maxDense = Math.max(maxDense, type);
+        } else {
+          numSparse++;
+        }
+      }
+
+      dense = new MessageAction<?, ?>[maxDense + 1];
+      sparseTypes = new int[numSparse];
+      int i = 0;
+      for (Map.Entry<Integer, MessageAction<? extends Message, ? extends IwanaContext<?>>> en : actions
+          .entrySet()) {
+        final int type = en.getKey();
+        if (type >= 0 && type <= MAX_DENSE_TYPE) {
+          dense[type] = en.getValue();
+        } else {
+          sparseTypes[i++] = type;
+        }
+      }
+      Arrays.sort(sparseTypes);
+      sparseActions = new MessageAction<?, ?>[numSparse];
+      for (i = 0; i < numSparse; i++) {
+        sparseActions[i] = actions.get(sparseTypes[i]);
+      }
+    }
+
+    /**
+     * Returns the {@link MessageAction} registered for the given type.
+     * 
+     * @param type The type.
+     * @return The action, or {@code null} if there is none.
+     */
+    MessageAction<? extends Message, ? extends IwanaContext<?>> get(final int type) {
+      if (type >= 0 && type < dense.length) {
+        return cast(dense[type]);
+      } else if (sparseTypes.length == 0) {
+        return null;
+      }
+      final int index = Arrays.binarySearch(sparseTypes, type);
+      return index < 0 ? null : cast(sparseActions[index]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MessageAction<? extends Message, ? extends IwanaContext<?>> cast(
+        final MessageAction<?, ?> action) {
+      return (MessageAction<? extends Message, ? extends IwanaContext<?>>) action;
+    }
+  }
 }
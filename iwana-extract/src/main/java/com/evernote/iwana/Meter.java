@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free counter that also measures its rolling rate: an exponentially weighted
+ * moving average over one minute, updated every {@value #TICK_SECONDS} seconds (in the
+ * same way as the load average of Unix systems).
+ */
+final class Meter {
+  private static final int TICK_SECONDS = 5;
+  private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(TICK_SECONDS);
+  private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+  /**
+   * After this many idle ticks, the rate is indistinguishable from zero.
+   */
+  private static final int MAX_TICKS = 1000;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong uncounted = new AtomicLong();
+  private final AtomicLong lastTick;
+  private final long startTime;
+
+  /**
+   * The rate, in events per second. Only written by the thread that won the tick.
+   */
+  private volatile double rate = 0;
+  private volatile boolean initialized = false;
+
+  Meter() {
+    this.startTime = System.nanoTime();
+    this.lastTick = new AtomicLong(startTime);
+  }
+
+  /**
+   * Adds the given number of events.
+   */
+  void mark(final long n) {
+    tickIfNecessary();
+    count.addAndGet(n);
+    uncounted.addAndGet(n);
+  }
+
+  /**
+   * Returns the total number of events.
+   */
+  long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the rate over the last minute, in events per second.
+   */
+  double getRate() {
+    tickIfNecessary();
+    return rate;
+  }
+
+  /**
+   * Returns the average rate since this meter was created, in events per second.
+   */
+  double getMeanRate() {
+    final long elapsed = System.nanoTime() - startTime;
+    return elapsed <= 0 ? 0 : count.get() * 1e9 / elapsed;
+  }
+
+  private void tickIfNecessary() {
+    final long oldTick = lastTick.get();
+    final long now = System.nanoTime();
+    final long age = now - oldTick;
+    if (age > TICK_NANOS && lastTick.compareAndSet(oldTick, now - age % TICK_NANOS)) {
+      final long ticks = Math.min(age / TICK_NANOS, MAX_TICKS);
+      for (long i = 0; i < ticks; i++) {
+        tick();
+      }
+    }
+  }
+
+  private void tick() {
+    final double instantRate = uncounted.getAndSet(0) / (double) TICK_SECONDS;
+    if (initialized) {
+      rate += ALPHA * (instantRate - rate);
+    } else {
+      rate = instantRate;
+      initialized = true;
+    }
+  }
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Decodes the {@code .iwa} files of one {@code Index.zip} concurrently.
+ *
+ * Snappy decoding and protobuf parsing are performed on the given {@link Executor}, while
+ * the parsed messages are handed to their {@link MessageAction}s on the calling thread,
+ * in the order in which the files appear in the archive. The {@link IwanaContext} is
+ * therefore only ever accessed from one thread, and sees exactly the same sequence of
+ * callbacks as in sequential mode.
+ *
+ * At most {@code maxPending} files are decoded ahead of the file currently being
+ * dispatched, which bounds the number of parsed messages held in memory.
+ */
+final class ParallelIWADecoder<T extends IwanaParserCallback> {
+  /**
+   * The largest buffer {@link #readFully} allocates up front.
+   */
+  static final int MAX_INITIAL_CAPACITY = 1024 * 1024;
+
+  private final IwanaParser<T> parser;
+  private final IwanaContext<T> context;
+  private final Executor executor;
+  private final int maxPending;
+
+  private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+  ParallelIWADecoder(final IwanaParser<T> parser, final IwanaContext<T> context,
+      final Executor executor, final int maxPending) {
+    this.parser = parser;
+    this.context = context;
+    this.executor = executor;
+    this.maxPending = Math.max(1, maxPending);
+  }
+
+  /**
+   * Schedules the given zip entry for processing.
+   *
+   * @param entry The zip entry.
+   * @param in The input stream, positioned at the start of the entry's data. Only valid
+   *          during this call. May be {@code null} if {@code zip} is given.
+   * @param zip The archive containing the entry if it can be read again later via
+   *          random-access, or {@code null}.
+   * @return {@code true} if the entry was a valid *.iwa file.
+   * @throws IOException
+   */
+  boolean add(final ZipEntry entry, final InputStream in, final MappedZipFile zip)
+      throws IOException {
+    if (entry.isDirectory()) {
+      return false;
+    }
+    final String name = entry.getName();
+    final boolean isIWA = name.endsWith(".iwa");
+    final boolean accepted = isIWA && context.acceptIWAFile(name);
+    if (isIWA) {
+      parser.countIWAFile(accepted);
+    }
+
+    if (accepted) {
+      final MessageActions actions = context.getMessageTypeActions();
+      final IWAMemo memo = parser.getIWAMemo();
+      final boolean memoize = memo != null && memo.accepts(name);
+      final boolean trackArchives = context.isTrackingArchives();
+      final ParseProfile profile = parser.newFileProfile();
+      final ChunkTrace trace = parser.newChunkTrace(name);
+      final ParseBudget budget = parser.getBudget();
+      final byte[] data = (zip == null)
+          ? readFully(profile == null ? in : new ProfilingInputStream(in, profile,
+              ParseProfile.Stage.ZIP), entry.getSize(), budget) : null;
+      FutureTask<DecodedIWA> future = new FutureTask<>(new Callable<DecodedIWA>() {
+        @Override
+        public DecodedIWA call() throws IOException {
+          try (InputStream din = (zip == null) ? new ByteArrayInputStream(data)
+              : profile == null ? zip.getInputStream(entry) : new ProfilingInputStream(
+                  zip.getInputStream(entry), profile, ParseProfile.Stage.ZIP)) {
+            if (!memoize) {
+              return decode(din, actions, null, trackArchives, profile, trace, budget);
+            }
+            final byte[] bytes = (data != null) ? data
+                : readFully(din, entry.getSize(), budget);
+            final IWAMemo.Key key = memo.keyFor(name, bytes, actions);
+            final IWAMemo.Messages memoized = memo.get(key);
+            if (memoized != null) {
+              return new DecodedIWA(memoized);
+            }
+            return decode(new ByteArrayInputStream(bytes), actions,
+                new IWAMemo.Recorder(key), trackArchives, profile, trace, budget);
+          }
+        }
+      });
+      enqueue(new Pending(name, future, profile));
+      executor.execute(future);
+    } else if (zip != null) {
+      enqueue(new Pending(name, zip, entry));
+    } else {
+      // the stream can't be revisited later
+      drain(0);
+      context.onSkipFile(name, in);
+    }
+
+    return isIWA;
+  }
+
+  /**
+   * Dispatches all pending files.
+   *
+   * @throws IOException
+   */
+  void finish() throws IOException {
+    drain(0);
+  }
+
+  /**
+   * Cancels all pending work. Safe to call after {@link #finish()}.
+   */
+  void cancel() {
+    for (Pending p : pending) {
+      if (p.future != null) {
+        p.future.cancel(true);
+      }
+    }
+    pending.clear();
+  }
+
+  private void enqueue(final Pending p) throws IOException {
+    drain(maxPending - 1);
+    pending.add(p);
+  }
+
+  private void drain(final int maxRemaining) throws IOException {
+    while (pending.size() > maxRemaining) {
+      dispatch(pending.peek());
+      pending.remove();
+    }
+  }
+
+  private void dispatch(final Pending p) throws IOException {
+    if (p.zip != null) {
+      try (InputStream in = p.zip.getInputStream(p.entry)) {
+        context.onSkipFile(p.name, in);
+      }
+      return;
+    }
+
+    final DecodedIWA decoded = get(p.future);
+    final ParseListener listener = parser.getMessageListener();
+
+    parser.beginParseIWAFile(p.name, context, p.profile);
+    try {
+      context.setCurrentFile(p.name);
+      if (decoded.memoized != null) {
+        IwanaParser.replay(decoded.memoized, context.getMessageTypeActions(), context,
+            p.profile, parser.getBudget());
+        return;
+      }
+      for (DecodedMessage m : decoded.messages) {
+        if (m.exception != null) {
+          parser.onInvalidMessage(m.ai, m.mi, m.exception);
+          continue;
+        }
+        try {
+          if (p.profile == null) {
+            m.dispatch(context);
+          } else {
+            final long time = p.profile.nanoTime();
+            if (listener == null) {
+              m.dispatch(context);
+            } else {
+              listener.onBeginMessage();
+              m.dispatch(context);
+              listener.onEndMessage(m.mi.getType(), m.mi.getLength());
+            }
+            p.profile.add(ParseProfile.Stage.MESSAGE_HANDLER, p.profile.nanoTime() - time,
+                0);
+          }
+        } catch (InvalidProtocolBufferException e) {
+          // like in sequential mode, where the action runs within IWAReader
+          parser.onInvalidMessage(m.ai, m.mi, e);
+        }
+      }
+      if (decoded.failure != null) {
+        throw decoded.failure;
+      }
+      if (decoded.archives != null) {
+        context.onArchivesRead(decoded.archives.toArray());
+      }
+      if (decoded.recorder != null) {
+        final IWAMemo.Messages messages = decoded.recorder.toMessages();
+        if (messages != null) {
+          parser.getIWAMemo().put(decoded.recorder.getKey(), messages);
+        }
+      }
+    } finally {
+      parser.endParseIWAFile(p.name, context, p.profile);
+    }
+  }
+
+  private static DecodedIWA get(final FutureTask<DecodedIWA> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decoding .iwa file");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  /**
+   * Decodes an .iwa file, parsing all messages that have a registered action. Called on
+   * a worker thread.
+   *
+   * @param recorder Records the messages for the {@link IWAMemo}, or {@code null}.
+   * @param trackArchives Whether to collect the identifiers of all archives.
+   * @param profile The file's profile, or {@code null}.
+   * @param trace The file's chunk trace, or {@code null}.
+   * @param budget The document's budget, or {@code null}.
+   */
+  private static DecodedIWA decode(final InputStream in, final MessageActions actions,
+      final IWAMemo.Recorder recorder, final boolean trackArchives,
+      final ParseProfile profile, final ChunkTrace trace, final ParseBudget budget) {
+    final DecodedIWA decoded = new DecodedIWA(recorder,
+        trackArchives ? new ArchiveIdentifiers() : null);
+    final ArchiveIdentifiers archives = decoded.archives;
+    try {
+      final IWAReader reader = new IWAReader(in, null, 0, profile, trace);
+      reader.setBudget(budget);
+      reader.read(new IWAReader.MessageSink() {
+        @Override
+        boolean accept(MessageInfo mi) {
+          return actions.hasAction(mi.getType());
+        }
+
+        @Override
+        void onArchive(ArchiveInfo ai) {
+          if (archives != null) {
+            archives.add(ai.getIdentifier());
+          }
+          if (recorder != null) {
+            recorder.addArchive(ai.getIdentifier());
+          }
+        }
+
+        @Override
+        void onMessage(CodedInputStream in, ArchiveInfo ai, MessageInfo mi)
+            throws IOException {
+          final MessageAction<?, ?> action = actions.getAction(mi.getType());
+          final long time = (profile == null) ? 0 : profile.nanoTime();
+          final int length = in.getBytesUntilLimit();
+          final Object payload =
+              (recorder == null) ? action.read(in) : recorder.read(in, ai, mi, action);
+          if (profile != null) {
+            profile.add(ParseProfile.Stage.MESSAGE_PARSE, profile.nanoTime() - time,
+                length);
+            profile.countMessage(mi.getType());
+          }
+          decoded.messages.add(new DecodedMessage(ai, mi, action, payload, null));
+        }
+
+        @Override
+        void onInvalidMessage(ArchiveInfo ai, MessageInfo mi,
+            InvalidProtocolBufferException e) {
+          if (recorder != null) {
+            recorder.invalidate();
+          }
+          decoded.messages.add(new DecodedMessage(ai, mi, null, null, e));
+        }
+      });
+    } catch (IOException e) {
+      decoded.failure = e;
+    }
+    return decoded;
+  }
+
+  /**
+   * Reads the remaining data of the given stream, charging every byte held in
+   * memory to the given budget.
+   *
+   * The size hint comes from the zip entry and is not trusted; it only presizes
+   * the buffer up to {@link #MAX_INITIAL_CAPACITY} bytes.
+   *
+   * @param sizeHint The expected length, or {@code -1} if unknown.
+   * @param budget The budget to charge, or {@code null}.
+   * @throws ParseLimitExceededException if the budget is exceeded.
+   */
+  static byte[] readFully(final InputStream in, final long sizeHint,
+      final ParseBudget budget) throws IOException {
+    ByteArrayOutputStream bos =
+        new ByteArrayOutputStream(sizeHint > 0 ? (int) Math.min(sizeHint,
+            MAX_INITIAL_CAPACITY) : 64 * 1024);
+    byte[] buf = new byte[8192];
+    int read;
+    while ((read = in.read(buf)) != -1) {
+      if (budget != null) {
+        budget.addBytes(read);
+      }
+      bos.write(buf, 0, read);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * A file that is being decoded or looked up in the {@link IWAMemo} (with
+   * {@link #future} set), or that is to be skipped (with {@link #zip} set).
+   */
+  private static final class Pending {
+    final String name;
+    final FutureTask<DecodedIWA> future;
+    final MappedZipFile zip;
+    final ZipEntry entry;
+    final ParseProfile profile;
+
+    private Pending(final String name, final FutureTask<DecodedIWA> future,
+        final MappedZipFile zip, final ZipEntry entry, final ParseProfile profile) {
+      this.name = name;
+      this.future = future;
+      this.zip = zip;
+      this.entry = entry;
+      this.profile = profile;
+    }
+
+    Pending(final String name, final FutureTask<DecodedIWA> future,
+        final ParseProfile profile) {
+      this(name, future, null, null, profile);
+    }
+
+    Pending(final String name, final MappedZipFile zip, final ZipEntry entry) {
+      this(name, null, zip, entry, null);
+    }
+  }
+
+  /**
+   * The decoded messages of a file, or its memoized messages (with {@link #memoized}
+   * set).
+   */
+  private static final class DecodedIWA {
+    final List<DecodedMessage> messages = new ArrayList<>();
+    final IWAMemo.Recorder recorder;
+    final IWAMemo.Messages memoized;
+
+    /**
+     * The identifiers of all archives, or {@code null} if not tracked.
+     */
+    final ArchiveIdentifiers archives;
+    IOException failure = null;
+
+    DecodedIWA(final IWAMemo.Recorder recorder, final ArchiveIdentifiers archives) {
+      this.recorder = recorder;
+      this.memoized = null;
+      this.archives = archives;
+    }
+
+    DecodedIWA(final IWAMemo.Messages memoized) {
+      this.recorder = null;
+      this.memoized = memoized;
+      this.archives = null;
+    }
+  }
+
+  private static final class DecodedMessage {
+    final ArchiveInfo ai;
+    final MessageInfo mi;
+    final MessageAction<?, ?> action;
+    final Object payload;
+    final InvalidProtocolBufferException exception;
+
+    DecodedMessage(final ArchiveInfo ai, final MessageInfo mi,
+        final MessageAction<?, ?> action, final Object payload,
+        final InvalidProtocolBufferException exception) {
+      this.ai = ai;
+      this.mi = mi;
+      this.action = action;
+      this.payload = payload;
+      this.exception = exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    void dispatch(final IwanaContext<?> context) throws IOException {
+      ((MessageAction<Message, IwanaContext<?>>) action).dispatch(payload, ai, mi,
+          context);
+    }
+  }
+}
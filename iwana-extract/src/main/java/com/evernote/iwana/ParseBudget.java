@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces the {@link ParseLimits} of one document. The counters are shared by all
+ * threads that decode the document's {@code .iwa} files, so instances are thread-safe.
+ */
+final class ParseBudget {
+  private final ParseLimits limits;
+  private final long startTime;
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+
+  /**
+   * Creates a new budget, starting the clock for {@link ParseLimits.Limit#WALL_TIME}.
+   *
+   * @param limits The limits.
+   */
+  ParseBudget(final ParseLimits limits) {
+    this.limits = limits;
+    this.startTime = System.nanoTime();
+  }
+
+  /**
+   * Throws if the document's time is up.
+   *
+   * @throws ParseLimitExceededException
+   */
+  void checkDeadline() throws ParseLimitExceededException {
+    final long maxWallNanos = limits.getMaxWallNanos();
+    if (maxWallNanos != Long.MAX_VALUE && System.nanoTime() - startTime > maxWallNanos) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.WALL_TIME,
+          "Parsing took longer than " + limits.getMaxWallNanos() / 1000000 + " ms");
+    }
+  }
+
+  /**
+   * Charges a Snappy chunk, before it is decompressed.
+   *
+   * @param compressedLength The length of the chunk's data.
+   * @param uncompressedLength The length of the decompressed data, as declared by the
+   *          chunk.
+   * @throws ParseLimitExceededException
+   * @throws IOException if either length is negative.
+   */
+  void addChunk(final int compressedLength, final int uncompressedLength)
+      throws IOException {
+    if (compressedLength < 0 || uncompressedLength < 0) {
+      throw new IOException("Corrupt Snappy chunk: " + compressedLength + " bytes, "
+          + uncompressedLength + " decompressed");
+    }
+    if (uncompressedLength > compressedLength * limits.getMaxCompressionRatio()) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.COMPRESSION_RATIO,
+          "Snappy chunk expands from " + compressedLength + " to " + uncompressedLength
+              + " bytes");
+    }
+    if (uncompressedBytes.addAndGet(uncompressedLength) > limits
+        .getMaxUncompressedBytes()) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.UNCOMPRESSED_BYTES,
+          "Decompressed data exceeds " + limits.getMaxUncompressedBytes() + " bytes");
+    }
+    checkDeadline();
+  }
+
+  /**
+   * Charges data that is read or skipped without being decompressed from a Snappy chunk
+   * (such as padding chunks, or data inflated from a zip archive).
+   *
+   * @param n The number of bytes.
+   * @throws ParseLimitExceededException
+   */
+  void addBytes(final long n) throws ParseLimitExceededException {
+    if (uncompressedBytes.addAndGet(n) > limits.getMaxUncompressedBytes()) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.UNCOMPRESSED_BYTES,
+          "Decompressed data exceeds " + limits.getMaxUncompressedBytes() + " bytes");
+    }
+    checkDeadline();
+  }
+
+  /**
+   * Charges the messages of an archive.
+   *
+   * @param n The number of messages.
+   * @throws ParseLimitExceededException
+   */
+  void addMessages(final int n) throws ParseLimitExceededException {
+    if (messages.addAndGet(n) > limits.getMaxMessages()) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.MESSAGE_COUNT,
+          "Document has more than " + limits.getMaxMessages() + " messages");
+    }
+  }
+
+  /**
+   * Checks the length of a message, as declared by its {@code MessageInfo}.
+   *
+   * @param length The length.
+   * @throws ParseLimitExceededException
+   */
+  void checkMessageLength(final int length) throws ParseLimitExceededException {
+    if (length > limits.getMaxMessageLength()) {
+      throw new ParseLimitExceededException(ParseLimits.Limit.MESSAGE_LENGTH,
+          "Message of " + length + " bytes exceeds " + limits.getMaxMessageLength()
+              + " bytes");
+    }
+  }
+}
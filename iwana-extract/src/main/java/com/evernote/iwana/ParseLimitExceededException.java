@@ -0,0 +1,48 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a document exceeds one of its {@link ParseLimits}.
+ */
+public class ParseLimitExceededException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final ParseLimits.Limit limit;
+
+  /**
+   * Creates a new {@link ParseLimitExceededException}.
+   *
+   * @param limit The limit that was exceeded.
+   * @param message The detail message.
+   */
+  public ParseLimitExceededException(final ParseLimits.Limit limit,
+      final String message) {
+    super(message);
+    this.limit = limit;
+  }
+
+  /**
+   * Returns the limit that was exceeded.
+   *
+   * @return The limit.
+   */
+  public ParseLimits.Limit getLimit() {
+    return limit;
+  }
+}
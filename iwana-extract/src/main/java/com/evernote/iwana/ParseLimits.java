@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document limits that bound the time and memory spent on a single, possibly crafted
+ * or corrupt, document. A document that exceeds any of the limits is aborted with a
+ * {@link ParseLimitExceededException}.
+ *
+ * The limits are checked as the data is decoded (per Snappy chunk, per archive and per
+ * message header), before the corresponding memory is allocated. Instances are
+ * immutable, and may be shared by any number of parsers.
+ *
+ * @see IwanaParser#setLimits(ParseLimits)
+ */
+public final class ParseLimits {
+  /**
+   * No limits at all.
+   */
+  public static final ParseLimits NONE = new ParseLimits(Long.MAX_VALUE, Long.MAX_VALUE,
+      Double.POSITIVE_INFINITY, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+  /**
+   * Generous limits that no genuine document should come close to, but that stop
+   * decompression bombs and runaway documents: 10 minutes, 1 GB of decompressed data,
+   * the highest ratio Snappy can achieve, 50 million messages of at most 256 MB each.
+   */
+  public static final ParseLimits DEFAULT = NONE.withMaxWallTime(10, TimeUnit.MINUTES)
+      .withMaxUncompressedBytes(1L << 30).withMaxCompressionRatio(22)
+      .withMaxMessages(50000000).withMaxMessageLength(256 << 20);
+
+  /**
+   * The limits that can be exceeded.
+   */
+  public enum Limit {
+    /**
+     * The elapsed time since the start of the document.
+     */
+    WALL_TIME,
+
+    /**
+     * The total size of the decompressed data: the {@code .iwa} data as decompressed from
+     * Snappy (including padding and skipped chunks), {@code .iwa} files buffered in
+     * memory, and any other data inflated from the document's zip archives.
+     */
+    UNCOMPRESSED_BYTES,
+
+    /**
+     * The ratio of decompressed to compressed size of any Snappy chunk.
+     */
+    COMPRESSION_RATIO,
+
+    /**
+     * The total number of messages in the document's archives.
+     */
+    MESSAGE_COUNT,
+
+    /**
+     * The size of any single message.
+     */
+    MESSAGE_LENGTH
+  }
+
+  private final long maxWallNanos;
+  private final long maxUncompressedBytes;
+  private final double maxCompressionRatio;
+  private final long maxMessages;
+  private final int maxMessageLength;
+
+  private ParseLimits(final long maxWallNanos, final long maxUncompressedBytes,
+      final double maxCompressionRatio, final long maxMessages,
+      final int maxMessageLength) {
+    this.maxWallNanos = maxWallNanos;
+    this.maxUncompressedBytes = maxUncompressedBytes;
+    this.maxCompressionRatio = maxCompressionRatio;
+    this.maxMessages = maxMessages;
+    this.maxMessageLength = maxMessageLength;
+  }
+
+  /**
+   * Returns a copy of these limits with the given maximum time per document.
+   *
+   * @param time The time, or {@link Long#MAX_VALUE} for no limit.
+   * @param unit The unit of {@code time}.
+   * @return The new limits.
+   */
+  public ParseLimits withMaxWallTime(final long time, final TimeUnit unit) {
+    checkPositive(time);
+    return new ParseLimits(unit.toNanos(time), maxUncompressedBytes, maxCompressionRatio,
+        maxMessages, maxMessageLength);
+  }
+
+  /**
+   * Returns a copy of these limits with the given maximum total size of the decompressed
+   * data per document (see {@link Limit#UNCOMPRESSED_BYTES}).
+   *
+   * @param bytes The size, or {@link Long#MAX_VALUE} for no limit.
+   * @return The new limits.
+   */
+  public ParseLimits withMaxUncompressedBytes(final long bytes) {
+    checkPositive(bytes);
+    return new ParseLimits(maxWallNanos, bytes, maxCompressionRatio, maxMessages,
+        maxMessageLength);
+  }
+
+  /**
+   * Returns a copy of these limits with the given maximum compression ratio of any
+   * Snappy chunk. Snappy itself does not compress by more than a factor of about 22, so
+   * chunks that claim a higher ratio are corrupt.
+   *
+   * @param ratio The ratio, or {@link Double#POSITIVE_INFINITY} for no limit.
+   * @return The new limits.
+   */
+  public ParseLimits withMaxCompressionRatio(final double ratio) {
+    if (!(ratio >= 1)) {
+      throw new IllegalArgumentException("ratio must be at least 1: " + ratio);
+    }
+    return new ParseLimits(maxWallNanos, maxUncompressedBytes, ratio, maxMessages,
+        maxMessageLength);
+  }
+
+  /**
+   * Returns a copy of these limits with the given maximum number of messages per
+   * document.
+   *
+   * @param messages The number of messages, or {@link Long#MAX_VALUE} for no limit.
+   * @return The new limits.
+   */
+  public ParseLimits withMaxMessages(final long messages) {
+    checkPositive(messages);
+    return new ParseLimits(maxWallNanos, maxUncompressedBytes, maxCompressionRatio,
+        messages, maxMessageLength);
+  }
+
+  /**
+   * Returns a copy of these limits with the given maximum size of a single message.
+   *
+   * @param bytes The size, or {@link Integer#MAX_VALUE} for no limit.
+   * @return The new limits.
+   */
+  public ParseLimits withMaxMessageLength(final int bytes) {
+    checkPositive(bytes);
+    return new ParseLimits(maxWallNanos, maxUncompressedBytes, maxCompressionRatio,
+        maxMessages, bytes);
+  }
+
+  private static void checkPositive(final long value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException("limit must be positive: " + value);
+    }
+  }
+
+  public long getMaxWallNanos() {
+    return maxWallNanos;
+  }
+
+  public long getMaxUncompressedBytes() {
+    return maxUncompressedBytes;
+  }
+
+  public double getMaxCompressionRatio() {
+    return maxCompressionRatio;
+  }
+
+  public long getMaxMessages() {
+    return maxMessages;
+  }
+
+  public int getMaxMessageLength() {
+    return maxMessageLength;
+  }
+
+  @Override
+  public String toString() {
+    return "ParseLimits[wallNanos=" + maxWallNanos + ", uncompressedBytes="
+        + maxUncompressedBytes + ", compressionRatio=" + maxCompressionRatio
+        + ", messages=" + maxMessages + ", messageLength=" + maxMessageLength + "]";
+  }
+}
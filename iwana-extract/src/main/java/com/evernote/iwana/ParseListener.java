@@ -0,0 +1,129 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+/**
+ * Receives a {@link ParseProfile} for every {@code .iwa} file and every document parsed by
+ * an {@link IwanaParser}, telling where the parsing time goes.
+ *
+ * Beyond the profiles, a listener may trace individual files, message handlers and Snappy
+ * chunks (for example, to emit events to a tracing system); each {@code onBegin...} call
+ * is followed by the matching {@code onEnd...} call on the same thread, unless parsing
+ * fails in between.
+ *
+ * Except for the Snappy chunk callbacks, all methods are called on the thread that calls
+ * {@link IwanaParser}'s {@code parse} methods. A listener that is shared by several
+ * parsers must therefore be thread-safe. Profiling is disabled unless a listener is set;
+ * the overhead is then limited to a few {@code null} checks per message.
+ *
+ * @see IwanaParser#setParseListener(ParseListener)
+ */
+public abstract class ParseListener {
+  /**
+   * Called before parsing a document.
+   *
+   * @param documentName The name of the document (e.g., its path), or {@code null} if
+   *          unknown.
+   */
+  public void onBeginDocument(String documentName) {
+  }
+
+  /**
+   * Called before {@link IwanaContext#onBeginParseIWAFile(String)}.
+   *
+   * @param name The name of the file.
+   */
+  public void onBeginIWAFile(String name) {
+  }
+
+  /**
+   * Called after {@link IwanaContext#onEndParseIWAFile(String)}, once an {@code .iwa}
+   * file has been parsed (or replayed from an {@link IWAMemo}).
+   *
+   * @param name The name of the file.
+   * @param profile The profile of this file. Must not be modified.
+   */
+  public void onIWAFile(String name, ParseProfile profile) {
+  }
+
+  /**
+   * Called after parsing a document, even if parsing failed.
+   *
+   * @param documentName The name of the document, or {@code null} if unknown.
+   * @param profile The profile of the entire document, including all {@code .iwa} files.
+   *          Must not be modified.
+   */
+  public void onEndDocument(String documentName, ParseProfile profile) {
+  }
+
+  /**
+   * Checks whether this listener needs the time spent per stage in the
+   * {@link ParseProfile}s it receives. If not, profiles only count bytes and messages,
+   * which avoids timing every read and every message. Checked once per document.
+   *
+   * @return {@code true} by default.
+   */
+  protected boolean isTimingStages() {
+    return true;
+  }
+
+  /**
+   * Checks whether {@link #onBeginMessage()} and {@link #onEndMessage(int, int)} should
+   * be called for the next document. Checked once per document.
+   *
+   * @return {@code true} by default.
+   */
+  protected boolean isListeningToMessages() {
+    return true;
+  }
+
+  /**
+   * Called before a message is handed to its {@link MessageAction}. Not called for
+   * messages that are replayed from an {@link IWAMemo}, or if
+   * {@link #isListeningToMessages()} returned {@code false}.
+   */
+  public void onBeginMessage() {
+  }
+
+  /**
+   * Called after a message has been handled by its {@link MessageAction}.
+   *
+   * @param type The message type.
+   * @param length The length of the message's payload, in bytes.
+   */
+  public void onEndMessage(int type, int length) {
+  }
+
+  /**
+   * Called before a compressed Snappy chunk is decompressed. With parallel decoding, this
+   * method may be called from the executor's threads.
+   */
+  public void onBeginSnappyChunk() {
+  }
+
+  /**
+   * Called after a compressed Snappy chunk has been decompressed, on the same thread as
+   * {@link #onBeginSnappyChunk()}.
+   *
+   * @param documentName The name of the document, or {@code null} if unknown.
+   * @param iwaName The name of the {@code .iwa} file.
+   * @param compressedLength The length of the compressed chunk, in bytes.
+   * @param uncompressedLength The length of the decompressed data, in bytes.
+   */
+  public void onEndSnappyChunk(String documentName, String iwaName, int compressedLength,
+      int uncompressedLength) {
+  }
+}
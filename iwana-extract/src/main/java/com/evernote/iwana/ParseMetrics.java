@@ -0,0 +1,296 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Rolling statistics for long-running extractors: documents and bytes per second, parse
+ * latencies per document type and size class, failed documents and invalid messages.
+ *
+ * All updates are lock-free, and instances are meant to be shared by all
+ * {@link IwanaParser}s in a process. The statistics can be exported as a plain-text
+ * snapshot ({@link #toString()}), in the Prometheus text exposition format
+ * ({@link #writePrometheus(Appendable)}), or via JMX ({@link #registerMBean(String)}).
+ *
+ * @see IwanaParser#setMetrics(ParseMetrics)
+ */
+public final class ParseMetrics implements ParseMetricsMXBean {
+  private static final long[] SIZE_LIMITS = {64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+  private static final String[] SIZE_CLASSES = {"<64KiB", "<1MiB", "<16MiB", ">=16MiB"};
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+  private final Meter documents = new Meter();
+  private final Meter bytes = new Meter();
+  private final AtomicLong failedDocuments = new AtomicLong();
+  private final AtomicLong invalidMessages = new AtomicLong();
+  private final ConcurrentMap<String, Series> latencies = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the size class for a document of the given size.
+   *
+   * @param documentBytes The size of the document, in bytes.
+   * @return The size class, e.g. {@code <1MiB}.
+   */
+  public static String getSizeClass(final long documentBytes) {
+    for (int i = 0; i < SIZE_LIMITS.length; i++) {
+      if (documentBytes < SIZE_LIMITS[i]) {
+        return SIZE_CLASSES[i];
+      }
+    }
+    return SIZE_CLASSES[SIZE_LIMITS.length];
+  }
+
+  /**
+   * Records a parsed document.
+   *
+   * @param documentType The type of document (see
+   *          {@link LatencySummary#getDocumentType()}).
+   * @param documentBytes The size of the document, in bytes.
+   * @param nanos The time spent parsing, in nanoseconds.
+   * @param failed Whether parsing failed with an exception.
+   */
+  public void recordDocument(final String documentType, final long documentBytes,
+      final long nanos, final boolean failed) {
+    documents.mark(1);
+    bytes.mark(documentBytes);
+    if (failed) {
+      failedDocuments.incrementAndGet();
+    }
+
+    final String sizeClass = getSizeClass(documentBytes);
+    final String key = documentType + '\0' + sizeClass;
+    Series series = latencies.get(key);
+    if (series == null) {
+      final Series newSeries = new Series(documentType, sizeClass);
+      series = latencies.putIfAbsent(key, newSeries);
+      if (series == null) {
+        series = newSeries;
+      }
+    }
+    series.histogram.record(nanos);
+  }
+
+  /**
+   * Records an {@link com.google.protobuf.InvalidProtocolBufferException}.
+   */
+  public void recordInvalidMessage() {
+    invalidMessages.incrementAndGet();
+  }
+
+  @Override
+  public long getDocumentCount() {
+    return documents.getCount();
+  }
+
+  @Override
+  public double getDocumentRate() {
+    return documents.getRate();
+  }
+
+  @Override
+  public double getMeanDocumentRate() {
+    return documents.getMeanRate();
+  }
+
+  @Override
+  public long getFailedDocumentCount() {
+    return failedDocuments.get();
+  }
+
+  @Override
+  public long getByteCount() {
+    return bytes.getCount();
+  }
+
+  @Override
+  public double getByteRate() {
+    return bytes.getRate();
+  }
+
+  @Override
+  public double getMeanByteRate() {
+    return bytes.getMeanRate();
+  }
+
+  @Override
+  public long getInvalidMessageCount() {
+    return invalidMessages.get();
+  }
+
+  @Override
+  public List<LatencySummary> getLatencies() {
+    final List<Series> all = new ArrayList<>(latencies.values());
+    Collections.sort(all, new Comparator<Series>() {
+      @Override
+      public int compare(final Series a, final Series b) {
+        final int cmp = a.documentType.compareTo(b.documentType);
+        return cmp != 0 ? cmp : a.sizeIndex() - b.sizeIndex();
+      }
+    });
+    final List<LatencySummary> summaries = new ArrayList<>(all.size());
+    for (Series series : all) {
+      final LatencyHistogram h = series.histogram;
+      final long count = h.getCount();
+      final long[] p = h.getPercentileNanos(PERCENTILES);
+      summaries.add(new LatencySummary(series.documentType, series.sizeClass, count,
+          count == 0 ? 0 : millis(h.getSumNanos()) / count, millis(p[0]), millis(p[1]),
+          millis(p[2]), millis(p[3]), millis(h.getMaxNanos())));
+    }
+    return summaries;
+  }
+
+  /**
+   * Registers this instance with the platform MBean server, under the name
+   * {@code com.evernote.iwana:type=ParseMetrics,name=<name>}.
+   *
+   * @param name The value of the {@code name} key.
+   * @return The registered name.
+   * @throws JMException if the name is invalid or already registered.
+   */
+  public ObjectName registerMBean(final String name) throws JMException {
+    final ObjectName objectName = new ObjectName(
+        "com.evernote.iwana:type=ParseMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /**
+   * Writes the statistics in the Prometheus text exposition format (version 0.0.4).
+   * Latencies are exported as a summary, {@code iwana_parse_duration_seconds}, with the
+   * labels {@code type} and {@code size}.
+   *
+   * @param out The target.
+   * @throws IOException
+   */
+  public void writePrometheus(final Appendable out) throws IOException {
+    writeMetric(out, "iwana_documents_total", "counter", "Documents parsed.",
+        getDocumentCount());
+    writeMetric(out, "iwana_documents_per_second", "gauge",
+        "Documents parsed per second, averaged over one minute.", getDocumentRate());
+    writeMetric(out, "iwana_documents_failed_total", "counter",
+        "Documents whose parsing failed.", getFailedDocumentCount());
+    writeMetric(out, "iwana_bytes_total", "counter", "Size of all parsed documents.",
+        getByteCount());
+    writeMetric(out, "iwana_bytes_per_second", "gauge",
+        "Bytes parsed per second, averaged over one minute.", getByteRate());
+    writeMetric(out, "iwana_invalid_messages_total", "counter",
+        "Messages that could not be parsed.", getInvalidMessageCount());
+
+    final String name = "iwana_parse_duration_seconds";
+    out.append("# HELP ").append(name).append(" Time spent parsing a document.\n");
+    out.append("# TYPE ").append(name).append(" summary\n");
+    for (LatencySummary s : getLatencies()) {
+      final String labels = "type=\"" + escape(s.getDocumentType()) + "\",size=\""
+          + escape(s.getSizeClass()) + "\"";
+      final double[] values =
+          {s.getP50Millis(), s.getP90Millis(), s.getP99Millis(), s.getP999Millis()};
+      for (int i = 0; i < values.length; i++) {
+        out.append(name).append('{').append(labels).append(",quantile=\"")
+            .append(QUANTILES[i]).append("\"} ").append(format(values[i] / 1000))
+            .append('\n');
+      }
+      out.append(name).append("_sum{").append(labels).append("} ")
+          .append(format(s.getMeanMillis() * s.getCount() / 1000)).append('\n');
+      out.append(name).append("_count{").append(labels).append("} ")
+          .append(Long.toString(s.getCount())).append('\n');
+    }
+  }
+
+  private static void writeMetric(final Appendable out, final String name,
+      final String type, final String help, final double value) throws IOException {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    out.append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  private static String format(final double value) {
+    return value == Math.rint(value) && !Double.isInfinite(value)
+        ? Long.toString((long) value) : Double.toString(value);
+  }
+
+  private static String escape(final String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static double millis(final long nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * Returns a plain-text snapshot of the statistics.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ENGLISH,
+        "documents: %d (%.2f/s last minute, %.2f/s overall), %d failed%n",
+        getDocumentCount(), getDocumentRate(), getMeanDocumentRate(),
+        getFailedDocumentCount()));
+    sb.append(String.format(Locale.ENGLISH,
+        "bytes: %d (%.0f/s last minute, %.0f/s overall)%n", getByteCount(), getByteRate(),
+        getMeanByteRate()));
+    sb.append(String.format(Locale.ENGLISH, "invalid messages: %d%n",
+        getInvalidMessageCount()));
+    sb.append(String.format(Locale.ENGLISH, "%-26s %8s %10s %10s %10s %10s %10s %10s%n",
+        "latency (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+    for (LatencySummary s : getLatencies()) {
+      sb.append(String.format(Locale.ENGLISH,
+          "%-26s %8d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+          s.getDocumentType() + " " + s.getSizeClass(), s.getCount(), s.getMeanMillis(),
+          s.getP50Millis(), s.getP90Millis(), s.getP99Millis(), s.getP999Millis(),
+          s.getMaxMillis()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The latencies of one document type and size class.
+   */
+  private static final class Series {
+    final String documentType;
+    final String sizeClass;
+    final LatencyHistogram histogram = new LatencyHistogram();
+
+    Series(final String documentType, final String sizeClass) {
+      this.documentType = documentType;
+      this.sizeClass = sizeClass;
+    }
+
+    int sizeIndex() {
+      for (int i = 0; i < SIZE_CLASSES.length; i++) {
+        if (SIZE_CLASSES[i].equals(sizeClass)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link ParseMetrics}.
+ *
+ * @see ParseMetrics#registerMBean(String)
+ */
+public interface ParseMetricsMXBean {
+  /**
+   * Returns the number of documents parsed, including failed ones.
+   */
+  long getDocumentCount();
+
+  /**
+   * Returns the number of documents parsed per second, averaged over the last minute.
+   */
+  double getDocumentRate();
+
+  /**
+   * Returns the number of documents parsed per second, averaged since the metrics were
+   * created.
+   */
+  double getMeanDocumentRate();
+
+  /**
+   * Returns the number of documents whose parsing failed with an exception.
+   */
+  long getFailedDocumentCount();
+
+  /**
+   * Returns the total size of all parsed documents, in bytes.
+   */
+  long getByteCount();
+
+  /**
+   * Returns the number of bytes parsed per second, averaged over the last minute.
+   */
+  double getByteRate();
+
+  /**
+   * Returns the number of bytes parsed per second, averaged since the metrics were
+   * created.
+   */
+  double getMeanByteRate();
+
+  /**
+   * Returns the number of {@link com.google.protobuf.InvalidProtocolBufferException}s
+   * encountered while parsing messages.
+   */
+  long getInvalidMessageCount();
+
+  /**
+   * Returns the parse latencies per document type and size class.
+   */
+  List<LatencySummary> getLatencies();
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Time spent and bytes processed per parsing stage, plus the number of messages read per
+ * message type, for one {@code .iwa} file or one document.
+ *
+ * Times are wall-clock times on the thread that performed the stage; with parallel
+ * decoding (see {@link IwanaParser#setExecutor(java.util.concurrent.Executor)}), the
+ * stages of several files overlap, so the sum may exceed the elapsed time. Instances are
+ * not thread-safe.
+ *
+ * @see ParseListener
+ */
+public final class ParseProfile {
+  /**
+   * A parsing stage.
+   */
+  public enum Stage {
+    /**
+     * Reading an {@code .iwa} file from the zip archive, including inflation. Bytes are
+     * the Snappy-compressed bytes read.
+     */
+    ZIP,
+
+    /**
+     * Snappy decompression, excluding {@link #ZIP}. Bytes are the decompressed bytes.
+     */
+    SNAPPY,
+
+    /**
+     * Parsing {@code ArchiveInfo} headers. Bytes are the size of the headers.
+     */
+    ARCHIVE_INFO,
+
+    /**
+     * Reading messages via their {@link MessageAction} (which may merely copy the payload
+     * of lazily parsed messages). Bytes are the size of the messages.
+     */
+    MESSAGE_PARSE,
+
+    /**
+     * Handling messages in their {@link MessageAction}.
+     */
+    MESSAGE_HANDLER,
+
+    /**
+     * Replaying messages from an {@link IWAMemo}, including parsing and handling them.
+     */
+    MEMO_REPLAY,
+
+    /**
+     * Processing the document once all files have been read (see
+     * {@link IwanaContext#onFinishParseIndexZip()} and
+     * {@link IwanaContext#onEndParseIndexZip()}), e.g. ordering its content and looking
+     * up lazily parsed messages.
+     */
+    PROCESS_ROOT
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final boolean timed;
+  private final long[] nanos = new long[STAGES.length];
+  private final long[] bytes = new long[STAGES.length];
+
+  /**
+   * Message types (sorted), and the number of messages read and seen per type.
+   */
+  private int[] types = new int[0];
+  private long[] counts = new long[0];
+  private long[] seenCounts = new long[0];
+
+  /**
+   * Creates a new, empty profile that records the time spent per stage.
+   */
+  public ParseProfile() {
+    this(true);
+  }
+
+  /**
+   * Creates a new, empty profile.
+   *
+   * @param timed If {@code false}, only bytes and messages are counted, and all times
+   *          remain zero.
+   */
+  ParseProfile(final boolean timed) {
+    this.timed = timed;
+  }
+
+  /**
+   * Checks whether this profile records the time spent per stage.
+   */
+  boolean isTimed() {
+    return timed;
+  }
+
+  /**
+   * Returns the current time for measuring a stage, or {@code 0} without calling
+   * {@link System#nanoTime()} if this profile does not record times.
+   *
+   * @return The time, in nanoseconds.
+   */
+  long nanoTime() {
+    return timed ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Adds the given time and bytes to a stage.
+   *
+   * @param stage The stage.
+   * @param stageNanos The time, in nanoseconds.
+   * @param stageBytes The number of bytes.
+   */
+  public void add(final Stage stage, final long stageNanos, final long stageBytes) {
+    if (timed) {
+      nanos[stage.ordinal()] += stageNanos;
+    }
+    bytes[stage.ordinal()] += stageBytes;
+  }
+
+  /**
+   * Adds the given profile to this one.
+   *
+   * @param other The other profile.
+   */
+  public void add(final ParseProfile other) {
+    for (int i = 0; i < STAGES.length; i++) {
+      nanos[i] += other.nanos[i];
+      bytes[i] += other.bytes[i];
+    }
+    for (int i = 0; i < other.types.length; i++) {
+      countMessages(other.types[i], other.counts[i], other.seenCounts[i]);
+    }
+  }
+
+  /**
+   * Counts a message of the given type that was read, i.e., handed to its action.
+   *
+   * @param type The message type.
+   */
+  public void countMessage(final int type) {
+    countMessages(type, 1, 0);
+  }
+
+  /**
+   * Counts a message of the given type that was encountered, whether it was read or
+   * skipped.
+   *
+   * @param type The message type.
+   */
+  public void countSeenMessage(final int type) {
+    countMessages(type, 0, 1);
+  }
+
+  private void countMessages(final int type, final long n, final long seen) {
+    int i = Arrays.binarySearch(types, type);
+    if (i < 0) {
+      i = -i - 1;
+      types = insert(types, i, type);
+      counts = insert(counts, i);
+      seenCounts = insert(seenCounts, i);
+    }
+    counts[i] += n;
+    seenCounts[i] += seen;
+  }
+
+  private static int[] insert(final int[] array, final int i, final int value) {
+    final int[] result = new int[array.length + 1];
+    System.arraycopy(array, 0, result, 0, i);
+    System.arraycopy(array, i, result, i + 1, array.length - i);
+    result[i] = value;
+    return result;
+  }
+
+  private static long[] insert(final long[] array, final int i) {
+    final long[] result = new long[array.length + 1];
+    System.arraycopy(array, 0, result, 0, i);
+    System.arraycopy(array, i, result, i + 1, array.length - i);
+    return result;
+  }
+
+  /**
+   * Returns the time spent in the given stage, in nanoseconds ({@code 0} if this profile
+   * does not record times).
+   */
+  public long getNanos(final Stage stage) {
+    return nanos[stage.ordinal()];
+  }
+
+  /**
+   * Returns the number of bytes processed by the given stage.
+   */
+  public long getBytes(final Stage stage) {
+    return bytes[stage.ordinal()];
+  }
+
+  /**
+   * Returns the total time spent in all stages, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    long total = 0;
+    for (long n : nanos) {
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the types of the messages that were read or seen, in ascending order.
+   */
+  public int[] getMessageTypes() {
+    return types.clone();
+  }
+
+  /**
+   * Returns the number of messages of the given type that were read.
+   */
+  public long getMessageCount(final int type) {
+    final int i = Arrays.binarySearch(types, type);
+    return i < 0 ? 0 : counts[i];
+  }
+
+  /**
+   * Returns the number of messages of the given type that were encountered, whether they
+   * were read or skipped. Messages of memoized files are only seen if they were read.
+   */
+  public long getSeenMessageCount(final int type) {
+    final int i = Arrays.binarySearch(types, type);
+    return i < 0 ? 0 : seenCounts[i];
+  }
+
+  /**
+   * Returns the total number of messages that were read.
+   */
+  public long getMessageCount() {
+    long total = 0;
+    for (long n : counts) {
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Returns a human-readable breakdown, one stage per line, followed by the message
+   * counts.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final long total = getTotalNanos();
+    for (Stage stage : STAGES) {
+      final long n = nanos[stage.ordinal()];
+      sb.append(String.format(Locale.ROOT, "%-16s %10.3f ms %5.1f%% %12d bytes%n", stage,
+          n / 1e6, total == 0 ? 0.0 : 100.0 * n / total, bytes[stage.ordinal()]));
+    }
+    sb.append(String.format(Locale.ROOT, "%-16s %10.3f ms%n", "TOTAL", total / 1e6));
+    sb.append("messages by type (read/seen):");
+    for (int i = 0; i < types.length; i++) {
+      sb.append(' ').append(types[i]).append('=').append(counts[i]).append('/')
+          .append(seenCounts[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.Locale;
+
+/**
+ * The resources consumed by parsing one document, as returned by
+ * {@link IwanaParser#parseWithStats(java.io.File, IwanaParserCallback)}.
+ *
+ * Byte and message counts are taken from the {@code .iwa} files that were read; files
+ * that were replayed from an {@link IWAMemo} contribute their messages and their
+ * compressed bytes, which are read to identify them, but no uncompressed bytes.
+ * Figures that depend on the {@link IwanaContext} (retained objects, text blocks, retained
+ * bytes) are zero unless the context provides them.
+ */
+public final class ParseStats {
+  private final ParseProfile profile = new ParseProfile();
+  private int acceptedFiles = 0;
+  private int skippedFiles = 0;
+  private long retainedObjects = 0;
+  private long textBlocks = 0;
+  private long unreferencedTextBlocks = 0;
+  private long peakRetainedBytes = 0;
+  private long wallNanos = 0;
+  private long cpuNanos = -1;
+
+  /**
+   * Returns the number of Snappy-compressed bytes read from {@code .iwa} files.
+   */
+  public long getCompressedBytes() {
+    return profile.getBytes(ParseProfile.Stage.ZIP);
+  }
+
+  /**
+   * Returns the number of decompressed bytes processed.
+   */
+  public long getUncompressedBytes() {
+    return profile.getBytes(ParseProfile.Stage.SNAPPY);
+  }
+
+  /**
+   * Returns the number of {@code .iwa} files that were accepted by the context.
+   */
+  public int getAcceptedIWAFiles() {
+    return acceptedFiles;
+  }
+
+  /**
+   * Returns the number of {@code .iwa} files that were skipped by the context.
+   */
+  public int getSkippedIWAFiles() {
+    return skippedFiles;
+  }
+
+  /**
+   * Returns the types of all messages seen, in ascending order.
+   */
+  public int[] getMessageTypes() {
+    return profile.getMessageTypes();
+  }
+
+  /**
+   * Returns the number of messages of the given type that were encountered.
+   */
+  public long getSeenMessageCount(final int type) {
+    return profile.getSeenMessageCount(type);
+  }
+
+  /**
+   * Returns the number of messages of the given type that were handed to an action.
+   */
+  public long getHandledMessageCount(final int type) {
+    return profile.getMessageCount(type);
+  }
+
+  /**
+   * Returns the per-stage profile of the document. Must not be modified.
+   */
+  public ParseProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Returns the number of objects retained by the context at the end of the document.
+   */
+  public long getRetainedObjects() {
+    return retainedObjects;
+  }
+
+  public void setRetainedObjects(final long retainedObjects) {
+    this.retainedObjects = retainedObjects;
+  }
+
+  /**
+   * Returns the number of text blocks emitted.
+   */
+  public long getTextBlocks() {
+    return textBlocks;
+  }
+
+  public void setTextBlocks(final long textBlocks) {
+    this.textBlocks = textBlocks;
+  }
+
+  /**
+   * Returns the number of emitted text blocks that were not referenced from the
+   * document's structure.
+   */
+  public long getUnreferencedTextBlocks() {
+    return unreferencedTextBlocks;
+  }
+
+  public void setUnreferencedTextBlocks(final long unreferencedTextBlocks) {
+    this.unreferencedTextBlocks = unreferencedTextBlocks;
+  }
+
+  /**
+   * Returns the highest estimate of the memory retained by the context, in bytes, as
+   * sampled after each {@code .iwa} file.
+   */
+  public long getPeakRetainedBytes() {
+    return peakRetainedBytes;
+  }
+
+  /**
+   * Returns the elapsed time, in nanoseconds.
+   */
+  public long getWallNanos() {
+    return wallNanos;
+  }
+
+  /**
+   * Returns the CPU time of the parsing thread, in nanoseconds, or {@code -1} if the JVM
+   * does not measure it. Time spent on executor threads (see
+   * {@link IwanaParser#setExecutor(java.util.concurrent.Executor)}) is not included.
+   */
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  void countIWAFile(final boolean accepted) {
+    if (accepted) {
+      acceptedFiles++;
+    } else {
+      skippedFiles++;
+    }
+  }
+
+  void updatePeakRetainedBytes(final long retainedBytes) {
+    peakRetainedBytes = Math.max(peakRetainedBytes, retainedBytes);
+  }
+
+  void setTimes(final long wallNanos, final long cpuNanos) {
+    this.wallNanos = wallNanos;
+    this.cpuNanos = cpuNanos;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "wall time: %.3f ms, CPU time: %s%n",
+        wallNanos / 1e6,
+        cpuNanos == -1 ? "n/a" : String.format(Locale.ROOT, "%.3f ms", cpuNanos / 1e6)));
+    sb.append(String.format(Locale.ROOT, "bytes: %d compressed, %d uncompressed%n",
+        getCompressedBytes(), getUncompressedBytes()));
+    sb.append(String.format(Locale.ROOT, ".iwa files: %d accepted, %d skipped%n",
+        acceptedFiles, skippedFiles));
+    sb.append(String.format(Locale.ROOT,
+        "retained: %d objects, peak estimate %d bytes%n", retainedObjects,
+        peakRetainedBytes));
+    sb.append(String.format(Locale.ROOT, "text blocks: %d (%d unreferenced)%n",
+        textBlocks, unreferencedTextBlocks));
+    sb.append("messages by type (handled/seen):");
+    for (int type : getMessageTypes()) {
+      sb.append(' ').append(type).append('=').append(getHandledMessageCount(type))
+          .append('/').append(getSeenMessageCount(type));
+    }
+    return sb.toString();
+  }
+}
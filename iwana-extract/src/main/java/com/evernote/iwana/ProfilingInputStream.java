@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Adds the time spent reading from the underlying stream, and the number of bytes read,
+ * to a {@link ParseProfile}.
+ */
+final class ProfilingInputStream extends FilterInputStream {
+  private final ParseProfile profile;
+  private final ParseProfile.Stage stage;
+
+  ProfilingInputStream(final InputStream in, final ParseProfile profile,
+      final ParseProfile.Stage stage) {
+    super(in);
+    this.profile = profile;
+    this.stage = stage;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final long time = profile.nanoTime();
+    final int b = in.read();
+    profile.add(stage, profile.nanoTime() - time, b == -1 ? 0 : 1);
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    final long time = profile.nanoTime();
+    final int read = in.read(b, off, len);
+    profile.add(stage, profile.nanoTime() - time, Math.max(0, read));
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    final long time = profile.nanoTime();
+    final long skipped = in.skip(n);
+    profile.add(stage, profile.nanoTime() - time, skipped);
+    return skipped;
+  }
+}
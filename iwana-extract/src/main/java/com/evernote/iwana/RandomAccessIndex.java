@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * Provides random access to the {@code .iwa} files of a document's index, so that
+ * individual files can be parsed again after the index has been read (for example, to
+ * implement multi-pass extraction with bounded memory).
+ *
+ * Only available for documents that are read from a random-access source, such as a
+ * {@link java.io.File}.
+ *
+ * @see IwanaContext#getRandomAccessIndex()
+ */
+public final class RandomAccessIndex {
+  private final IwanaParser<?> parser;
+  private final MappedZipFile zip;
+  private final Map<String, ZipEntry> entries = new LinkedHashMap<>();
+
+  /**
+   * Creates a {@link RandomAccessIndex} for the {@code .iwa} files in the given zip file.
+   *
+   * @param parser The parser, whose settings are used for decoding.
+   * @param zip The zip file.
+   * @param prefix The prefix of the index entries (e.g., {@code "Index/"}), or the empty
+   *          string.
+   */
+  RandomAccessIndex(final IwanaParser<?> parser, final MappedZipFile zip,
+      final String prefix) {
+    this.parser = parser;
+    this.zip = zip;
+    for (ZipEntry entry : zip.getEntries()) {
+      final String name = entry.getName();
+      if (!entry.isDirectory() && name.startsWith(prefix) && name.endsWith(".iwa")) {
+        entries.put(name, entry);
+      }
+    }
+  }
+
+  /**
+   * Returns the names of all {@code .iwa} files, in archive order.
+   *
+   * @return The names.
+   */
+  public Set<String> getIWAFileNames() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+
+  /**
+   * Parses the named {@code .iwa} file again, handing its messages to the given
+   * {@link MessageActions} (instead of the context's own actions).
+   *
+   * @param name The name of the {@code .iwa} file.
+   * @param actions The actions to apply.
+   * @param context The context to pass to the actions.
+   * @throws FileNotFoundException if there is no such file.
+   * @throws IOException on I/O error.
+   */
+  public void parseIWAFile(final String name, final MessageActions actions,
+      final IwanaContext<?> context) throws IOException {
+    final ZipEntry entry = entries.get(name);
+    if (entry == null) {
+      throw new FileNotFoundException("No such .iwa file: " + name);
+    }
+
+    final String previousFile = context.getCurrentFile();
+    context.setCurrentFile(name);
+    try (InputStream in = zip.getInputStream(entry)) {
+      parser.parseIWA(in, actions, context);
+    } finally {
+      context.setCurrentFile(previousFile);
+    }
+  }
+}
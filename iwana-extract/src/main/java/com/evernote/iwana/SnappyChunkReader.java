@@ -0,0 +1,271 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Reads the chunk structure of the Snappy Framing Format (without CRC values), skipping
+ * padding, stream identifiers and other skippable chunks.
+ *
+ * @see SnappyNoCRCFramedInputStream
+ * @see SnappyNoCRCFramedDecoder
+ */
+final class SnappyChunkReader {
+  /**
+   * The usual maximum lengths of a chunk's data, and of its decompressed data. Buffers
+   * are sized for these, and grown for larger chunks, up to the hard limits below.
+   */
+  static final int DEFAULT_CHUNK_LENGTH = 128 * 1024;
+  static final int DEFAULT_UNCOMPRESSED_LENGTH = 64 * 1024;
+
+  /**
+   * The largest decompressed length accepted for a single chunk, whatever the budget.
+   * Well-formed chunks hold at most 64 KB; anything above this limit is corrupt.
+   */
+  static final int MAX_UNCOMPRESSED_LENGTH = BufferPool.MAX_BUFFER_LENGTH;
+
+  /**
+   * The largest length accepted for the data of a compressed chunk: the most Snappy can
+   * take to encode {@link #MAX_UNCOMPRESSED_LENGTH} bytes.
+   */
+  static final int MAX_CHUNK_LENGTH = Snappy.maxCompressedLength(MAX_UNCOMPRESSED_LENGTH);
+
+  /**
+   * The most Snappy can expand its input: a 3-byte copy yields at most 64 bytes.
+   */
+  static final int MAX_EXPANSION = 22;
+
+  static final int TYPE_COMPRESSED = 0;
+  static final int TYPE_UNCOMPRESSED = 1;
+
+  private final byte[] header = new byte[4];
+  private InputStream in;
+  private boolean eof = false;
+  private int chunkLength = 0;
+  private ParseBudget budget = null;
+
+  SnappyChunkReader(final InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Continues reading from the given {@link InputStream}, as if this reader was new.
+   *
+   * @param in The new input.
+   */
+  void reset(final InputStream in) {
+    this.in = in;
+    this.eof = false;
+    this.chunkLength = 0;
+  }
+
+  /**
+   * Charges all chunks to the given budget, data chunks before they are decompressed.
+   *
+   * @param budget The budget, or {@code null}.
+   */
+  void setBudget(final ParseBudget budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the decompressed length of the current compressed chunk, as declared in its
+   * data, checking it via {@link #checkUncompressedLength(int, int)} and charging it to
+   * the budget, if any.
+   *
+   * @param data The chunk data, as read via {@link #readChunkData(byte[], int, int)}.
+   * @return The decompressed length, in bytes.
+   * @throws ParseLimitExceededException if the chunk exceeds the budget.
+   * @throws IOException if the declared length is implausible.
+   */
+  int getUncompressedLength(final byte[] data) throws IOException {
+    final int uncompressedLength =
+        checkUncompressedLength(chunkLength, Snappy.getUncompressedLength(data, 0));
+    if (budget != null) {
+      budget.addChunk(chunkLength, uncompressedLength);
+    }
+    return uncompressedLength;
+  }
+
+  /**
+   * Checks the decompressed length declared by a compressed chunk before any buffer is
+   * sized for it, since the length is read from untrusted data.
+   *
+   * @param compressedLength The length of the compressed chunk.
+   * @param uncompressedLength The declared decompressed length.
+   * @return The decompressed length.
+   * @throws IOException if the declared length is negative, or more than the chunk could
+   *           possibly decompress to.
+   */
+  static int checkUncompressedLength(final int compressedLength,
+      final int uncompressedLength) throws IOException {
+    if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_LENGTH
+        || uncompressedLength > (long) compressedLength * MAX_EXPANSION) {
+      throw new IOException("Corrupt Snappy chunk: declares " + uncompressedLength
+          + " decompressed bytes for " + compressedLength + " compressed bytes");
+    }
+    return uncompressedLength;
+  }
+
+  /**
+   * Returns the length of the data chunk found by the last call to
+   * {@link #nextDataChunkHeader()}.
+   *
+   * @return The length, in bytes.
+   */
+  int getChunkLength() {
+    return chunkLength;
+  }
+
+  private void readFully(final byte[] buf, final int off, int toRead) throws IOException {
+    int ptr = off;
+    int read;
+    while (toRead > 0) {
+      read = in.read(buf, ptr, toRead);
+      if (read == -1) {
+        eof = true;
+        return;
+      }
+      ptr += read;
+      toRead -= read;
+    }
+  }
+
+  /**
+   * Reads the data of the current chunk.
+   *
+   * @param buf The target buffer.
+   * @param off The offset in the target buffer.
+   * @param len The number of bytes to read, usually {@link #getChunkLength()}.
+   * @throws IOException if the stream ended prematurely.
+   */
+  void readChunkData(final byte[] buf, final int off, final int len) throws IOException {
+    readFully(buf, off, len);
+    if (eof) {
+      throw new IOException("Unexpected end of stream within chunk");
+    }
+  }
+
+  /**
+   * Skips the data of the current chunk.
+   * 
+   * @param len The number of bytes to skip, usually {@link #getChunkLength()}.
+   * @throws IOException if the stream ended prematurely.
+   */
+  void skipChunkData(final int len) throws IOException {
+    skipFully(len);
+  }
+
+  private void skipFully(long len) throws IOException {
+    while (len > 0) {
+      long skipped = in.skip(len);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          eof = true;
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      len -= skipped;
+    }
+  }
+
+  /**
+   * Reads chunk headers until the header of a data chunk is found, skipping all other
+   * chunks. The length of the data chunk is available via {@link #getChunkLength()}; its
+   * data is not read.
+   *
+   * @return The chunk type ({@link #TYPE_COMPRESSED} or {@link #TYPE_UNCOMPRESSED}), or
+   *         {@code -1} if the end of the stream was reached.
+   * @throws IOException
+   */
+  int nextDataChunkHeader() throws IOException {
+    while (true) {
+      if (eof) {
+        return -1;
+      }
+
+      readFully(header, 0, header.length);
+      if (eof) {
+        return -1;
+      }
+
+      int len =
+          ((header[3] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[1] & 0xFF);
+
+      final int chunkType = header[0] & 0xFF;
+      if (budget != null) {
+        if (chunkType == TYPE_COMPRESSED || chunkType == TYPE_UNCOMPRESSED) {
+          budget.checkDeadline();
+        } else {
+          // not decompressed, but read nevertheless
+          budget.addBytes(header.length + len);
+        }
+      }
+      switch (chunkType) {
+        case TYPE_COMPRESSED:
+          if (len > MAX_CHUNK_LENGTH) {
+            throw new IOException("Compressed chunk size exceeds limit: " + len + " > "
+                + MAX_CHUNK_LENGTH);
+          }
+          chunkLength = len;
+          return chunkType;
+        case TYPE_UNCOMPRESSED:
+          if (len > MAX_UNCOMPRESSED_LENGTH) {
+            throw new IOException("Uncompressed chunk size exceeds limit: " + len + " > "
+                + MAX_UNCOMPRESSED_LENGTH);
+          }
+          if (budget != null) {
+            budget.addChunk(len, len);
+          }
+          chunkLength = len;
+          return chunkType;
+        case 0xfe:
+          // padding
+          skipFully(len);
+          break;
+        case 0xff:
+          // Stream identifier
+          if (len != 6) {
+            throw new IOException(
+                "Stream identifier data should be exactly 6 bytes long, but was: " + len);
+          }
+
+          byte[] magic = new byte[6];
+          readChunkData(magic, 0, len);
+          if (magic[0] != 0x73 || magic[1] != 0x4e || magic[2] != 0x61
+              || magic[3] != 0x50 || magic[4] != 0x70 || magic[5] != 0x59) {
+            throw new IOException("Could not find magic bytes in Stream identifier");
+          }
+          break;
+        default:
+          if ((chunkType & 0x80) == 0) {
+            // unskippable
+            throw new IOException("Detected unskippable snappy chunk; type=" + chunkType
+                + "; len=" + len);
+          } else {
+            // skippable
+            skipFully(len);
+          }
+      }
+    }
+  }
+}
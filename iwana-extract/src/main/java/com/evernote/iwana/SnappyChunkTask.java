@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * A data chunk that is decompressed in the background, as used by
+ * {@link SnappyNoCRCFramedDecoder} and {@link SnappyNoCRCFramedInputStream} when
+ * decompressing in parallel.
+ *
+ * A task is read on the calling thread via
+ * {@link #read(SnappyChunkReader, int, ChunkTrace)}, then run once (possibly on another
+ * thread), after which its output is available. Tasks are reused for subsequent chunks.
+ */
+final class SnappyChunkTask implements Callable<SnappyChunkTask> {
+  private int type;
+  private byte[] input = new byte[0];
+  private int inputLength;
+  private int uncompressedLength;
+  private byte[] output = new byte[0];
+  private int outputLength;
+  private ChunkTrace trace;
+
+  /**
+   * Returns this task's buffers to the pool of the current thread.
+   */
+  void release() {
+    BufferPool.release(input);
+    BufferPool.release(output);
+    input = null;
+    output = null;
+  }
+
+  /**
+   * Reads the data of the current chunk from the given reader, validating its
+   * uncompressed length.
+   *
+   * @param reader The reader, positioned after the chunk header.
+   * @param chunkType The chunk type, as returned by
+   *          {@link SnappyChunkReader#nextDataChunkHeader()}.
+   * @param trace The trace to report decompression to, or {@code null}.
+   * @throws IOException on I/O error, or if the chunk is invalid.
+   */
+  void read(final SnappyChunkReader reader, final int chunkType, final ChunkTrace trace)
+      throws IOException {
+    final int len = reader.getChunkLength();
+    if (input.length < len) {
+      input = BufferPool.ensureLength(input,
+          Math.max(len, SnappyChunkReader.DEFAULT_UNCOMPRESSED_LENGTH));
+    }
+    reader.readChunkData(input, 0, len);
+    this.type = chunkType;
+    this.inputLength = len;
+    this.uncompressedLength =
+        (chunkType == SnappyChunkReader.TYPE_COMPRESSED) ? reader
+            .getUncompressedLength(input) : len;
+    this.trace = trace;
+  }
+
+  /**
+   * Returns the array holding the decompressed data, once this task has run.
+   *
+   * @return The array.
+   */
+  byte[] getOutput() {
+    return output;
+  }
+
+  /**
+   * Returns the length of the decompressed data, once this task has run.
+   *
+   * @return The length.
+   */
+  int getOutputLength() {
+    return outputLength;
+  }
+
+  @Override
+  public SnappyChunkTask call() {
+    if (type == SnappyChunkReader.TYPE_COMPRESSED) {
+      if (trace != null) {
+        trace.begin();
+      }
+      if (output.length < uncompressedLength) {
+        // not pooled; this runs on a background thread
+        output = new byte[Math.max(uncompressedLength,
+            SnappyChunkReader.DEFAULT_UNCOMPRESSED_LENGTH)];
+      }
+      outputLength = Snappy.uncompress(input, 0, inputLength, output, 0);
+      if (trace != null) {
+        trace.end(inputLength, outputLength);
+      }
+    } else {
+      // uncompressed; swap buffers instead of copying
+      byte[] tmp = output;
+      output = input;
+      input = tmp;
+      outputLength = inputLength;
+    }
+    return this;
+  }
+}
@@ -0,0 +1,482 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Decodes data in the Snappy Framing Format without CRC values (as used by {@code .iwa}
+ * files) into a byte-array window.
+ *
+ * Unlike {@link SnappyNoCRCFramedInputStream}, this decoder does not copy the data into
+ * a caller-supplied array. Instead, each chunk is decompressed (or, if stored
+ * uncompressed, read) directly to the end of the window, and callers access the
+ * decompressed data in place, via {@link #array()}, {@link #position()} and
+ * {@link #limit()}. Consumed data is discarded from the window's start as the window is
+ * refilled.
+ *
+ * The window and the buffer for compressed chunks are taken from a per-thread pool, and
+ * grow as needed for unusually large chunks, up to the per-chunk limits that
+ * {@link SnappyChunkReader} enforces. Call {@link #release()} to return them to
+ * the pool once decoding is done, and {@link #reset(InputStream)} to decode another
+ * input with the same instance.
+ *
+ * @see SnappyNoCRCFramedInputStream
+ */
+public class SnappyNoCRCFramedDecoder {
+  private static final int INITIAL_WINDOW_SIZE =
+      2 * SnappyChunkReader.DEFAULT_UNCOMPRESSED_LENGTH;
+
+  private final SnappyChunkReader reader;
+  private byte[] readBuffer = BufferPool.acquire(SnappyChunkReader.DEFAULT_CHUNK_LENGTH);
+  private byte[] window = BufferPool.acquire(INITIAL_WINDOW_SIZE);
+  private int position = 0;
+  private int limit = 0;
+  private boolean eof = false;
+
+  /**
+   * Incremented whenever the window's data is moved (see {@link #generation()}).
+   */
+  private int generation = 0;
+
+  private final Executor executor;
+  private final SnappyChunkTask[] readAheadChunks;
+
+  /**
+   * Whether background tasks may still access the buffers of {@link #readAheadChunks},
+   * because decompression was aborted.
+   */
+  private boolean chunksInFlight = false;
+
+  private ChunkTrace trace = null;
+
+  /**
+   * Creates a new {@link SnappyNoCRCFramedDecoder} reading from the given
+   * {@link InputStream}.
+   *
+   * @param in The source of compressed data. Not closed by this decoder.
+   */
+  public SnappyNoCRCFramedDecoder(final InputStream in) {
+    this(in, null, 0);
+  }
+
+  /**
+   * Creates a new {@link SnappyNoCRCFramedDecoder} reading from the given
+   * {@link InputStream}, decompressing up to {@code readAhead} chunks in parallel upon
+   * each call to {@link #fill()}.
+   *
+   * Decompression tasks are submitted to the given {@link Executor}; the executor must
+   * be able to run them while the calling thread blocks waiting for their results. In
+   * this mode, each chunk is decompressed into a separate buffer first, and then copied
+   * into the window.
+   *
+   * @param in The source of compressed data. Not closed by this decoder.
+   * @param executor The executor, or {@code null} to decompress on the calling thread.
+   * @param readAhead The maximum number of chunks to decompress at once.
+   */
+  public SnappyNoCRCFramedDecoder(final InputStream in, final Executor executor,
+      final int readAhead) {
+    this.reader = new SnappyChunkReader(in);
+    if (executor != null && readAhead > 1) {
+      this.executor = executor;
+      this.readAheadChunks = new SnappyChunkTask[readAhead];
+    } else {
+      this.executor = null;
+      this.readAheadChunks = null;
+    }
+  }
+
+  /**
+   * Reports the decompression of each compressed chunk to the given {@link ChunkTrace}.
+   *
+   * @param trace The trace, or {@code null}.
+   */
+  void setChunkTrace(final ChunkTrace trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * Charges all data chunks to the given budget, before they are decompressed or skipped.
+   *
+   * @param budget The budget, or {@code null}.
+   */
+  void setBudget(final ParseBudget budget) {
+    reader.setBudget(budget);
+  }
+
+  /**
+   * Prepares this decoder for decoding the given input, discarding all remaining data of
+   * the current input, but keeping the buffers.
+   *
+   * @param in The source of compressed data. Not closed by this decoder.
+   */
+  public void reset(final InputStream in) {
+    reader.reset(in);
+    position = 0;
+    limit = 0;
+    eof = false;
+    generation++;
+    if (window == null) {
+      readBuffer = BufferPool.acquire(SnappyChunkReader.DEFAULT_CHUNK_LENGTH);
+      window = BufferPool.acquire(INITIAL_WINDOW_SIZE);
+    }
+  }
+
+  /**
+   * Returns this decoder's buffers to the pool of the current thread. The decoder must
+   * not be used afterwards, unless {@link #reset(InputStream)} is called; arrays
+   * previously returned by {@link #array()} must no longer be accessed.
+   */
+  public void release() {
+    BufferPool.release(readBuffer);
+    BufferPool.release(window);
+    readBuffer = null;
+    window = null;
+    position = 0;
+    limit = 0;
+    eof = true;
+    generation++;
+    if (readAheadChunks != null) {
+      for (int i = 0; i < readAheadChunks.length; i++) {
+        if (readAheadChunks[i] != null && !chunksInFlight) {
+          readAheadChunks[i].release();
+        }
+        readAheadChunks[i] = null;
+      }
+      chunksInFlight = false;
+    }
+  }
+
+  /**
+   * Returns the array backing the current window. The array may change upon calls to
+   * {@link #fill()} and {@link #require(int)}.
+   *
+   * @return The array.
+   */
+  public byte[] array() {
+    return window;
+  }
+
+  /**
+   * Returns a counter that changes whenever the data in {@link #array()} is moved, i.e.,
+   * when the window is compacted or replaced. Offsets into the array obtained before
+   * remain valid only as long as the counter is unchanged, even if the array is the same.
+   *
+   * @return The counter.
+   */
+  public int generation() {
+    return generation;
+  }
+
+  /**
+   * Returns the offset of the first unconsumed byte in {@link #array()}.
+   *
+   * @return The position.
+   */
+  public int position() {
+    return position;
+  }
+
+  /**
+   * Returns the offset after the last decompressed byte in {@link #array()}.
+   *
+   * @return The limit.
+   */
+  public int limit() {
+    return limit;
+  }
+
+  /**
+   * Returns the number of decompressed bytes that have not been consumed yet.
+   *
+   * @return The number of bytes.
+   */
+  public int remaining() {
+    return limit - position;
+  }
+
+  /**
+   * Returns the unconsumed decompressed bytes as a read-only {@link ByteBuffer} that
+   * shares the window's array. The buffer is only valid until the next call to
+   * {@link #fill()} or {@link #require(int)}.
+   *
+   * @return The buffer.
+   */
+  public ByteBuffer window() {
+    return ByteBuffer.wrap(window, position, limit - position).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Marks the given number of bytes as consumed.
+   *
+   * @param n The number of bytes, at most {@link #remaining()}.
+   */
+  public void consume(final int n) {
+    if (n < 0 || n > remaining()) {
+      throw new IllegalArgumentException("Cannot consume " + n + " bytes; remaining: "
+          + remaining());
+    }
+    position += n;
+  }
+
+  /**
+   * Skips the given number of decompressed bytes, consuming the window and then discarding
+   * data as it is decoded.
+   * 
+   * When decompressing on the calling thread, chunks that lie entirely within the skipped
+   * range are not decompressed at all; only their uncompressed length is read.
+   * 
+   * @param n The number of bytes to skip.
+   * @return {@code true} if all bytes were skipped, {@code false} if the end of the
+   *         compressed data has been reached before.
+   * @throws IOException
+   */
+  public boolean skip(long n) throws IOException {
+    while (n > remaining()) {
+      n -= remaining();
+      position = limit;
+      if (executor == null) {
+        n -= skipChunks(n);
+        if (eof) {
+          return n == 0;
+        }
+      } else if (!fill()) {
+        return false;
+      }
+    }
+    consume((int) n);
+    return true;
+  }
+
+  /**
+   * Skips chunks with a total uncompressed length of up to {@code n} bytes without
+   * decompressing them. The first chunk that extends beyond {@code n} is appended to the
+   * window.
+   * 
+   * @return The number of bytes skipped.
+   */
+  private long skipChunks(final long n) throws IOException {
+    long skipped = 0;
+    while (true) {
+      final int chunkType = reader.nextDataChunkHeader();
+      if (chunkType == -1) {
+        eof = true;
+        return skipped;
+      }
+      final int len = reader.getChunkLength();
+
+      if (chunkType == SnappyChunkReader.TYPE_COMPRESSED) {
+        readChunk(len);
+        final int uncompressedLength = reader.getUncompressedLength(readBuffer);
+        if (skipped + uncompressedLength > n) {
+          uncompress(len, uncompressedLength);
+          return skipped;
+        }
+        skipped += uncompressedLength;
+      } else {
+        if (skipped + len > n) {
+          ensureCapacity(len);
+          reader.readChunkData(window, limit, len);
+          limit += len;
+          return skipped;
+        }
+        reader.skipChunkData(len);
+        skipped += len;
+      }
+    }
+  }
+
+  /**
+   * Checks whether the end of the compressed data has been reached, i.e., whether
+   * {@link #fill()} would not add any further data.
+   *
+   * @return {@code true} if the end has been reached.
+   */
+  public boolean isEOF() {
+    return eof;
+  }
+
+  /**
+   * Decompresses data until at least {@code n} bytes are available in the window, or
+   * until the end of the compressed data has been reached.
+   *
+   * @param n The number of bytes required.
+   * @return {@code true} if at least {@code n} bytes are available.
+   * @throws IOException
+   */
+  public boolean require(final int n) throws IOException {
+    while (remaining() < n) {
+      if (!fill()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decompresses the next chunk(s), and appends the data to the window.
+   *
+   * @return {@code true} if data was added, {@code false} if the end of the compressed
+   *         data has been reached.
+   * @throws IOException
+   */
+  public boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (executor != null) {
+      return fillParallel();
+    }
+
+    final int chunkType = reader.nextDataChunkHeader();
+    if (chunkType == -1) {
+      eof = true;
+      return false;
+    }
+    final int len = reader.getChunkLength();
+
+    if (chunkType == SnappyChunkReader.TYPE_COMPRESSED) {
+      readChunk(len);
+      uncompress(len, reader.getUncompressedLength(readBuffer));
+    } else {
+      ensureCapacity(len);
+      reader.readChunkData(window, limit, len);
+      limit += len;
+    }
+    return true;
+  }
+
+  private boolean fillParallel() throws IOException {
+    int numChunks = 0;
+    for (; numChunks < readAheadChunks.length; numChunks++) {
+      final int chunkType = reader.nextDataChunkHeader();
+      if (chunkType == -1) {
+        eof = true;
+        break;
+      }
+      SnappyChunkTask chunk = readAheadChunks[numChunks];
+      if (chunk == null) {
+        chunk = readAheadChunks[numChunks] = new SnappyChunkTask();
+      }
+      chunk.read(reader, chunkType, trace);
+    }
+    if (numChunks == 0) {
+      return false;
+    }
+
+    // Chunks are decompressed into separate buffers: Snappy may write a few bytes past
+    // the end of a chunk's output, which would clobber data of the adjacent chunk.
+    final List<FutureTask<SnappyChunkTask>> tasks = new ArrayList<>(numChunks);
+    chunksInFlight = true;
+    for (int i = 0; i < numChunks; i++) {
+      FutureTask<SnappyChunkTask> task = new FutureTask<>(readAheadChunks[i]);
+      tasks.add(task);
+      if (i < numChunks - 1) {
+        executor.execute(task);
+      } else {
+        task.run();
+      }
+    }
+
+    try {
+      for (FutureTask<SnappyChunkTask> task : tasks) {
+        SnappyChunkTask chunk = task.get();
+        ensureCapacity(chunk.getOutputLength());
+        System.arraycopy(chunk.getOutput(), 0, window, limit, chunk.getOutputLength());
+        limit += chunk.getOutputLength();
+      }
+      chunksInFlight = false;
+    } catch (InterruptedException e) {
+      for (FutureTask<SnappyChunkTask> task : tasks) {
+        task.cancel(false);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decompressing chunk");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Reads the data of the current compressed chunk into {@link #readBuffer}, growing it
+   * if necessary.
+   *
+   * @param len The length of the chunk.
+   */
+  private void readChunk(final int len) throws IOException {
+    readBuffer = BufferPool.ensureLength(readBuffer, len);
+    reader.readChunkData(readBuffer, 0, len);
+  }
+
+  /**
+   * Decompresses the chunk in {@link #readBuffer}, and appends the data to the window.
+   *
+   * @param len The length of the compressed chunk.
+   * @param uncompressedLength The decompressed length declared by the chunk.
+   */
+  private void uncompress(final int len, final int uncompressedLength) {
+    if (trace != null) {
+      trace.begin();
+    }
+    ensureCapacity(uncompressedLength);
+    final int n = Snappy.uncompress(readBuffer, 0, len, window, limit);
+    limit += n;
+    if (trace != null) {
+      trace.end(len, n);
+    }
+  }
+
+  /**
+   * Makes sure that at least {@code n} bytes can be appended to the window, discarding
+   * consumed data and growing the window as necessary.
+   */
+  private void ensureCapacity(final int n) {
+    if (window.length - limit >= n) {
+      return;
+    }
+    final int remaining = limit - position;
+    if (window.length - remaining >= n) {
+      System.arraycopy(window, position, window, 0, remaining);
+    } else {
+      byte[] newWindow = BufferPool.acquire(Math.max(window.length * 2, remaining + n));
+      System.arraycopy(window, position, newWindow, 0, remaining);
+      BufferPool.release(window);
+      window = newWindow;
+    }
+    position = 0;
+    limit = remaining;
+    generation++;
+  }
+}
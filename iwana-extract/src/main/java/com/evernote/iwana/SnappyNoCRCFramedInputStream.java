@@ -18,6 +18,11 @@ package com.evernote.iwana;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.iq80.snappy.Snappy;
 
@@ -25,19 +30,33 @@ import org.iq80.snappy.Snappy;
  * A snappy-compressed InputStream, using a variant of the Snappy Framing Format without
  * CRC values.
  * 
+ * Optionally, chunks can be decompressed in parallel: the stream then reads ahead a
+ * number of chunks, decompresses them concurrently using a given {@link Executor}, and
+ * hands out the decompressed data in the original order.
+ * 
  * @see https://code.google.com/p/snappy/source/browse/trunk/framing_format.txt
  * @see https://github.com/obriensp/iWorkFileFormat/blob/master/Docs/index.md
  */
 public class SnappyNoCRCFramedInputStream extends InputStream {
-  private byte[] header = new byte[4];
-  private final byte[] readBuffer = new byte[128 * 1024];
-  private final byte[] uncompressedBuffer = new byte[64 * 1024];
+  private static final int DEFAULT_CHUNK_LENGTH = SnappyChunkReader.DEFAULT_CHUNK_LENGTH;
+  private static final int DEFAULT_UNCOMPRESSED_LENGTH =
+      SnappyChunkReader.DEFAULT_UNCOMPRESSED_LENGTH;
+
+  private byte[] readBuffer;
+  private byte[] uncompressedBuffer;
   private int readPointer = 0;
   private int filled = 0;
   private final InputStream in;
+  private final SnappyChunkReader reader;
   private boolean eof = false;
   private boolean closeParent;
 
+  private final Executor executor;
+  private final int readAhead;
+  private final ArrayDeque<FutureTask<SnappyChunkTask>> pendingChunks;
+  private final ArrayDeque<SnappyChunkTask> freeChunks;
+  private SnappyChunkTask currentChunk = null;
+
   /**
    * Creates a new {@link SnappyNoCRCFramedInputStream} wrapping the given
    * {@link InputStream}.
@@ -59,12 +78,81 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
    *          {@link InputStream}.
    */
   public SnappyNoCRCFramedInputStream(final InputStream in, final boolean closeParent) {
+    this(in, closeParent, null, 0);
+  }
+
+  /**
+   * Creates a new {@link SnappyNoCRCFramedInputStream} wrapping the given
+   * {@link InputStream}, decompressing up to {@code readAhead} chunks in parallel.
+   * 
+   * Decompression tasks are submitted to the given {@link Executor}; the executor must
+   * be able to run them while the reading thread blocks waiting for their results.
+   * 
+   * @param in The InputStream to wrap.
+   * @param closeParent Whether a call to {@link #close()} should close the parent
+   *          {@link InputStream}.
+   * @param executor The executor, or {@code null} to decompress on the reading thread.
+   * @param readAhead The maximum number of chunks to decompress ahead.
+   */
+  public SnappyNoCRCFramedInputStream(final InputStream in, final boolean closeParent,
+      final Executor executor, final int readAhead) {
     this.in = in;
+    this.reader = new SnappyChunkReader(in);
     this.closeParent = closeParent;
+
+    if (executor != null && readAhead > 0) {
+      this.executor = executor;
+      this.readAhead = readAhead;
+      this.pendingChunks = new ArrayDeque<>(readAhead);
+      this.freeChunks = new ArrayDeque<>(readAhead + 1);
+      this.readBuffer = null;
+      this.uncompressedBuffer = null;
+    } else {
+      this.executor = null;
+      this.readAhead = 0;
+      this.pendingChunks = null;
+      this.freeChunks = null;
+      this.readBuffer = BufferPool.acquire(DEFAULT_CHUNK_LENGTH);
+      this.uncompressedBuffer = BufferPool.acquire(DEFAULT_UNCOMPRESSED_LENGTH);
+    }
+  }
+
+  /**
+   * Enforces the given limits on the data that is read from now on. Only the limits on
+   * wall time, decompressed bytes and compression ratio apply; exceeding any of them
+   * causes a {@link ParseLimitExceededException}.
+   *
+   * @param limits The limits, or {@code null} to read without limits (the default).
+   */
+  public void setLimits(final ParseLimits limits) {
+    reader.setBudget(limits == null ? null : new ParseBudget(limits));
   }
 
   @Override
   public void close() throws IOException {
+    if (pendingChunks != null) {
+      // chunks that are still being decompressed are left to the garbage collector
+      for (FutureTask<SnappyChunkTask> f : pendingChunks) {
+        f.cancel(false);
+      }
+      pendingChunks.clear();
+      for (SnappyChunkTask chunk : freeChunks) {
+        chunk.release();
+      }
+      freeChunks.clear();
+      if (currentChunk != null) {
+        currentChunk.release();
+        currentChunk = null;
+      }
+    } else {
+      BufferPool.release(readBuffer);
+      BufferPool.release(uncompressedBuffer);
+    }
+    readBuffer = null;
+    uncompressedBuffer = null;
+    readPointer = 0;
+    filled = 0;
+    eof = true;
     if (closeParent) {
       in.close();
     }
@@ -74,89 +162,83 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
     if (readPointer < filled) {
       return;
     }
-    fillBuffer();
+    if (eof) {
+      throw new EOFException();
+    }
+    if (executor != null) {
+      fillBufferParallel();
+    } else {
+      fillBuffer();
+    }
   }
 
-  private void readFully(final byte[] buf, int toRead) throws IOException {
-    int ptr = 0;
-    int len = toRead;
-    int read;
-    while (len > 0 && ptr < toRead) {
-      read = in.read(buf, ptr, len);
-      if (read == -1) {
-        eof = true;
-        return;
-      }
-      ptr += read;
-      len -= read;
+  private void fillBuffer() throws IOException {
+    final int chunkType = reader.nextDataChunkHeader();
+    if (chunkType == -1) {
+      throw new EOFException();
+    }
+
+    readPointer = 0;
+    final int len = reader.getChunkLength();
+    if (chunkType == SnappyChunkReader.TYPE_COMPRESSED) {
+      readBuffer = BufferPool.ensureLength(readBuffer, len);
+      reader.readChunkData(readBuffer, 0, len);
+      uncompressedBuffer = BufferPool.ensureLength(uncompressedBuffer,
+          reader.getUncompressedLength(readBuffer));
+      filled = Snappy.uncompress(readBuffer, 0, len, uncompressedBuffer, 0);
+    } else {
+      uncompressedBuffer = BufferPool.ensureLength(uncompressedBuffer, len);
+      reader.readChunkData(uncompressedBuffer, 0, len);
+      filled = len;
     }
   }
 
-  private void fillBuffer() throws IOException {
-    FILL_LOOP : while (true) {
+  private void fillBufferParallel() throws IOException {
+    if (currentChunk != null) {
+      freeChunks.add(currentChunk);
+      currentChunk = null;
+    }
 
-      if (eof) {
-        throw new EOFException();
+    while (pendingChunks.size() < readAhead) {
+      final int chunkType = reader.nextDataChunkHeader();
+      if (chunkType == -1) {
+        break;
       }
-
-      readPointer = 0;
-      readFully(header, header.length);
-      if (eof) {
-        throw new EOFException();
+      SnappyChunkTask chunk = freeChunks.poll();
+      if (chunk == null) {
+        chunk = new SnappyChunkTask();
       }
+      chunk.read(reader, chunkType, null);
+
+      FutureTask<SnappyChunkTask> future = new FutureTask<>(chunk);
+      pendingChunks.add(future);
+      executor.execute(future);
+    }
 
-      int len =
-          ((header[3] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[1] & 0xFF);
-      readFully(readBuffer, len);
-
-      final int chunkType = header[0] & 0xFF;
-      switch (chunkType) {
-        case 0:
-          // compressed
-          if (len > readBuffer.length) {
-            throw new IOException("Compressed chunk size exceeds buffer capacity: " + len
-                + " > " + readBuffer.length);
-          }
-
-          filled = Snappy.uncompress(readBuffer, 0, len, uncompressedBuffer, 0);
-          break FILL_LOOP;
-        case 1:
-          // uncompressed
-          if (len > readBuffer.length) {
-            throw new IOException("Uncompressed chunk size exceeds buffer capacity: "
-                + len + " > " + readBuffer.length);
-          }
-          System.arraycopy(readBuffer, 0, uncompressedBuffer, 0, len);
-          break FILL_LOOP;
-        case 0xfe:
-          // padding
-          in.skip(len);
-          break;
-        case 0xff:
-          // Stream identifier
-          if (len != 6) {
-            throw new IOException(
-                "Stream identifier data should be exactly 6 bytes long, but was: " + len);
-          }
-
-          if (readBuffer[0] != 0x73 || readBuffer[1] != 0x4e || readBuffer[2] != 0x61
-              || readBuffer[3] != 0x50 || readBuffer[4] != 0x70 || readBuffer[5] != 0x59) {
-            throw new IOException("Could not find magic bytes in Stream identifier");
-          }
-
-          in.skip(len);
-          break;
-        default:
-          if ((chunkType & 0x80) == 0) {
-            // unskippable
-            throw new IOException("Detected unskippable snappy chunk; type=" + chunkType
-                + "; len=" + len);
-          } else {
-            // skippable
-            in.skip(len);
-          }
+    final FutureTask<SnappyChunkTask> future = pendingChunks.poll();
+    if (future == null) {
+      throw new EOFException();
+    }
+
+    try {
+      currentChunk = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decompressing chunk");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
       }
     }
+
+    readPointer = 0;
+    uncompressedBuffer = currentChunk.getOutput();
+    filled = currentChunk.getOutputLength();
   }
 
   @Override
@@ -0,0 +1,802 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.evernote.iwana.DocumentCost;
+import com.evernote.iwana.IWAMemo;
+import com.evernote.iwana.ParseLimits;
+import com.evernote.iwana.ParseListener;
+import com.evernote.iwana.ParseMetrics;
+import com.evernote.iwana.ParseStats;
+
+/**
+ * Extracts text from many documents concurrently.
+ *
+ * Documents are submitted as {@link Source}s, and put into a bounded queue. A fixed number
+ * of worker threads take documents from that queue, and run the text extractor on them.
+ * When the queue is full, {@link #submit(Source)} blocks until a worker becomes available,
+ * so the producer cannot run arbitrarily far ahead of the extraction.
+ *
+ * Upon submission, the cost of each document is estimated from its zip central directory
+ * (see {@link DocumentCost}). Documents whose estimated cost reaches the
+ * {@linkplain #setLargeDocumentThreshold(long, int) large-document threshold} are queued
+ * in a separate lane, and only a limited number of workers process such documents at the
+ * same time, so that a few very large documents cannot hold up all the small ones. Large
+ * documents are started as soon as such a worker is available. In addition,
+ * {@link #submitAll(Collection)} submits the given documents largest-first, which keeps the
+ * total running time short when all documents are known in advance.
+ *
+ * Since the parser keeps a document's index data in memory until the document has been
+ * processed, the retained memory of each document is predicted from the decoded size of its
+ * index data (see {@link #predictRetainedBytes(DocumentCost)}). A document is only started
+ * when its predicted memory fits into the {@linkplain #setMemoryBudget(long) memory budget},
+ * next to the documents that are already being processed; otherwise, it waits in the queue.
+ * A document that exceeds the budget on its own is processed in low-memory mode, once no
+ * other document is in flight, rather than rejected.
+ *
+ * For each document, exactly one {@link Result} is passed to the {@link ResultSink}, in
+ * order of completion.
+ *
+ * Example:
+ *
+ * <pre>
+ * BatchExtractor batch = new BatchExtractor(4, 16, null, sink);
+ * try {
+ *   for (File f : files) {
+ *     batch.submit(BatchExtractor.Source.of(f));
+ *   }
+ * } finally {
+ *   batch.close();
+ * }
+ * </pre>
+ */
+public class BatchExtractor implements Closeable {
+  private static final Logger LOG = Logger.getLogger(BatchExtractor.class);
+
+  /**
+   * The default estimated cost (in bytes of index data) from which a document is
+   * considered large.
+   */
+  public static final long DEFAULT_LARGE_DOCUMENT_THRESHOLD = 8 * 1024 * 1024;
+
+  /**
+   * The predicted number of bytes retained on the heap per byte of decoded index data.
+   */
+  static final int RETAINED_BYTES_PER_INDEX_BYTE = 2;
+
+  private final ResultSink sink;
+  private final Thread[] workers;
+  private final CountDownLatch done;
+  private final int queueCapacity;
+
+  // guarded by "this"
+  private final ArrayDeque<Task> smallLane = new ArrayDeque<>();
+  private final ArrayDeque<Task> largeLane = new ArrayDeque<>();
+  private long largeDocumentThreshold = DEFAULT_LARGE_DOCUMENT_THRESHOLD;
+  private int maxLargeWorkers;
+  private int runningLarge = 0;
+  private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+  private long inFlightBytes = 0;
+  private int inFlight = 0;
+  private boolean closed = false;
+  private volatile boolean streaming = false;
+  private volatile boolean lazyObjects = false;
+  private volatile ObjectStore.Factory objectStoreFactory = ObjectStore.HEAP;
+  private volatile ExtractTextCache cache = null;
+  private volatile IWAMemo iwaMemo = null;
+  private volatile ParseListener parseListener = null;
+  private volatile ParseMetrics metrics = null;
+  private volatile boolean collectStats = false;
+  private volatile ParseLimits limits = ParseLimits.DEFAULT;
+
+  /**
+   * Creates a new {@link BatchExtractor}, and starts its worker threads.
+   *
+   * By default, at most half of the workers (but at least one) process large documents at
+   * the same time, and the memory budget is half of the maximum heap size.
+   *
+   * @param numWorkers The number of documents to extract concurrently.
+   * @param queueCapacity The maximum number of submitted documents that are waiting for a
+   *          worker.
+   * @param threadFactory The factory to create worker threads with, or {@code null} to use
+   *          platform threads.
+   * @param sink The sink that receives the results. Must be thread-safe.
+   * @see #virtualThreadFactory()
+   */
+  public BatchExtractor(final int numWorkers, final int queueCapacity,
+      final ThreadFactory threadFactory, final ResultSink sink) {
+    if (numWorkers <= 0) {
+      throw new IllegalArgumentException("numWorkers must be positive");
+    }
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("queueCapacity must be positive");
+    }
+    if (sink == null) {
+      throw new NullPointerException("sink");
+    }
+
+    this.queueCapacity = queueCapacity;
+    this.sink = sink;
+    this.done = new CountDownLatch(numWorkers);
+    this.maxLargeWorkers = Math.max(1, numWorkers / 2);
+
+    final ThreadFactory factory =
+        threadFactory == null ? new WorkerThreadFactory() : threadFactory;
+    this.workers = new Thread[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      workers[i] = factory.newThread(new Worker());
+    }
+    for (Thread t : workers) {
+      t.start();
+    }
+  }
+
+  /**
+   * Returns a {@link ThreadFactory} that creates virtual threads, if the runtime supports
+   * them (Java 21 and newer).
+   *
+   * @return The factory, or {@code null} if virtual threads are not available.
+   */
+  public static ThreadFactory virtualThreadFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      final Method name = builderClass.getMethod("name", String.class, long.class);
+      final Method factory = builderClass.getMethod("factory");
+      return (ThreadFactory) factory.invoke(name.invoke(builder, "iwana-batch-", 1L));
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Configures which documents are considered large, and how many of them may be
+   * processed at the same time. The remaining workers are reserved for smaller documents.
+   *
+   * @param threshold The estimated cost from which a document is considered large, or
+   *          {@link Long#MAX_VALUE} to treat all documents alike.
+   * @param maxLargeWorkers The maximum number of workers that process large documents at
+   *          the same time (at least 1).
+   * @see #DEFAULT_LARGE_DOCUMENT_THRESHOLD
+   */
+  public synchronized void setLargeDocumentThreshold(final long threshold,
+      final int maxLargeWorkers) {
+    if (maxLargeWorkers <= 0) {
+      throw new IllegalArgumentException("maxLargeWorkers must be positive");
+    }
+    this.largeDocumentThreshold = threshold;
+    this.maxLargeWorkers = maxLargeWorkers;
+    notifyAll();
+  }
+
+  /**
+   * Enables or disables streaming mode for subsequently started documents. In streaming
+   * mode, text is emitted as soon as its position in the document is known, which lowers
+   * the memory use of each document.
+   *
+   * @param streaming If {@code true}, enables streaming mode.
+   */
+  public void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Enables or disables lazy parsing of document objects for subsequently started
+   * documents. Objects that are never looked up are then never parsed, but objects that
+   * cannot be parsed are treated as missing instead of failing the document.
+   *
+   * @param lazyObjects If {@code true}, enables lazy parsing (disabled by default).
+   */
+  public void setLazyObjects(final boolean lazyObjects) {
+    this.lazyObjects = lazyObjects;
+  }
+
+  /**
+   * Sets where the archived objects of subsequently started documents are kept while they
+   * are parsed. With {@link ObjectStore#offHeap()}, the objects do not add to the heap
+   * (and to garbage collection pauses), and their memory is reused across documents.
+   *
+   * @param objectStoreFactory The factory, e.g. {@link ObjectStore#HEAP} (the default).
+   */
+  public void setObjectStoreFactory(final ObjectStore.Factory objectStoreFactory) {
+    if (objectStoreFactory == null) {
+      throw new NullPointerException("objectStoreFactory");
+    }
+    this.objectStoreFactory = objectStoreFactory;
+  }
+
+  /**
+   * Sets the cache that is consulted before parsing subsequently started documents. The
+   * cache may be shared with other {@link BatchExtractor}s.
+   *
+   * @param cache The cache, or {@code null} to parse every document (the default).
+   */
+  public void setCache(final ExtractTextCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the {@link IWAMemo} that is shared by the workers for subsequently started
+   * documents, so that the unchanged {@code .iwa} files of edited documents are not
+   * decoded again.
+   *
+   * @param memo The memo, or {@code null} to decode every file (the default).
+   */
+  public void setIWAMemo(final IWAMemo memo) {
+    this.iwaMemo = memo;
+  }
+
+  /**
+   * Enables profiling for subsequently started documents. The listener is called from the
+   * worker threads, and must therefore be thread-safe.
+   *
+   * @param listener The listener, or {@code null} to disable profiling (the default).
+   * @see com.evernote.iwana.IwanaParser#setParseListener(ParseListener)
+   */
+  public void setParseListener(final ParseListener listener) {
+    this.parseListener = listener;
+  }
+
+  /**
+   * Records subsequently started documents in the given {@link ParseMetrics}, which may
+   * be shared with other {@link BatchExtractor}s.
+   *
+   * @param metrics The metrics, or {@code null} (the default).
+   */
+  public void setMetrics(final ParseMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Enables or disables the collection of {@link ParseStats} for subsequently started
+   * documents.
+   *
+   * @param collectStats If {@code true}, each successful {@link Result} carries the
+   *          document's stats.
+   * @see Result#getStats()
+   */
+  public void setCollectStats(final boolean collectStats) {
+    this.collectStats = collectStats;
+  }
+
+  /**
+   * Limits the time and memory spent on each subsequently started document, so that a
+   * single crafted or corrupt document cannot occupy a worker indefinitely. The
+   * {@link Result} of such a document carries a
+   * {@link com.evernote.iwana.ParseLimitExceededException}.
+   *
+   * By default, {@link ParseLimits#DEFAULT} applies.
+   *
+   * @param limits The limits, or {@code null} for none.
+   * @see com.evernote.iwana.IwanaParser#setLimits(ParseLimits)
+   */
+  public void setLimits(final ParseLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Sets the total predicted memory of the documents that may be processed at the same
+   * time.
+   *
+   * @param budget The budget in bytes, or {@link Long#MAX_VALUE} to disable admission
+   *          control.
+   * @see #predictRetainedBytes(DocumentCost)
+   */
+  public synchronized void setMemoryBudget(final long budget) {
+    if (budget <= 0) {
+      throw new IllegalArgumentException("budget must be positive");
+    }
+    this.memoryBudget = budget;
+    notifyAll();
+  }
+
+  /**
+   * Predicts the number of bytes the parser retains while processing a document of the
+   * given cost.
+   *
+   * @param cost The estimated cost.
+   * @return The predicted number of bytes, or 0 if the cost is unknown.
+   */
+  public static long predictRetainedBytes(final DocumentCost cost) {
+    final long uncompressed = cost.getUncompressedIndexBytes();
+    return uncompressed < 0 ? 0 : uncompressed * RETAINED_BYTES_PER_INDEX_BYTE;
+  }
+
+  /**
+   * Submits a document for extraction, blocking while the queue is full.
+   *
+   * @param source The document.
+   * @throws InterruptedException if interrupted while waiting.
+   * @throws IllegalStateException if this {@link BatchExtractor} has been closed.
+   */
+  public void submit(final Source source) throws InterruptedException {
+    if (source == null) {
+      throw new NullPointerException("source");
+    }
+    enqueue(new Task(source, source.estimateCostQuietly()));
+  }
+
+  /**
+   * Submits all documents from the given {@link Iterator}, in order, blocking while the
+   * queue is full. The iterator is only advanced when there is room in the queue.
+   *
+   * @param sources The documents.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void submitAll(final Iterator<? extends Source> sources)
+      throws InterruptedException {
+    while (sources.hasNext()) {
+      submit(sources.next());
+    }
+  }
+
+  /**
+   * Submits all given documents, largest first, blocking while the queue is full.
+   *
+   * @param sources The documents.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void submitAll(final Collection<? extends Source> sources)
+      throws InterruptedException {
+    final List<Task> tasks = new ArrayList<>(sources.size());
+    for (Source source : sources) {
+      if (source == null) {
+        throw new NullPointerException("source");
+      }
+      tasks.add(new Task(source, source.estimateCostQuietly()));
+    }
+    Collections.sort(tasks, LARGEST_FIRST);
+    for (Task task : tasks) {
+      enqueue(task);
+    }
+  }
+
+  private synchronized void enqueue(final Task task) throws InterruptedException {
+    while (!closed && smallLane.size() + largeLane.size() >= queueCapacity) {
+      wait();
+    }
+    if (closed) {
+      throw new IllegalStateException("Closed");
+    }
+    (isLarge(task) ? largeLane : smallLane).add(task);
+    notifyAll();
+  }
+
+  private boolean isLarge(final Task task) {
+    return task.cost.getIndexBytes() >= largeDocumentThreshold;
+  }
+
+  /**
+   * Returns the next task, or {@code null} if closed and no more tasks are queued.
+   */
+  private synchronized Task take() throws InterruptedException {
+    while (true) {
+      final Task large = largeLane.peek();
+      if (large != null && runningLarge < maxLargeWorkers) {
+        if (admit(large)) {
+          largeLane.poll();
+          large.large = true;
+          runningLarge++;
+          notifyAll();
+          return large;
+        }
+        // waiting for memory; smaller documents must not overtake, or it may starve
+      } else {
+        final Task small = smallLane.poll();
+        if (small != null) {
+          if (admit(small)) {
+            notifyAll();
+            return small;
+          }
+          smallLane.addFirst(small);
+        } else if (large == null && closed) {
+          return null;
+        }
+      }
+      wait();
+    }
+  }
+
+  /**
+   * Reserves the predicted memory for the given task, if it fits into the budget (or if
+   * nothing else is in flight).
+   */
+  private boolean admit(final Task task) {
+    final long bytes = predictRetainedBytes(task.cost);
+    if (inFlight > 0 && inFlightBytes + bytes > memoryBudget) {
+      return false;
+    }
+    task.reservedBytes = bytes;
+    task.lowMemory = bytes > memoryBudget;
+    inFlightBytes += bytes;
+    inFlight++;
+    return true;
+  }
+
+  private synchronized void finished(final Task task) {
+    inFlightBytes -= task.reservedBytes;
+    inFlight--;
+    if (task.large) {
+      runningLarge--;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits until all submitted documents have been processed, and stops the worker threads.
+   * No further documents may be submitted.
+   *
+   * @throws IOException if interrupted while waiting.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for workers", e);
+    }
+  }
+
+  private static final Comparator<Task> LARGEST_FIRST = new Comparator<Task>() {
+    @Override
+    public int compare(Task a, Task b) {
+      return Long.compare(b.cost.getIndexBytes(), a.cost.getIndexBytes());
+    }
+  };
+
+  private static final class Task {
+    final Source source;
+    final DocumentCost cost;
+    boolean large = false;
+    long reservedBytes = 0;
+    boolean lowMemory = false;
+
+    Task(final Source source, final DocumentCost cost) {
+      this.source = source;
+      this.cost = cost;
+    }
+  }
+
+  private final class Worker implements Runnable {
+    @Override
+    public void run() {
+      ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      try {
+        Task task;
+        while ((task = take()) != null) {
+          final Result result;
+          try {
+            parser.setStreaming(streaming);
+            parser.setLowMemory(task.lowMemory);
+            parser.setLazyObjects(lazyObjects);
+            parser.setObjectStoreFactory(objectStoreFactory);
+            parser.setCache(cache);
+            parser.setIWAMemo(iwaMemo);
+            parser.setParseListener(parseListener);
+            parser.setMetrics(metrics);
+            parser.setLimits(limits);
+            result = extract(parser, task, collectStats);
+            if (result.getError() instanceof ExecutionException) {
+              // the parser was interrupted by an Error; don't trust its state
+              parser = new ExtractTextIWAParser();
+            }
+          } finally {
+            finished(task);
+          }
+          try {
+            sink.onResult(result);
+          } catch (RuntimeException e) {
+            LOG.error("Result sink failed for " + task.source, e);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        done.countDown();
+      }
+    }
+  }
+
+  private static Result extract(final ExtractTextIWAParser parser, final Task task,
+      final boolean withStats) {
+    final List<String> textBlocks = new ArrayList<String>();
+    final List<TextAttributes> textAttributes = new ArrayList<TextAttributes>();
+    final ExtractTextCallback callback = new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes scope) {
+        textBlocks.add(text);
+        textAttributes.add(scope);
+      }
+    };
+
+    final long time = System.nanoTime();
+    Exception error = null;
+    ParseStats stats = null;
+    try {
+      stats = task.source.parse(parser, callback, withStats);
+    } catch (IOException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      error = e;
+    } catch (OutOfMemoryError | StackOverflowError e) {
+      // a single huge or deeply nested document must not take down the worker
+      textBlocks.clear();
+      textAttributes.clear();
+      LOG.error("Extraction aborted for " + task.source, e);
+      error = new ExecutionException(e);
+    }
+    return new Result(task.source, task.cost, textBlocks, textAttributes, error,
+        System.nanoTime() - time, stats);
+  }
+
+  private static final class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, "iwana-batch-" + count.incrementAndGet());
+    }
+  }
+
+  /**
+   * Supplies a fresh {@link InputStream} for a document.
+   */
+  public interface StreamSupplier {
+    /**
+     * Opens the stream. It is closed by the {@link BatchExtractor} after extraction.
+     */
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * Receives the extraction results.
+   *
+   * This sink is called concurrently from the worker threads, and must therefore be
+   * thread-safe.
+   */
+  public interface ResultSink {
+    /**
+     * Called once for every submitted document, after extraction has finished or failed.
+     *
+     * @param result The result.
+     */
+    void onResult(Result result);
+  }
+
+  /**
+   * A document to extract text from.
+   */
+  public abstract static class Source {
+    private final String name;
+
+    Source(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the name of the document, for example its path.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Estimates the cost of extracting text from this document, without decoding it.
+     *
+     * @return The estimated cost, or {@link DocumentCost#UNKNOWN}.
+     * @throws IOException on I/O error.
+     */
+    public abstract DocumentCost estimateCost() throws IOException;
+
+    DocumentCost estimateCostQuietly() {
+      try {
+        return estimateCost();
+      } catch (IOException e) {
+        // reported when the document is parsed
+        return DocumentCost.UNKNOWN;
+      }
+    }
+
+    /**
+     * Parses the document.
+     *
+     * @param withStats Whether to collect {@link ParseStats}.
+     * @return The stats, or {@code null} if not collected.
+     */
+    abstract ParseStats parse(ExtractTextIWAParser parser, ExtractTextCallback callback,
+        boolean withStats) throws IOException;
+
+    /**
+     * Creates a {@link Source} for the given iWork file (or bundle directory). Its cost is
+     * estimated from the zip central directory.
+     */
+    public static Source of(final File file) {
+      return new Source(file.getPath()) {
+        @Override
+        public DocumentCost estimateCost() throws IOException {
+          return DocumentCost.estimate(file);
+        }
+
+        @Override
+        ParseStats parse(ExtractTextIWAParser parser, ExtractTextCallback callback,
+            boolean withStats) throws IOException {
+          if (withStats) {
+            return parser.parseWithStats(file, callback);
+          }
+          parser.parse(file, callback);
+          return null;
+        }
+      };
+    }
+
+    /**
+     * Creates a {@link Source} for a zip-compressed iWork document that is read from the
+     * given {@link StreamSupplier}. The stream is only opened once a worker picks up the
+     * document. The cost of the document is unknown.
+     *
+     * @param name The name of the document.
+     * @param supplier The supplier.
+     */
+    public static Source of(final String name, final StreamSupplier supplier) {
+      return of(name, supplier, DocumentCost.UNKNOWN);
+    }
+
+    /**
+     * Creates a {@link Source} for a zip-compressed iWork document that is read from the
+     * given {@link StreamSupplier}, using a cost estimate provided by the caller (for
+     * example, one that was determined when the document was stored).
+     *
+     * @param name The name of the document.
+     * @param supplier The supplier.
+     * @param estimatedCost The estimated cost, or {@link DocumentCost#UNKNOWN}.
+     */
+    public static Source of(final String name, final StreamSupplier supplier,
+        final DocumentCost estimatedCost) {
+      return new Source(name) {
+        @Override
+        public DocumentCost estimateCost() {
+          return estimatedCost;
+        }
+
+        @Override
+        ParseStats parse(ExtractTextIWAParser parser, ExtractTextCallback callback,
+            boolean withStats) throws IOException {
+          try (InputStream in = supplier.open()) {
+            if (withStats) {
+              return parser.parseWithStats(in, callback);
+            }
+            parser.parse(in, callback);
+            return null;
+          }
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * The outcome of extracting text from one document.
+   */
+  public static final class Result {
+    private final Source source;
+    private final DocumentCost estimatedCost;
+    private final List<String> textBlocks;
+    private final List<TextAttributes> textAttributes;
+    private final Exception error;
+    private final long elapsedNanos;
+    private final ParseStats stats;
+
+    Result(final Source source, final DocumentCost estimatedCost, final List<String> textBlocks,
+        final List<TextAttributes> textAttributes, final Exception error,
+        final long elapsedNanos, final ParseStats stats) {
+      this.source = source;
+      this.estimatedCost = estimatedCost;
+      this.textBlocks = Collections.unmodifiableList(textBlocks);
+      this.textAttributes = Collections.unmodifiableList(textAttributes);
+      this.error = error;
+      this.elapsedNanos = elapsedNanos;
+      this.stats = stats;
+    }
+
+    public Source getSource() {
+      return source;
+    }
+
+    /**
+     * Returns the cost that was estimated for this document upon submission.
+     *
+     * @return The estimated cost, or {@link DocumentCost#UNKNOWN}.
+     */
+    public DocumentCost getEstimatedCost() {
+      return estimatedCost;
+    }
+
+    /**
+     * Returns the extracted text blocks, in the order they were emitted. If extraction
+     * failed, this contains the blocks emitted up to the failure.
+     */
+    public List<String> getTextBlocks() {
+      return textBlocks;
+    }
+
+    /**
+     * Returns the {@link TextAttributes} of each text block, in the same order as
+     * {@link #getTextBlocks()}.
+     */
+    public List<TextAttributes> getTextAttributes() {
+      return textAttributes;
+    }
+
+    /**
+     * Returns the exception that caused extraction to fail, or {@code null}. An
+     * {@link Error} such as {@link OutOfMemoryError} is wrapped in an
+     * {@link ExecutionException}; no text is returned in that case.
+     */
+    public Exception getError() {
+      return error;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    /**
+     * Returns the wall-clock time spent on this document, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Returns the resources consumed by this document.
+     *
+     * @return The stats, or {@code null} if extraction failed, or if stats were not
+     *         collected.
+     * @see BatchExtractor#setCollectStats(boolean)
+     */
+    public ParseStats getStats() {
+      return stats;
+    }
+  }
+}
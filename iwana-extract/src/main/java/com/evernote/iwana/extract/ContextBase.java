@@ -56,7 +56,7 @@ class ContextBase extends ExtractTextIWAContext {
   public static final MessageActions COMMON_ACTIONS = new MessageActions();
   static {
     COMMON_ACTIONS.setAction(2001, new ExtractTextActionBase<StorageArchive>(
-        StorageArchive.PARSER) {
+        StorageArchiveScanner.PARSER) {
 
       @Override
       protected void onMessage(StorageArchive message, ArchiveInfo ai, MessageInfo mi,
@@ -64,12 +64,14 @@ class ContextBase extends ExtractTextIWAContext {
 
         if (!message.getInDocument()) {
           // not part of the document?
+          context.emptyStorages.add(ai.getIdentifier());
           return;
         }
 
         switch (message.getTextCount()) {
           case 0:
             // no text, ignore element
+            context.emptyStorages.add(ai.getIdentifier());
             return;
           case 1:
             // should we ever get more than one text block?
@@ -82,21 +84,8 @@ class ContextBase extends ExtractTextIWAContext {
         final String text = message.getText(0);
         TextBlock tb = context.getTextBlock(ai.getIdentifier());
 
-        List<ObjectAttribute> attrs = null;
-        ObjectAttributeTable tableSmartField = message.getTableSmartfield();
-        if (tableSmartField != null) {
-          for (ObjectAttribute attr : tableSmartField.getEntriesList()) {
-            if (attr.hasCharacterIndex()) {
-              if (attrs == null) {
-                attrs = new ArrayList<>();
-              }
-              attrs.add(attr);
-            }
-          }
-        }
-
         tb.text = text;
-        tb.objectAttributes = attrs;
+        tb.objectAttributes = getSmartFieldAttributes(message);
       }
     });
 
@@ -111,7 +100,31 @@ class ContextBase extends ExtractTextIWAContext {
           }
         });
 
-    COMMON_ACTIONS.setAction(3008, new StoreObject<GroupArchive>(GroupArchive.PARSER));
+    COMMON_ACTIONS.setAction(3008, new LazyStoreObject<GroupArchive>(
+        GroupArchive.PARSER));
+  }
+
+  /**
+   * Returns the smart field attributes of the given storage that refer to a character
+   * index.
+   *
+   * @param message The storage.
+   * @return The attributes, or {@code null} if there are none.
+   */
+  static List<ObjectAttribute> getSmartFieldAttributes(StorageArchive message) {
+    List<ObjectAttribute> attrs = null;
+    ObjectAttributeTable tableSmartField = message.getTableSmartfield();
+    if (tableSmartField != null) {
+      for (ObjectAttribute attr : tableSmartField.getEntriesList()) {
+        if (attr.hasCharacterIndex()) {
+          if (attrs == null) {
+            attrs = new ArrayList<>();
+          }
+          attrs.add(attr);
+        }
+      }
+    }
+    return attrs;
   }
 
   @Override
@@ -122,4 +135,14 @@ class ContextBase extends ExtractTextIWAContext {
   @Override
   protected void processRootObject(Message obj) {
   }
+
+  /**
+   * Since {@link #processRootObject(Message)} does not reference any text, all text is
+   * emitted as unreferenced text, in the order it was read. Subclasses that reference text
+   * from the root object must override this method.
+   */
+  @Override
+  protected void emitAvailableText() {
+    dumpUnreferencedTextBlocks(false);
+  }
 }
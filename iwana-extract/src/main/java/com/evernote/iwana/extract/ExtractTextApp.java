@@ -17,16 +17,54 @@ package com.evernote.iwana.extract;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.evernote.iwana.ParseLimits;
+import com.evernote.iwana.ParseListener;
+import com.evernote.iwana.ParseMetrics;
+import com.evernote.iwana.ParseProfile;
 
 /**
  * A demo application.
  */
 public class ExtractTextApp {
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("Syntax: ExtractTextApp <filename>");
+    boolean streaming = false;
+    boolean lazyObjects = false;
+    ParseListener listener = null;
+    ParseMetrics metrics = null;
+    boolean stats = false;
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if ("--stream".equals(args[i])) {
+        streaming = true;
+      } else if ("--lazy".equals(args[i])) {
+        lazyObjects = true;
+      } else if ("--profile".equals(args[i])) {
+        listener = new ProfilePrinter();
+      } else if ("--metrics".equals(args[i])) {
+        metrics = new ParseMetrics();
+      } else if ("--stats".equals(args[i])) {
+        stats = true;
+      } else {
+        break;
+      }
+    }
+    args = Arrays.copyOfRange(args, i, args.length);
+    if (args.length == 0) {
+      System.err.println("Syntax: ExtractTextApp [--stream] [--lazy] [--profile] "
+          + "[--metrics] [--stats] <filename> [<filename>...]");
       System.exit(1);
     }
+    if (args.length > 1) {
+      extractAll(args, streaming, lazyObjects, listener, metrics, stats);
+      if (metrics != null) {
+        System.err.print(metrics);
+      }
+      return;
+    }
 
     ExtractTextCallback target = new ExtractTextCallback() {
 
@@ -39,6 +77,74 @@ public class ExtractTextApp {
     };
 
     ExtractTextIWAParser parser = new ExtractTextIWAParser();
-    parser.parse(new File(args[0]), target);
+    parser.setStreaming(streaming);
+    parser.setLazyObjects(lazyObjects);
+    parser.setParseListener(listener);
+    parser.setMetrics(metrics);
+    parser.setLimits(ParseLimits.DEFAULT);
+    if (stats) {
+      System.err.println(parser.parseWithStats(new File(args[0]), target));
+    } else {
+      parser.parse(new File(args[0]), target);
+    }
+    if (metrics != null) {
+      System.err.print(metrics);
+    }
+  }
+
+  /**
+   * Extracts text from several documents concurrently, printing each document's text as
+   * soon as it is done.
+   */
+  private static void extractAll(String[] filenames, boolean streaming,
+      boolean lazyObjects, ParseListener listener, ParseMetrics metrics, boolean stats)
+      throws IOException {
+    BatchExtractor.ResultSink sink = new BatchExtractor.ResultSink() {
+
+      @Override
+      public synchronized void onResult(BatchExtractor.Result result) {
+        System.out.println("==> " + result.getSource().getName() + " <==");
+        for (String text : result.getTextBlocks()) {
+          System.out.println(text);
+          System.out.println();
+        }
+        if (!result.isSuccess()) {
+          System.err.println(result.getSource().getName() + ": " + result.getError());
+        } else if (result.getStats() != null) {
+          System.err.println(result.getSource().getName() + ":");
+          System.err.println(result.getStats());
+        }
+      }
+    };
+
+    int numWorkers = Math.min(filenames.length, Runtime.getRuntime().availableProcessors());
+    BatchExtractor batch = new BatchExtractor(numWorkers, numWorkers, null, sink);
+    batch.setStreaming(streaming);
+    batch.setLazyObjects(lazyObjects);
+    batch.setParseListener(listener);
+    batch.setMetrics(metrics);
+    batch.setCollectStats(stats);
+    try {
+      List<BatchExtractor.Source> sources = new ArrayList<>(filenames.length);
+      for (String filename : filenames) {
+        sources.add(BatchExtractor.Source.of(new File(filename)));
+      }
+      batch.submitAll(sources);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      batch.close();
+    }
+  }
+
+  /**
+   * Prints the profile of each document to stderr.
+   */
+  private static final class ProfilePrinter extends ParseListener {
+    @Override
+    public synchronized void onEndDocument(String documentName, ParseProfile profile) {
+      System.err.println("==> " + documentName + " <==");
+      System.err.println(profile);
+    }
   }
 }
@@ -0,0 +1,515 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caches the text extracted from documents, keyed by a hash of the document's contents,
+ * so that documents that are seen again (shared decks, retries, re-indexing) are not
+ * parsed again.
+ *
+ * The key is the SHA-256 hash of the input bytes, the extractor's output version
+ * ({@link ExtractTextIWAParser#OUTPUT_VERSION}) and the parser mode. Each value is the
+ * sequence of text blocks and their {@link TextAttributes.Scope}. Upon a hit, the blocks
+ * are replayed to the {@link ExtractTextCallback} without decoding the document.
+ *
+ * Entries are kept in memory, in a local directory, or both. Both tiers are bounded by
+ * size, and evict the least recently used entries first. A hit in the directory is also
+ * added to memory. Instances are thread-safe, and a directory should only be used by one
+ * instance at a time.
+ *
+ * @see ExtractTextIWAParser#setCache(ExtractTextCache)
+ */
+public class ExtractTextCache {
+  private static final Logger LOG = Logger.getLogger(ExtractTextCache.class);
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAGIC = 0x49574331; // "IWC1"
+  private static final String SUFFIX = ".iwc";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final TextAttributes.Scope[] SCOPES = TextAttributes.Scope.values();
+
+  /**
+   * The cached text of one document.
+   */
+  private static final class Entry {
+    final String[] texts;
+    final byte[] scopes;
+    final long size;
+
+    Entry(final String[] texts, final byte[] scopes) {
+      this.texts = texts;
+      this.scopes = scopes;
+      long sz = 64 + 9L * texts.length;
+      for (String text : texts) {
+        sz += 40 + 2L * text.length();
+      }
+      this.size = sz;
+    }
+  }
+
+  private final long maxMemoryBytes;
+  private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes = 0;
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final Object diskLock = new Object();
+  private long diskBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a new {@link ExtractTextCache} that keeps entries in memory only.
+   *
+   * @param maxMemoryBytes The approximate maximum size of all entries, in bytes.
+   */
+  public ExtractTextCache(final long maxMemoryBytes) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.directory = null;
+    this.maxDiskBytes = 0;
+  }
+
+  /**
+   * Creates a new {@link ExtractTextCache} that keeps entries in memory and in the given
+   * directory. Entries that already exist in the directory are reused.
+   *
+   * @param maxMemoryBytes The approximate maximum size of all entries in memory, in bytes,
+   *          or {@code 0} to keep entries in the directory only.
+   * @param directory The directory, or {@code null} to keep entries in memory only.
+   * @param maxDiskBytes The maximum size of all entries in the directory, in bytes.
+   * @throws IOException if the directory cannot be created.
+   */
+  public ExtractTextCache(final long maxMemoryBytes, final File directory,
+      final long maxDiskBytes) throws IOException {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    if (directory != null) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create cache directory: " + directory);
+      }
+      for (File f : listEntryFiles()) {
+        diskBytes += f.length();
+      }
+      synchronized (diskLock) {
+        evictFromDisk();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of documents that were served from the cache.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of documents that had to be parsed.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of entries that were evicted, from memory or from disk.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns the approximate size of the entries held in memory, in bytes.
+   */
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  /**
+   * Returns the size of the entries held in the cache directory, in bytes.
+   */
+  public long getDiskBytes() {
+    synchronized (diskLock) {
+      return diskBytes;
+    }
+  }
+
+  /**
+   * Removes all entries from memory. Entries in the cache directory are kept.
+   */
+  public synchronized void clearMemory() {
+    memory.clear();
+    memoryBytes = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "ExtractTextCache[hits=" + getHitCount() + ", misses=" + getMissCount()
+        + ", evictions=" + getEvictionCount() + ", memoryBytes=" + getMemoryBytes()
+        + ", diskBytes=" + getDiskBytes() + "]";
+  }
+
+  /**
+   * Extracts text from the given file (or bundle directory), serving it from the cache if
+   * possible.
+   */
+  void parse(final ExtractTextIWAParser parser, final File iworkFile,
+      final ExtractTextCallback target) throws IOException {
+    final MessageDigest digest = newDigest(parser);
+    if (iworkFile.isDirectory()) {
+      // the document type is determined by the bundle's name
+      digest.update(iworkFile.getName().getBytes(UTF_8));
+      digest(new File(iworkFile, "Index.zip"), digest);
+    } else {
+      digest(iworkFile, digest);
+    }
+    final String key = toHex(digest.digest());
+
+    if (replay(key, target)) {
+      return;
+    }
+    final Recorder recorder = new Recorder(target);
+    parser.parseDocument(iworkFile, recorder);
+    put(key, recorder.toEntry());
+  }
+
+  /**
+   * Extracts text from the given zip-compressed document, serving it from the cache if
+   * possible. The stream is spooled to a temporary file while it is being hashed.
+   */
+  void parse(final ExtractTextIWAParser parser, final InputStream zipIn,
+      final ExtractTextCallback target) throws IOException {
+    final MessageDigest digest = newDigest(parser);
+    final File spool = File.createTempFile("iwana", ".zip", directory);
+    try {
+      try (OutputStream out = new FileOutputStream(spool)) {
+        final byte[] buf = new byte[8192];
+        int read;
+        while ((read = zipIn.read(buf)) != -1) {
+          digest.update(buf, 0, read);
+          out.write(buf, 0, read);
+        }
+      }
+      final String key = toHex(digest.digest());
+
+      if (replay(key, target)) {
+        return;
+      }
+      final Recorder recorder = new Recorder(target);
+      parser.parseDocument(spool, recorder);
+      put(key, recorder.toEntry());
+    } finally {
+      if (!spool.delete()) {
+        spool.deleteOnExit();
+      }
+    }
+  }
+
+  private static MessageDigest newDigest(final ExtractTextIWAParser parser) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update((byte) ExtractTextIWAParser.OUTPUT_VERSION);
+    digest.update((byte) (parser.isStreamingOrder() ? 1 : 0));
+    return digest;
+  }
+
+  private static void digest(final File file, final MessageDigest digest)
+      throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      final byte[] buf = new byte[8192];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        digest.update(buf, 0, read);
+      }
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    final char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private boolean replay(final String key, final ExtractTextCallback target)
+      throws IOException {
+    final Entry entry = get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    hits.incrementAndGet();
+
+    target.onBeginDocument();
+    try {
+      for (int i = 0; i < entry.texts.length; i++) {
+        target.onTextBlock(entry.texts[i], attributesFor(SCOPES[entry.scopes[i]]));
+      }
+    } finally {
+      target.onEndDocument();
+    }
+    return true;
+  }
+
+  private static TextAttributes attributesFor(final TextAttributes.Scope scope) {
+    switch (scope) {
+      case DOCUMENT:
+        return TextAttributes.DEFAULT_DOCUMENT;
+      case NOTES:
+        return TextAttributes.DEFAULT_NOTES;
+      case UNREFERENCED:
+        return TextAttributes.DEFAULT_UNREFERENCED;
+      default:
+        return new TextAttributes(scope);
+    }
+  }
+
+  private Entry get(final String key) throws IOException {
+    synchronized (this) {
+      final Entry entry = memory.get(key);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    if (directory == null) {
+      return null;
+    }
+    final Entry entry = readFromDisk(key);
+    if (entry != null) {
+      putInMemory(key, entry);
+    }
+    return entry;
+  }
+
+  private void put(final String key, final Entry entry) throws IOException {
+    putInMemory(key, entry);
+    if (directory != null) {
+      writeToDisk(key, entry);
+    }
+  }
+
+  private synchronized void putInMemory(final String key, final Entry entry) {
+    if (entry.size > maxMemoryBytes) {
+      return;
+    }
+    final Entry old = memory.put(key, entry);
+    if (old != null) {
+      memoryBytes -= old.size;
+    }
+    memoryBytes += entry.size;
+
+    final Iterator<Entry> it = memory.values().iterator();
+    while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+      memoryBytes -= it.next().size;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private File entryFile(final String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  private Entry readFromDisk(final String key) throws IOException {
+    final File file = entryFile(key);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a cache entry");
+      }
+      final int count = in.readInt();
+      final String[] texts = new String[count];
+      final byte[] scopes = new byte[count];
+      for (int i = 0; i < count; i++) {
+        scopes[i] = in.readByte();
+        if (scopes[i] < 0 || scopes[i] >= SCOPES.length) {
+          throw new IOException("Illegal scope: " + scopes[i]);
+        }
+        final byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        texts[i] = new String(utf8, UTF_8);
+      }
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        LOG.debug("Could not touch " + file);
+      }
+      return new Entry(texts, scopes);
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException | NegativeArraySizeException e) {
+      LOG.warn("Discarding corrupt cache entry " + file, e);
+      deleteFromDisk(file);
+      return null;
+    }
+  }
+
+  private void writeToDisk(final String key, final Entry entry) throws IOException {
+    final File tmp = File.createTempFile(key, ".tmp", directory);
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(entry.texts.length);
+        for (int i = 0; i < entry.texts.length; i++) {
+          final byte[] utf8 = entry.texts[i].getBytes(UTF_8);
+          out.writeByte(entry.scopes[i]);
+          out.writeInt(utf8.length);
+          out.write(utf8);
+        }
+      }
+
+      final File file = entryFile(key);
+      synchronized (diskLock) {
+        final long oldLength = file.length();
+        final long length = tmp.length();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        diskBytes += length - oldLength;
+        evictFromDisk();
+      }
+    } finally {
+      if (tmp.exists() && !tmp.delete()) {
+        tmp.deleteOnExit();
+      }
+    }
+  }
+
+  private void deleteFromDisk(final File file) {
+    synchronized (diskLock) {
+      final long length = file.length();
+      if (file.delete()) {
+        diskBytes -= length;
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used entry files until the directory fits into its limit.
+   * Must be called while holding {@link #diskLock}.
+   */
+  private void evictFromDisk() {
+    if (diskBytes <= maxDiskBytes) {
+      return;
+    }
+    final List<File> files = listEntryFiles();
+    final Map<File, Long> times = new HashMap<>();
+    for (File f : files) {
+      times.put(f, f.lastModified());
+    }
+    Collections.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return Long.compare(times.get(o1), times.get(o2));
+      }
+    });
+    for (File f : files) {
+      if (diskBytes <= maxDiskBytes) {
+        break;
+      }
+      final long length = f.length();
+      if (f.delete()) {
+        diskBytes -= length;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private List<File> listEntryFiles() {
+    final List<File> files = new ArrayList<>();
+    final File[] list = directory.listFiles();
+    if (list != null) {
+      for (File f : list) {
+        if (f.getName().endsWith(SUFFIX) && f.isFile()) {
+          files.add(f);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Forwards text blocks to the actual target, and records them for the cache.
+   */
+  private static final class Recorder extends ExtractTextCallback {
+    private final ExtractTextCallback target;
+    private final List<String> texts = new ArrayList<>();
+    private final List<TextAttributes.Scope> scopes = new ArrayList<>();
+
+    Recorder(final ExtractTextCallback target) {
+      this.target = target;
+    }
+
+    @Override
+    public void onBeginDocument() {
+      target.onBeginDocument();
+    }
+
+    @Override
+    public void onEndDocument() {
+      target.onEndDocument();
+    }
+
+    @Override
+    public void onTextBlock(String text, TextAttributes attrs) {
+      texts.add(text);
+      scopes.add(attrs.getScope());
+      target.onTextBlock(text, attrs);
+    }
+
+    Entry toEntry() {
+      final byte[] s = new byte[scopes.size()];
+      for (int i = 0; i < s.length; i++) {
+        s[i] = (byte) scopes.get(i).ordinal();
+      }
+      return new Entry(texts.toArray(new String[texts.size()]), s);
+    }
+  }
+}
@@ -16,38 +16,122 @@
 package com.evernote.iwana.extract;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+
+import org.apache.log4j.Logger;
 
 import com.evernote.iwana.IwanaContext;
+import com.evernote.iwana.ParseStats;
 import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
 import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
 /**
  * Holds information about the status of our text extractor, working on a particular
  * document.
+ *
+ * By default, all text is emitted after the entire index has been read. In streaming mode
+ * (see {@link #setStreaming(boolean)}), text blocks whose position in the document is
+ * already known are emitted after each {@code .iwa} file, via
+ * {@link #emitAvailableText()}; the remaining text is emitted at the end, as usual.
  */
 public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCallback> {
+  private static final Logger LOG = Logger.getLogger(ExtractTextIWAContext.class);
+
+  /**
+   * The approximate size of a {@link TextBlock} and its map entry, excluding the text.
+   */
+  private static final int TEXT_BLOCK_OVERHEAD = 256;
+
+  /**
+   * Thrown by {@link #getObject(long)} while deferring lookups of objects that have not been
+   * read yet.
+   */
+  static final class NotYetAvailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private NotYetAvailableException() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final NotYetAvailableException NOT_YET_AVAILABLE =
+      new NotYetAvailableException();
+
   protected ExtractTextIWAContext(String documentFilename, ExtractTextCallback target) {
     super(documentFilename, target);
   }
 
-  final Map<Long, TextBlock> objectIdToText = new HashMap<>();
-  final Set<Long> ignorableStyles = new HashSet<>();
-  final Map<Long, Message> objectStorage = new HashMap<>();
+  final LongObjectMap<TextBlock> objectIdToText = new LongObjectMap<>();
+  final LongSet ignorableStyles = new LongSet();
+
+  /**
+   * The archived objects of this document, by identifier.
+   */
+  ObjectStore objectStore = ObjectStore.HEAP.newObjectStore();
+
+  /**
+   * Storage objects that have been read, but hold no document text.
+   */
+  final LongSet emptyStorages = new LongSet();
+
+  /**
+   * The identifiers of all archives read so far, in streaming mode.
+   */
+  private final LongSet readArchives = new LongSet();
+
+  private boolean streaming = false;
+  private boolean lazyObjects = false;
+  private boolean deferMissing = false;
+  private boolean unreferencedDumpStarted = false;
+  private int unreferencedDumpPosition = 0;
+
+  /**
+   * The number of text blocks emitted, for {@link ParseStats}.
+   */
+  private long textBlocks = 0;
+  private long unreferencedTextBlocks = 0;
+
+  /**
+   * Enables or disables streaming mode.
+   *
+   * @param streaming If {@code true}, text is emitted as soon as its position is known.
+   */
+  void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Enables or disables lazy parsing of stored objects.
+   *
+   * @param lazyObjects If {@code true}, stored objects are only parsed upon lookup.
+   */
+  void setLazyObjects(final boolean lazyObjects) {
+    this.lazyObjects = lazyObjects;
+  }
+
+  /**
+   * Checks whether stored objects are only parsed upon lookup. If so, objects that cannot
+   * be parsed are logged and treated as missing, rather than being reported as invalid
+   * messages.
+   */
+  boolean isLazyObjects() {
+    return lazyObjects;
+  }
 
   protected <T extends Message> T getObject(final Reference ref, final Class<T> objectType) {
     return getObject(ref.getIdentifier(), objectType);
   }
 
   protected <T extends Message> T getObject(final long id, final Class<T> objectType) {
-    Message m = objectStorage.get(id);
+    Message m = getObject(id);
     if (m == null) {
       // LOG.info("Object " + id + " does not exist / has not been parsed");
       return null;
@@ -66,6 +150,29 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
     return objectType.cast(m);
   }
 
+  /**
+   * Returns the stored object with the given identifier, parsing it if necessary.
+   * 
+   * @param id The object identifier.
+   * @return The object, or {@code null} if it does not exist or could not be parsed (only
+   *         with {@link #isLazyObjects()}).
+   * @throws NotYetAvailableException if the object has not been read yet, and lookups are
+   *           being deferred.
+   */
+  private Message getObject(final long id) {
+    final Message m;
+    try {
+      m = objectStore.get(id);
+    } catch (InvalidProtocolBufferException e) {
+      LOG.warn("Could not parse object " + id + " in " + getDocumentFilename(), e);
+      return null;
+    }
+    if (m == null && deferMissing && id != 0) {
+      throw NOT_YET_AVAILABLE;
+    }
+    return m;
+  }
+
   /**
    * Called whenever we cannot directly cast a message to another type.
    * 
@@ -124,13 +231,32 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
     return tb;
   }
 
+  @Override
+  protected boolean isTrackingArchives() {
+    return streaming;
+  }
+
+  @Override
+  protected void onArchivesRead(final long[] identifiers) {
+    for (long id : identifiers) {
+      readArchives.add(id);
+    }
+  }
+
+  @Override
+  public void onEndParseIWAFile(String name) {
+    if (streaming) {
+      emitAvailableText();
+    }
+  }
+
   @Override
   public void onEndParseIndexZip() {
     // Remove placeholder text
     removePlaceholderText();
 
     // Order content
-    Message obj = objectStorage.get(1L);
+    Message obj = getObject(1);
     if (obj != null) {
       processRootObject(obj);
     }
@@ -139,17 +265,68 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
     dumpUnreferencedTextBlocks();
   }
 
+  /**
+   * Called in streaming mode after each {@code .iwa} file, to emit those text blocks whose
+   * position in the document is known already. Lookups of objects that have not been read
+   * yet should be wrapped in {@link #deferMissing(Runnable)}.
+   *
+   * Text that is not emitted here is emitted by {@link #onEndParseIndexZip()}, so this
+   * method does nothing by default.
+   */
+  protected void emitAvailableText() {
+  }
+
+  /**
+   * Runs the given code, aborting it as soon as it looks up an object that has not been read
+   * yet. Such an object may still be read from a later {@code .iwa} file.
+   *
+   * @param code The code to run.
+   * @return {@code true} if the code ran to completion.
+   */
+  protected boolean deferMissing(final Runnable code) {
+    deferMissing = true;
+    try {
+      code.run();
+      return true;
+    } catch (NotYetAvailableException e) {
+      return false;
+    } finally {
+      deferMissing = false;
+    }
+  }
+
   protected void dumpUnreferencedTextBlocks() {
-    // Dump the rest
-    System.out.println("********");
-    for (Map.Entry<Long, TextBlock> en : objectIdToText.entrySet()) {
-      TextBlock tb = en.getValue();
+    dumpUnreferencedTextBlocks(true);
+  }
+
+  /**
+   * Dumps the text blocks that have not been emitted yet, in the order they were read. Each
+   * call continues after the last block dumped by the previous call.
+   *
+   * @param complete If {@code false}, stops at the first block that cannot be emitted yet.
+   */
+  final void dumpUnreferencedTextBlocks(final boolean complete) {
+    if (!unreferencedDumpStarted) {
+      LOG.debug("Unreferenced text blocks in " + getDocumentFilename());
+      unreferencedDumpStarted = true;
+    }
+    for (int n = objectIdToText.size(); unreferencedDumpPosition < n;
+        unreferencedDumpPosition++) {
+      TextBlock tb = objectIdToText.valueAt(unreferencedDumpPosition);
       if (tb.done) {
         continue;
       }
-      System.out.println(en.getKey() + ":");
+      if (!complete && !isPlaceholderTextResolved(tb)) {
+        return;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(objectIdToText.keyAt(unreferencedDumpPosition) + ":");
+      }
 
-      target.onTextBlock(tb.flushText(), TextAttributes.DEFAULT_UNREFERENCED);
+      tb.done = true;
+      removePlaceholderText(tb);
+      unreferencedTextBlocks++;
+      emitText(tb.flushText(), TextAttributes.DEFAULT_UNREFERENCED);
     }
   }
 
@@ -166,26 +343,76 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
    * Removes placeholder text from the retrieved text blocks.
    */
   protected void removePlaceholderText() {
-    for (Map.Entry<Long, TextBlock> en : objectIdToText.entrySet()) {
-      TextBlock tb = en.getValue();
-      if (tb.objectAttributes != null) {
-
-        int placeholderStart = -1;
-        for (ObjectAttribute oa : IwanaUtil.sortObjectAttributes(tb.objectAttributes)) {
-          fixPlaceholder(tb, placeholderStart, oa.getCharacterIndex());
-
-          if (oa.hasObject()) {
-            if (ignorableStyles.contains(oa.getObject().getIdentifier())) {
-              placeholderStart = oa.getCharacterIndex();
-            }
-          } else {
-            placeholderStart = -1;
+    for (int i = 0, n = objectIdToText.size(); i < n; i++) {
+      TextBlock tb = objectIdToText.valueAt(i);
+      if (!tb.done) {
+        removePlaceholderText(tb);
+      }
+    }
+  }
+
+  void removePlaceholderText(final TextBlock tb) {
+    if (tb.objectAttributes != null) {
+
+      int placeholderStart = -1;
+      for (ObjectAttribute oa : IwanaUtil.sortObjectAttributes(tb.objectAttributes)) {
+        fixPlaceholder(tb, placeholderStart, oa.getCharacterIndex());
+
+        if (oa.hasObject()) {
+          if (ignorableStyles.contains(oa.getObject().getIdentifier())) {
+            placeholderStart = oa.getCharacterIndex();
           }
+        } else {
+          placeholderStart = -1;
         }
+      }
+
+      fixPlaceholder(tb, placeholderStart, tb.text.length());
 
-        fixPlaceholder(tb, placeholderStart, tb.text.length());
+      // done; don't apply twice
+      tb.objectAttributes = null;
+    }
+  }
+
+  /**
+   * Checks whether the placeholder text of the given {@link TextBlock} can be determined
+   * already, i.e., all objects it refers to have been read (and are thus known to be
+   * placeholders or not).
+   */
+  private boolean isPlaceholderTextResolved(final TextBlock tb) {
+    if (tb.objectAttributes == null) {
+      return true;
+    }
+    for (ObjectAttribute oa : tb.objectAttributes) {
+      if (oa.hasObject()) {
+        final long id = oa.getObject().getIdentifier();
+        if (!ignorableStyles.contains(id) && !readArchives.contains(id)) {
+          return false;
+        }
       }
     }
+    return true;
+  }
+
+  /**
+   * Checks whether the text of the given storage can be emitted.
+   *
+   * @throws NotYetAvailableException if the storage has not been read yet (or its
+   *           placeholder text cannot be determined yet), and lookups are being deferred.
+   */
+  protected void requireContainedStorageTextBlock(Reference containedStorageRef) {
+    if (!deferMissing || containedStorageRef == null) {
+      return;
+    }
+    long storageArchiveID = containedStorageRef.getIdentifier();
+    TextBlock textBlock = objectIdToText.get(storageArchiveID);
+    if (textBlock == null) {
+      if (storageArchiveID != 0 && !emptyStorages.contains(storageArchiveID)) {
+        throw NOT_YET_AVAILABLE;
+      }
+    } else if (!textBlock.done && !isPlaceholderTextResolved(textBlock)) {
+      throw NOT_YET_AVAILABLE;
+    }
   }
 
   protected void addContainedStorageTextBlock(Reference containedStorageRef,
@@ -200,7 +427,33 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
     }
     textBlock.done = true;
 
-    target.onTextBlock(textBlock.flushText(), attrs);
+    removePlaceholderText(textBlock);
+    emitText(textBlock.flushText(), attrs);
+  }
+
+  /**
+   * Hands a block of text to the target, counting it.
+   *
+   * @param text The text.
+   * @param attrs The text's attributes.
+   */
+  void emitText(final String text, final TextAttributes attrs) {
+    textBlocks++;
+    target.onTextBlock(text, attrs);
+  }
+
+  @Override
+  protected long estimateRetainedBytes() {
+    // a set entry takes up two table slots
+    return objectStore.getRetainedBytes() + TEXT_BLOCK_OVERHEAD * objectIdToText.size()
+        + 16L * readArchives.size();
+  }
+
+  @Override
+  protected void collectStats(final ParseStats stats) {
+    stats.setRetainedObjects(objectStore.size());
+    stats.setTextBlocks(textBlocks);
+    stats.setUnreferencedTextBlocks(unreferencedTextBlocks);
   }
 
   private void fixPlaceholder(TextBlock tb, final int placeholderStart,
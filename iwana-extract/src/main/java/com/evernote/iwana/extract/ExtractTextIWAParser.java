@@ -15,6 +15,12 @@
  */
 package com.evernote.iwana.extract;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.evernote.iwana.IwanaParser;
 
 /**
@@ -22,13 +28,155 @@ import com.evernote.iwana.IwanaParser;
  * potentially other iWork'13-style documents.
  */
 class ExtractTextIWAParser extends IwanaParser<ExtractTextCallback> {
+  /**
+   * The version of the extracted text. Must be incremented whenever a change to the
+   * extractor changes its output, so that cached results are no longer used.
+   *
+   * @see ExtractTextCache
+   */
+  static final int OUTPUT_VERSION = 1;
+
+  private boolean streaming = false;
+  private boolean lowMemory = false;
+  private boolean lazyObjects = false;
+  private ObjectStore.Factory objectStoreFactory = ObjectStore.HEAP;
+  private ExtractTextCache cache = null;
+
+  /**
+   * The contexts of the document that is currently being parsed.
+   */
+  private final List<ExtractTextIWAContext> contexts = new ArrayList<>();
+
+  /**
+   * Enables or disables streaming mode. In streaming mode, text blocks are emitted as soon
+   * as their position in the document is known, rather than after reading the entire
+   * index. This reduces the time to the first text block, as well as memory usage.
+   *
+   * In streaming mode, unreferenced text may be interleaved with other text that is emitted
+   * while parsing (such as Numbers table cells).
+   *
+   * @param streaming If {@code true}, enables streaming mode.
+   */
+  void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Enables or disables low-memory mode, for documents that are too large to be held in
+   * memory. In low-memory mode, Keynote documents that are read from a file are processed
+   * in two passes (see {@link KeynoteLowMemoryContext}); all other documents are processed
+   * in streaming mode.
+   *
+   * @param lowMemory If {@code true}, enables low-memory mode.
+   */
+  void setLowMemory(final boolean lowMemory) {
+    this.lowMemory = lowMemory;
+  }
+
+  /**
+   * Enables or disables lazy parsing of the stored document objects (slides, shapes,
+   * etc.). With lazy parsing, objects that are never looked up are never parsed, which
+   * saves time and memory. However, objects that cannot be parsed are then treated as
+   * missing, rather than being passed to {@link #handleInvalidProtocolBufferException}
+   * (which fails the document by default).
+   *
+   * @param lazyObjects If {@code true}, enables lazy parsing (disabled by default).
+   */
+  void setLazyObjects(final boolean lazyObjects) {
+    this.lazyObjects = lazyObjects;
+  }
+
+  /**
+   * Sets the {@link ObjectStore.Factory} that provides the object store for each document.
+   * The store is closed as soon as the document has been parsed.
+   *
+   * @param objectStoreFactory The factory, e.g. {@link ObjectStore#HEAP} (the default).
+   */
+  void setObjectStoreFactory(final ObjectStore.Factory objectStoreFactory) {
+    if (objectStoreFactory == null) {
+      throw new NullPointerException("objectStoreFactory");
+    }
+    this.objectStoreFactory = objectStoreFactory;
+  }
+
+  /**
+   * Sets the cache that is consulted before parsing a document, and that receives the
+   * text of each parsed document.
+   *
+   * @param cache The cache, or {@code null} to parse every document (the default).
+   */
+  void setCache(final ExtractTextCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Checks whether text is emitted in streaming order, which may differ from the regular
+   * order (see {@link #setStreaming(boolean)}).
+   */
+  boolean isStreamingOrder() {
+    return streaming || lowMemory;
+  }
+
+  @Override
+  public void parse(File iworkFile, ExtractTextCallback target) throws IOException {
+    if (cache != null) {
+      cache.parse(this, iworkFile, target);
+    } else {
+      parseDocument(iworkFile, target);
+    }
+  }
+
+  @Override
+  public void parse(InputStream zipIn, ExtractTextCallback target) throws IOException {
+    if (cache != null) {
+      cache.parse(this, zipIn, target);
+    } else {
+      try {
+        super.parse(zipIn, target);
+      } finally {
+        closeContexts();
+      }
+    }
+  }
+
+  /**
+   * Parses the given file, bypassing the cache.
+   */
+  void parseDocument(File iworkFile, ExtractTextCallback target) throws IOException {
+    try {
+      super.parse(iworkFile, target);
+    } finally {
+      closeContexts();
+    }
+  }
+
+  private void closeContexts() {
+    for (ExtractTextIWAContext context : contexts) {
+      context.objectStore.close();
+    }
+    contexts.clear();
+  }
+
   @Override
   protected ExtractTextIWAContext newContext(String documentName,
       ExtractTextCallback target) {
+    ExtractTextIWAContext context = newContext0(documentName, target);
+    context.setStreaming(isStreamingOrder());
+    context.setLazyObjects(lazyObjects);
+    context.objectStore = objectStoreFactory.newObjectStore();
+    contexts.add(context);
+    return context;
+  }
+
+  private ExtractTextIWAContext newContext0(String documentName,
+      ExtractTextCallback target) {
     if (documentName == null) {
       return new ContextBase(documentName, target);
     }
     if (documentName.endsWith(".key")) {
+      if (lowMemory) {
+        return new KeynoteLowMemoryContext(documentName, target);
+      }
       return new KeynoteContext(documentName, target);
     } else if (documentName.endsWith(".papers")) {
       return new PagesContext(documentName, target);
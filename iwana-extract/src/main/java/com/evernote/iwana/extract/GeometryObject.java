@@ -29,6 +29,14 @@ class GeometryObject implements Comparable<GeometryObject> {
     this(m, m.getSuper().getSuper());
   }
 
+  /**
+   * Creates a {@link GeometryObject} for the given position, without a message.
+   */
+  GeometryObject(float x, float y) {
+    this.x = x;
+    this.y = y;
+  }
+
   private GeometryObject(Message m, DrawableArchive da) {
     this.message = m;
 
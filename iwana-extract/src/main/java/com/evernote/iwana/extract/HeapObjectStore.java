@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import com.evernote.iwana.LazyMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * An {@link ObjectStore} that keeps {@link LazyMessage}s on the Java heap.
+ *
+ * @see ObjectStore#HEAP
+ */
+final class HeapObjectStore extends ObjectStore {
+  /**
+   * The approximate per-object overhead of a {@link LazyMessage} and its map entry.
+   */
+  private static final int OBJECT_OVERHEAD = 64;
+
+  private final LongObjectMap<LazyMessage<? extends Message>> objects =
+      new LongObjectMap<>();
+  private long retainedBytes = 0;
+
+  @Override
+  public void put(final long id, final LazyMessage<? extends Message> message) {
+    objects.put(id, message);
+    retainedBytes += OBJECT_OVERHEAD + message.getSerializedSize();
+  }
+
+  @Override
+  public Message get(final long id) throws InvalidProtocolBufferException {
+    final LazyMessage<? extends Message> lm = objects.get(id);
+    return lm == null ? null : lm.get();
+  }
+
+  @Override
+  public int size() {
+    return objects.size();
+  }
+
+  @Override
+  public long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  @Override
+  public void close() {
+    objects.clear();
+    retainedBytes = 0;
+  }
+}
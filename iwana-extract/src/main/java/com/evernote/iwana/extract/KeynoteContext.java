@@ -17,11 +17,7 @@ package com.evernote.iwana.extract;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -48,16 +44,16 @@ class KeynoteContext extends ContextBase {
       ContextBase.COMMON_ACTIONS);
   static {
     KEYNOTE_ACTIONS
-        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(2, new StoreObject<ShowArchive>(ShowArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(4, new StoreObject<SlideNodeArchive>(
+        .setAction(1, new LazyStoreObject<DocumentArchive>(DocumentArchive.PARSER));
+    KEYNOTE_ACTIONS.setAction(2, new LazyStoreObject<ShowArchive>(ShowArchive.PARSER));
+    KEYNOTE_ACTIONS.setAction(4, new LazyStoreObject<SlideNodeArchive>(
         SlideNodeArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(5, new StoreObject<SlideArchive>(SlideArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(6, new StoreObject<SlideArchive>(SlideArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(7, new StoreObject<PlaceholderArchive>(
+    KEYNOTE_ACTIONS.setAction(5, new LazyStoreObject<SlideArchive>(SlideArchive.PARSER));
+    KEYNOTE_ACTIONS.setAction(6, new LazyStoreObject<SlideArchive>(SlideArchive.PARSER));
+    KEYNOTE_ACTIONS.setAction(7, new LazyStoreObject<PlaceholderArchive>(
         PlaceholderArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(15, new StoreObject<NoteArchive>(NoteArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(2011, new StoreObject<ShapeInfoArchive>(
+    KEYNOTE_ACTIONS.setAction(15, new LazyStoreObject<NoteArchive>(NoteArchive.PARSER));
+    KEYNOTE_ACTIONS.setAction(2011, new LazyStoreObject<ShapeInfoArchive>(
         ShapeInfoArchive.PARSER));
   }
 
@@ -106,9 +102,54 @@ class KeynoteContext extends ContextBase {
 
   @Override
   protected void processRootObject(Message obj) {
+    if (!startSlideTraversal(obj)) {
+      return;
+    }
+    processSlideNodes();
+  }
+
+  @Override
+  protected void emitAvailableText() {
+    if (traversalDone) {
+      return;
+    }
+    deferMissing(new Runnable() {
+      @Override
+      public void run() {
+        Message obj = getObject(1, Message.class);
+        if (obj != null && startSlideTraversal(obj)) {
+          processSlideNodes();
+        }
+      }
+    });
+  }
+
+  // The state of the breadth-first traversal of the slide tree, which may be interrupted
+  // and resumed in streaming mode.
+  private LongObjectMap<SlideNodeArchive> nodes = null;
+  private LongObjectMap<SlideNodeArchive> children = null;
+  private LongSet seenIds = null;
+  private int nodeIndex = 0;
+  private boolean traversalDone = false;
+
+  /**
+   * Starts the traversal of the slide tree, unless already started.
+   *
+   * @param obj The root object.
+   * @return {@code true} if the traversal can proceed.
+   */
+  private boolean startSlideTraversal(Message obj) {
+    if (traversalDone) {
+      return false;
+    }
+    if (nodes != null) {
+      return true;
+    }
+
     if (!(obj instanceof DocumentArchive)) {
       LOG.info("Unsupported root object message: " + obj.getClass());
-      return;
+      traversalDone = true;
+      return false;
     }
 
     DocumentArchive root = (DocumentArchive) obj;
@@ -117,102 +158,131 @@ class KeynoteContext extends ContextBase {
     final long rootSlideNoteId =
         showArchive.getSlideTree().getRootSlideNode().getIdentifier();
     SlideNodeArchive slideNodeId = getObject(rootSlideNoteId, SlideNodeArchive.class);
-    LinkedHashMap<Long, SlideNodeArchive> nodes = new LinkedHashMap<>();
-    nodes.put(rootSlideNoteId, slideNodeId);
 
-    processSlideNodes(nodes);
+    nodes = new LongObjectMap<>();
+    nodes.put(rootSlideNoteId, slideNodeId);
+    children = new LongObjectMap<>();
+    seenIds = new LongSet();
+    return true;
   }
 
   /**
-   * @param nodes
+   * Processes the slide tree, level by level.
+   *
+   * When deferring lookups, a slide node is only processed once all objects it refers to
+   * have been read, so the traversal can be resumed from the same node later on.
    */
-  private void processSlideNodes(LinkedHashMap<Long, SlideNodeArchive> nodes) {
-    LinkedHashMap<Long, SlideNodeArchive> children = new LinkedHashMap<>();
-
-    Set<Long> seenIds = new HashSet<Long>();
+  private void processSlideNodes() {
+    final List<Reference> storageRefs = new ArrayList<>();
+    final List<TextAttributes> storageAttrs = new ArrayList<>();
+    final LongObjectMap<SlideNodeArchive> nodeChildren = new LongObjectMap<>();
 
     while (!nodes.isEmpty()) {
-      for (Map.Entry<Long, SlideNodeArchive> en : nodes.entrySet()) {
-        if (!seenIds.add(en.getKey())) {
-          LOG.info("Circular reference detected: id=" + en.getKey());
+      for (int n = nodes.size(); nodeIndex < n; nodeIndex++) {
+        final long nodeId = nodes.keyAt(nodeIndex);
+        if (seenIds.contains(nodeId)) {
+          LOG.info("Circular reference detected: id=" + nodeId);
           continue;
         }
 
-        SlideNodeArchive sna = en.getValue();
-        if (sna == null) {
-          continue;
-        }
-        for (Reference ref : sna.getChildrenList()) {
-          final long childId = ref.getIdentifier();
-          SlideNodeArchive child = getObject(childId, SlideNodeArchive.class);
-          if (child != null) {
-            children.put(childId, child);
+        SlideNodeArchive sna = nodes.valueAt(nodeIndex);
+        if (sna != null) {
+          // collect everything first, as this may be aborted
+          nodeChildren.clear();
+          for (Reference ref : sna.getChildrenList()) {
+            final long childId = ref.getIdentifier();
+            SlideNodeArchive child = getObject(childId, SlideNodeArchive.class);
+            if (child != null) {
+              nodeChildren.put(childId, child);
+            }
           }
-        }
-
-        // FIXME we could skip hidden slides using sna.getIsHidden(); / collapsed
 
-        SlideArchive slide = getObject(sna.getSlide(), SlideArchive.class);
-        if (slide != null) {
-          // process note objects
+          // FIXME we could skip hidden slides using sna.getIsHidden(); / collapsed
 
-          List<GeometryObject> geoms = new ArrayList<>();
-
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getTitlePlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
-            }
+          storageRefs.clear();
+          storageAttrs.clear();
+          SlideArchive slide = getObject(sna.getSlide(), SlideArchive.class);
+          if (slide != null) {
+            collectSlideText(slide, storageRefs, storageAttrs);
           }
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getBodyPlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              // that's mostly crap content; defer to the end
-              // geoms.add(new GeometryObject(sia));
-            }
+          for (Reference ref : storageRefs) {
+            requireContainedStorageTextBlock(ref);
           }
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getObjectPlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
-            }
-          }
-
-          for (ShapeInfoArchive sia : resolve(slide.getOwnedDrawablesList(),
-              ShapeInfoArchive.class)) {
-            if (sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
-            }
-          }
-
-          // FIXME this currently assumes top-to-bottom, left-to-right document
-          // orientation
-          Collections.sort(geoms);
 
-          for (GeometryObject go : geoms) {
-            ShapeInfoArchive sia = (ShapeInfoArchive) go.message;
-
-            addContainedStorageTextBlock(sia.getContainedStorage(),
-                TextAttributes.DEFAULT_DOCUMENT);
+          for (int i = 0, numChildren = nodeChildren.size(); i < numChildren; i++) {
+            children.put(nodeChildren.keyAt(i), nodeChildren.valueAt(i));
           }
-
-          // process slide notes
-          NoteArchive arc = getObject(slide.getNote(), NoteArchive.class);
-          if (arc != null) {
-            addContainedStorageTextBlock(arc.getContainedStorage(),
-                TextAttributes.DEFAULT_NOTES);
+          for (int i = 0, numRefs = storageRefs.size(); i < numRefs; i++) {
+            addContainedStorageTextBlock(storageRefs.get(i), storageAttrs.get(i));
           }
         }
-
+        seenIds.add(nodeId);
       }
 
       nodes.clear();
-      LinkedHashMap<Long, SlideNodeArchive> other = nodes;
+      LongObjectMap<SlideNodeArchive> other = nodes;
       nodes = children;
       children = other;
+      nodeIndex = 0;
+    }
+    traversalDone = true;
+  }
+
+  /**
+   * Collects the text storages of the given slide, in document order.
+   */
+  private void collectSlideText(SlideArchive slide, List<Reference> storageRefs,
+      List<TextAttributes> storageAttrs) {
+    // process note objects
+
+    List<GeometryObject> geoms = new ArrayList<>();
+
+    {
+      ShapeInfoArchive sia =
+          getObject(slide.getTitlePlaceholder(), ShapeInfoArchive.class);
+      if (sia != null && sia.hasContainedStorage()) {
+        geoms.add(new GeometryObject(sia));
+      }
+    }
+    {
+      ShapeInfoArchive sia =
+          getObject(slide.getBodyPlaceholder(), ShapeInfoArchive.class);
+      if (sia != null && sia.hasContainedStorage()) {
+        // that's mostly crap content; defer to the end
+        // geoms.add(new GeometryObject(sia));
+      }
+    }
+    {
+      ShapeInfoArchive sia =
+          getObject(slide.getObjectPlaceholder(), ShapeInfoArchive.class);
+      if (sia != null && sia.hasContainedStorage()) {
+        geoms.add(new GeometryObject(sia));
+      }
+    }
+
+    for (ShapeInfoArchive sia : resolve(slide.getOwnedDrawablesList(),
+        ShapeInfoArchive.class)) {
+      if (sia.hasContainedStorage()) {
+        geoms.add(new GeometryObject(sia));
+      }
+    }
+
+    // FIXME this currently assumes top-to-bottom, left-to-right document
+    // orientation
+    Collections.sort(geoms);
+
+    for (GeometryObject go : geoms) {
+      ShapeInfoArchive sia = (ShapeInfoArchive) go.message;
+
+      storageRefs.add(sia.getContainedStorage());
+      storageAttrs.add(TextAttributes.DEFAULT_DOCUMENT);
+    }
+
+    // process slide notes
+    NoteArchive arc = getObject(slide.getNote(), NoteArchive.class);
+    if (arc != null) {
+      storageRefs.add(arc.getContainedStorage());
+      storageAttrs.add(TextAttributes.DEFAULT_NOTES);
     }
   }
 
@@ -0,0 +1,467 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.evernote.iwana.LazyMessage;
+import com.evernote.iwana.LazyMessageAction;
+import com.evernote.iwana.MessageAction;
+import com.evernote.iwana.MessageActions;
+import com.evernote.iwana.RandomAccessIndex;
+import com.evernote.iwana.pb.KN.KNArchives.DocumentArchive;
+import com.evernote.iwana.pb.KN.KNArchives.NoteArchive;
+import com.evernote.iwana.pb.KN.KNArchives.PlaceholderArchive;
+import com.evernote.iwana.pb.KN.KNArchives.ShowArchive;
+import com.evernote.iwana.pb.KN.KNArchives.SlideArchive;
+import com.evernote.iwana.pb.KN.KNArchives.SlideNodeArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.pb.TSP.TSPMessages.Point;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.PlaceholderSmartFieldArchive;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * A Keynote-specific extractor context that extracts text in two passes, so that memory
+ * usage is bounded by the size of the document's reference graph rather than the size of
+ * its content.
+ *
+ * In the first pass, only the reference graph is recorded (the slide tree, the drawables
+ * of each slide with their position and contained storage, and the {@code .iwa} file that
+ * holds each text storage), as one compact {@code long[]} record per object. No protobuf
+ * messages or text are retained.
+ *
+ * At the end, the final text order is determined from that graph, exactly like
+ * {@link KeynoteContext} does. In the second pass, the {@code .iwa} files are read again in
+ * that order, and the text of each file's storages is emitted right away. The second pass
+ * only runs if the first pass succeeded, and fails the document if any file cannot be read
+ * again.
+ *
+ * The second pass requires a {@link RandomAccessIndex}. Without one, this context behaves
+ * like a {@link KeynoteContext} in streaming mode.
+ */
+class KeynoteLowMemoryContext extends KeynoteContext {
+  private static final Logger LOG = Logger.getLogger(KeynoteLowMemoryContext.class);
+
+  // Record kinds (element 0 of each record)
+  private static final long DOCUMENT = 1; // show
+  private static final long SHOW = 2; // root slide node
+  private static final long SLIDE_NODE = 3; // slide, children...
+  private static final long SLIDE = 4; // title, object placeholder, note, drawables...
+  private static final long SHAPE = 5; // has storage, storage, position
+  private static final long GROUP = 6; // children...
+  private static final long NOTE = 7; // storage
+  private static final long STORAGE = 8; // file index
+
+  /**
+   * First pass: records the reference graph.
+   */
+  private static final MessageActions GRAPH_ACTIONS = new MessageActions();
+
+  /**
+   * Second pass: collects the text of the wanted storages.
+   */
+  private static final MessageActions TEXT_ACTIONS = new MessageActions();
+
+  private abstract static class GraphAction<T extends Message> extends
+      MessageAction<T, KeynoteLowMemoryContext> {
+    GraphAction(Parser<T> parser) {
+      super(parser);
+    }
+  }
+
+  static {
+    GRAPH_ACTIONS.setAction(1, new GraphAction<DocumentArchive>(DocumentArchive.PARSER) {
+      @Override
+      protected void onMessage(DocumentArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, DOCUMENT, message.getShow().getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(2, new GraphAction<ShowArchive>(ShowArchive.PARSER) {
+      @Override
+      protected void onMessage(ShowArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, SHOW, message.getSlideTree().getRootSlideNode()
+            .getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(4, new GraphAction<SlideNodeArchive>(
+        SlideNodeArchive.PARSER) {
+      @Override
+      protected void onMessage(SlideNodeArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, SLIDE_NODE, message.getChildrenList(), message.getSlide()
+            .getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(new int[] {5, 6}, new GraphAction<SlideArchive>(
+        SlideArchive.PARSER) {
+      @Override
+      protected void onMessage(SlideArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, SLIDE, message.getOwnedDrawablesList(), message
+            .getTitlePlaceholder().getIdentifier(), message.getObjectPlaceholder()
+            .getIdentifier(), message.getNote().getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(7, new GraphAction<PlaceholderArchive>(
+        PlaceholderArchive.PARSER) {
+      @Override
+      protected void onMessage(PlaceholderArchive message, ArchiveInfo ai,
+          MessageInfo mi, KeynoteLowMemoryContext context) {
+        context.recordShape(ai, message.getSuper());
+      }
+    });
+    GRAPH_ACTIONS.setAction(15, new GraphAction<NoteArchive>(NoteArchive.PARSER) {
+      @Override
+      protected void onMessage(NoteArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, NOTE, message.getContainedStorage().getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(2011, new GraphAction<ShapeInfoArchive>(
+        ShapeInfoArchive.PARSER) {
+      @Override
+      protected void onMessage(ShapeInfoArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.recordShape(ai, message);
+      }
+    });
+    GRAPH_ACTIONS.setAction(3008, new GraphAction<GroupArchive>(GroupArchive.PARSER) {
+      @Override
+      protected void onMessage(GroupArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        context.record(ai, GROUP, message.getChildrenList());
+      }
+    });
+    GRAPH_ACTIONS.setAction(2031, new GraphAction<PlaceholderSmartFieldArchive>(
+        PlaceholderSmartFieldArchive.PARSER) {
+      @Override
+      protected void onMessage(PlaceholderSmartFieldArchive message, ArchiveInfo ai,
+          MessageInfo mi, KeynoteLowMemoryContext context) {
+        context.ignorableStyles.add(ai.getIdentifier());
+      }
+    });
+    GRAPH_ACTIONS.setAction(2001, new GraphAction<StorageArchive>(
+        StorageArchiveScanner.PARSER) {
+      @Override
+      protected void onMessage(StorageArchive message, ArchiveInfo ai, MessageInfo mi,
+          KeynoteLowMemoryContext context) {
+        if (message.getInDocument() && message.getTextCount() > 0) {
+          context.record(ai, STORAGE, context.currentFileIndex);
+        }
+      }
+    });
+
+    TEXT_ACTIONS.setAction(2001,
+        new LazyMessageAction<StorageArchive, KeynoteLowMemoryContext>(
+            StorageArchiveScanner.PARSER) {
+          @Override
+          protected void onMessage(LazyMessage<StorageArchive> message, ArchiveInfo ai,
+              MessageInfo mi, KeynoteLowMemoryContext context) throws IOException {
+            final long id = ai.getIdentifier();
+            if (!context.wantedText.containsKey(id)) {
+              // not parsed at all
+              return;
+            }
+            try {
+              context.wantedText.put(id, context.getText(message.get()));
+            } catch (InvalidProtocolBufferException e) {
+              LOG.warn("Could not parse storage " + id + " in "
+                  + context.getDocumentFilename(), e);
+            }
+          }
+        });
+  }
+
+  private boolean twoPass = false;
+
+  /**
+   * Object identifier to record; element 0 of each record is its kind.
+   */
+  private final LongObjectMap<long[]> graph = new LongObjectMap<>();
+  private final List<String> iwaFiles = new ArrayList<>();
+  private int currentFileIndex = -1;
+
+  // The storages in final text order
+  private long[] plannedStorages = new long[64];
+  private TextAttributes[] plannedAttrs = new TextAttributes[64];
+  private int numPlanned = 0;
+
+  /**
+   * Second pass: the storages wanted from the current file, and their text once read.
+   */
+  private final LongObjectMap<String> wantedText = new LongObjectMap<>();
+
+  protected KeynoteLowMemoryContext(String documentFilename, ExtractTextCallback target) {
+    super(documentFilename, target);
+  }
+
+  @Override
+  public void onBeginParseIndexZip() {
+    twoPass = getRandomAccessIndex() != null;
+    super.onBeginParseIndexZip();
+  }
+
+  @Override
+  protected MessageActions getMessageTypeActions() {
+    return twoPass ? GRAPH_ACTIONS : super.getMessageTypeActions();
+  }
+
+  @Override
+  public void onBeginParseIWAFile(String name) {
+    super.onBeginParseIWAFile(name);
+    if (twoPass) {
+      currentFileIndex = iwaFiles.size();
+      iwaFiles.add(name);
+    }
+  }
+
+  @Override
+  protected void emitAvailableText() {
+    if (!twoPass) {
+      super.emitAvailableText();
+    }
+  }
+
+  @Override
+  public void onFinishParseIndexZip() throws IOException {
+    super.onFinishParseIndexZip();
+    if (twoPass) {
+      planText();
+      emitPlannedText();
+    }
+  }
+
+  @Override
+  public void onEndParseIndexZip() {
+    // in two-pass mode, all text has been emitted by onFinishParseIndexZip (unless the
+    // document failed)
+    if (!twoPass) {
+      super.onEndParseIndexZip();
+    }
+  }
+
+  private void record(ArchiveInfo ai, long kind, long... values) {
+    long[] rec = new long[values.length + 1];
+    rec[0] = kind;
+    System.arraycopy(values, 0, rec, 1, values.length);
+    graph.put(ai.getIdentifier(), rec);
+  }
+
+  private void record(ArchiveInfo ai, long kind, List<Reference> refs, long... values) {
+    long[] rec = new long[1 + values.length + refs.size()];
+    rec[0] = kind;
+    System.arraycopy(values, 0, rec, 1, values.length);
+    int i = 1 + values.length;
+    for (Reference ref : refs) {
+      rec[i++] = ref.getIdentifier();
+    }
+    graph.put(ai.getIdentifier(), rec);
+  }
+
+  private void recordShape(ArchiveInfo ai, ShapeInfoArchive sia) {
+    Point pos = sia.getSuper().getSuper().getGeometry().getPosition();
+    long position =
+        ((long) Float.floatToRawIntBits(pos.getX()) << 32)
+            | (Float.floatToRawIntBits(pos.getY()) & 0xFFFFFFFFL);
+    record(ai, SHAPE, sia.hasContainedStorage() ? 1 : 0, sia.getContainedStorage()
+        .getIdentifier(), position);
+  }
+
+  private long[] get(long id, long kind) {
+    long[] rec = graph.get(id);
+    return rec != null && rec[0] == kind ? rec : null;
+  }
+
+  /**
+   * A drawable with a contained storage, sorted like in {@link KeynoteContext}.
+   */
+  private static final class PositionedStorage extends GeometryObject {
+    final long storageId;
+
+    PositionedStorage(long[] shape) {
+      super(Float.intBitsToFloat((int) (shape[3] >>> 32)), Float
+          .intBitsToFloat((int) shape[3]));
+      this.storageId = shape[2];
+    }
+  }
+
+  /**
+   * Determines the final text order by traversing the slide tree, like
+   * {@link KeynoteContext#processRootObject(Message)}.
+   */
+  private void planText() {
+    long[] root = graph.get(1);
+    if (root == null) {
+      return;
+    }
+    if (root[0] != DOCUMENT) {
+      LOG.info("Unsupported root object message: kind " + root[0]);
+      return;
+    }
+    long[] show = get(root[1], SHOW);
+    if (show == null) {
+      LOG.info("Could not find show: id=" + root[1]);
+      return;
+    }
+
+    LongObjectMap<long[]> nodes = new LongObjectMap<>();
+    nodes.put(show[1], get(show[1], SLIDE_NODE));
+    LongObjectMap<long[]> children = new LongObjectMap<>();
+    LongSet seenIds = new LongSet();
+    LongSet plannedIds = new LongSet();
+    List<PositionedStorage> geoms = new ArrayList<>();
+
+    while (!nodes.isEmpty()) {
+      for (int i = 0, n = nodes.size(); i < n; i++) {
+        if (!seenIds.add(nodes.keyAt(i))) {
+          LOG.info("Circular reference detected: id=" + nodes.keyAt(i));
+          continue;
+        }
+
+        long[] node = nodes.valueAt(i);
+        if (node == null) {
+          continue;
+        }
+        for (int c = 2; c < node.length; c++) {
+          long[] child = get(node[c], SLIDE_NODE);
+          if (child != null) {
+            children.put(node[c], child);
+          }
+        }
+
+        long[] slide = get(node[1], SLIDE);
+        if (slide != null) {
+          geoms.clear();
+          addGeometry(geoms, get(slide[1], SHAPE));
+          addGeometry(geoms, get(slide[2], SHAPE));
+          for (int d = 4; d < slide.length; d++) {
+            addDrawable(geoms, slide[d]);
+          }
+          Collections.sort(geoms);
+
+          for (PositionedStorage ps : geoms) {
+            plan(plannedIds, ps.storageId, TextAttributes.DEFAULT_DOCUMENT);
+          }
+
+          long[] note = get(slide[3], NOTE);
+          if (note != null) {
+            plan(plannedIds, note[1], TextAttributes.DEFAULT_NOTES);
+          }
+        }
+      }
+
+      nodes.clear();
+      LongObjectMap<long[]> other = nodes;
+      nodes = children;
+      children = other;
+    }
+  }
+
+  private static void addGeometry(List<PositionedStorage> geoms, long[] shape) {
+    if (shape != null && shape[1] != 0) {
+      geoms.add(new PositionedStorage(shape));
+    }
+  }
+
+  /**
+   * Adds the given drawable, or the drawables in the given group.
+   */
+  private void addDrawable(List<PositionedStorage> geoms, long id) {
+    long[] rec = graph.get(id);
+    if (rec == null) {
+      return;
+    }
+    if (rec[0] == SHAPE) {
+      addGeometry(geoms, rec);
+    } else if (rec[0] == GROUP) {
+      for (int c = 1; c < rec.length; c++) {
+        addDrawable(geoms, rec[c]);
+      }
+    }
+  }
+
+  private void plan(LongSet plannedIds, long storageId, TextAttributes attrs) {
+    if (get(storageId, STORAGE) == null || !plannedIds.add(storageId)) {
+      return;
+    }
+    if (numPlanned == plannedStorages.length) {
+      plannedStorages = Arrays.copyOf(plannedStorages, numPlanned * 2);
+      plannedAttrs = Arrays.copyOf(plannedAttrs, numPlanned * 2);
+    }
+    plannedStorages[numPlanned] = storageId;
+    plannedAttrs[numPlanned] = attrs;
+    numPlanned++;
+  }
+
+  /**
+   * Reads the planned storages, one run of storages from the same {@code .iwa} file at a
+   * time, and emits their text.
+   *
+   * @throws IOException if a file cannot be read again, or a parse limit is exceeded.
+   */
+  private void emitPlannedText() throws IOException {
+    final RandomAccessIndex index = getRandomAccessIndex();
+
+    int start = 0;
+    while (start < numPlanned) {
+      final long fileIndex = graph.get(plannedStorages[start])[1];
+      int end = start + 1;
+      while (end < numPlanned && graph.get(plannedStorages[end])[1] == fileIndex) {
+        end++;
+      }
+
+      wantedText.clear();
+      for (int i = start; i < end; i++) {
+        wantedText.put(plannedStorages[i], null);
+      }
+
+      final String name = iwaFiles.get((int) fileIndex);
+      index.parseIWAFile(name, TEXT_ACTIONS, this);
+
+      for (int i = start; i < end; i++) {
+        String text = wantedText.get(plannedStorages[i]);
+        if (text != null) {
+          emitText(text, plannedAttrs[i]);
+        }
+      }
+      start = end;
+    }
+    wantedText.clear();
+  }
+
+  private String getText(StorageArchive message) {
+    TextBlock tb = new TextBlock();
+    tb.text = message.getText(0);
+    tb.objectAttributes = ContextBase.getSmartFieldAttributes(message);
+    removePlaceholderText(tb);
+    return tb.flushText();
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+
+import com.evernote.iwana.LazyMessage;
+import com.evernote.iwana.LazyMessageAction;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * Stores the given Message's raw payload in our ObjectStore for deferred processing.
+ * 
+ * The message is parsed right away, so that invalid messages are reported like any other
+ * invalid message, unless the context stores objects lazily (see
+ * {@link ExtractTextIWAContext#isLazyObjects()}); then, it is only parsed if it is
+ * actually looked up.
+ * 
+ * @see StoreObject
+ */
+class LazyStoreObject<T extends Message> extends
+    LazyMessageAction<T, ExtractTextIWAContext> {
+  protected LazyStoreObject(Parser<T> parser) {
+    super(parser);
+  }
+
+  @Override
+  protected void onMessage(LazyMessage<T> message, ArchiveInfo ai, MessageInfo mi,
+      ExtractTextIWAContext context) throws IOException {
+    if (!context.isLazyObjects()) {
+      message.get();
+    }
+    context.objectStore.put(ai.getIdentifier(), message);
+  }
+}
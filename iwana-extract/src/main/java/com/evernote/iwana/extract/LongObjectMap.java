@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive {@code long} keys (object identifiers) to objects, using open
+ * addressing.
+ *
+ * Keys and values are stored in insertion order in plain arrays; a separate hash index
+ * (with linear probing) refers to their positions. Entries can be iterated using
+ * {@link #keyAt(int)} and {@link #valueAt(int)}, in insertion order (like a
+ * {@link java.util.LinkedHashMap}, replacing a value does not change its position).
+ * Entries cannot be removed individually.
+ *
+ * @param <V> The value type.
+ */
+final class LongObjectMap<V> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int size = 0;
+
+  /**
+   * Hash slots, holding the entry position plus one, or 0 if free.
+   */
+  private int[] index;
+  private int mask;
+
+  LongObjectMap() {
+    this(INITIAL_CAPACITY);
+  }
+
+  LongObjectMap(final int expectedSize) {
+    final int capacity = Math.max(INITIAL_CAPACITY, expectedSize);
+    keys = new long[capacity];
+    values = new Object[capacity];
+    index = new int[indexLength(capacity)];
+    mask = index.length - 1;
+  }
+
+  private static int indexLength(final int capacity) {
+    // keep the load factor at or below 0.5
+    return Integer.highestOneBit(capacity * 2 - 1) << 1;
+  }
+
+  static int hash(final long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the position of the given key, in insertion order.
+   *
+   * @param key The key.
+   * @return The position, or {@code -1} if there is no such key.
+   */
+  int indexOf(final long key) {
+    return find(key);
+  }
+
+  private int find(final long key) {
+    int slot = hash(key) & mask;
+    int pos;
+    while ((pos = index[slot]) != 0) {
+      if (keys[pos - 1] == key) {
+        return pos - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the value for the given key.
+   *
+   * @param key The key.
+   * @return The value, or {@code null} if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  V get(final long key) {
+    final int pos = find(key);
+    return pos == -1 ? null : (V) values[pos];
+  }
+
+  boolean containsKey(final long key) {
+    return find(key) != -1;
+  }
+
+  /**
+   * Associates the given value with the given key.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @return The previous value, or {@code null} if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  V put(final long key, final V value) {
+    int slot = hash(key) & mask;
+    int pos;
+    while ((pos = index[slot]) != 0) {
+      if (keys[pos - 1] == key) {
+        final V old = (V) values[pos - 1];
+        values[pos - 1] = value;
+        return old;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == keys.length) {
+      grow();
+      slot = hash(key) & mask;
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+    }
+    keys[size] = key;
+    values[size] = value;
+    index[slot] = ++size;
+    return null;
+  }
+
+  /**
+   * Returns the key of the {@code i}-th entry, in insertion order.
+   */
+  long keyAt(final int i) {
+    return keys[i];
+  }
+
+  /**
+   * Returns the value of the {@code i}-th entry, in insertion order.
+   */
+  @SuppressWarnings("unchecked")
+  V valueAt(final int i) {
+    return (V) values[i];
+  }
+
+  /**
+   * Removes all entries.
+   */
+  void clear() {
+    Arrays.fill(values, 0, size, null);
+    Arrays.fill(index, 0);
+    size = 0;
+  }
+
+  private void grow() {
+    final int capacity = keys.length * 2;
+    keys = Arrays.copyOf(keys, capacity);
+    values = Arrays.copyOf(values, capacity);
+    index = new int[indexLength(capacity)];
+    mask = index.length - 1;
+
+    for (int i = 0; i < size; i++) {
+      int slot = hash(keys[i]) & mask;
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = i + 1;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive {@code long} values (object identifiers), using open addressing with
+ * linear probing.
+ *
+ * @see LongObjectMap
+ */
+final class LongSet {
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * Hash slots; 0 denotes a free slot, so the value 0 is tracked separately.
+   */
+  private long[] table = new long[INITIAL_CAPACITY * 2];
+  private int mask = table.length - 1;
+  private boolean containsZero = false;
+  private int size = 0;
+
+  /**
+   * Returns the number of values.
+   */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  boolean contains(final long value) {
+    if (value == 0) {
+      return containsZero;
+    }
+    int slot = LongObjectMap.hash(value) & mask;
+    long v;
+    while ((v = table[slot]) != 0) {
+      if (v == value) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the given value.
+   *
+   * @param value The value.
+   * @return {@code true} if the value was not already contained.
+   */
+  boolean add(final long value) {
+    if (value == 0) {
+      if (containsZero) {
+        return false;
+      }
+      containsZero = true;
+      size++;
+      return true;
+    }
+
+    int slot = LongObjectMap.hash(value) & mask;
+    long v;
+    while ((v = table[slot]) != 0) {
+      if (v == value) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = value;
+    if (++size * 2 > table.length) {
+      rehash(table.length * 2);
+    }
+    return true;
+  }
+
+  /**
+   * Removes all values.
+   */
+  void clear() {
+    Arrays.fill(table, 0);
+    containsZero = false;
+    size = 0;
+  }
+
+  private void rehash(final int newLength) {
+    final long[] old = table;
+    table = new long[newLength];
+    mask = newLength - 1;
+    for (long v : old) {
+      if (v != 0) {
+        int slot = LongObjectMap.hash(v) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = v;
+      }
+    }
+  }
+}
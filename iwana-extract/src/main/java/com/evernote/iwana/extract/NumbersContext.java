@@ -39,7 +39,7 @@ class NumbersContext extends ContextBase {
 
   static {
     NUMBERS_ACTIONS
-        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.PARSER));
+        .setAction(1, new LazyStoreObject<DocumentArchive>(DocumentArchive.PARSER));
 
     NUMBERS_ACTIONS.setAction(new int[] {6005, 6201}, new StoreObject<TableDataList>(
         TableDataList.PARSER) {
@@ -68,8 +68,7 @@ class NumbersContext extends ContextBase {
 
         for (ListEntry le : entriesList) {
           // FIXME These list entries are probably not ordered correctly
-          context.getTarget()
-              .onTextBlock(le.getString(), TextAttributes.DEFAULT_DOCUMENT);
+          context.emitText(le.getString(), TextAttributes.DEFAULT_DOCUMENT);
         }
       }
 
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.Closeable;
+
+import com.evernote.iwana.LazyMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Holds the archived objects of a document while it is being parsed, so they can be
+ * looked up by their identifier once all references are known.
+ *
+ * Each document gets its own {@link ObjectStore}, which is closed (and its contents freed)
+ * when the document has been parsed. Instances need not be thread-safe.
+ *
+ * @see #HEAP
+ * @see #offHeap()
+ */
+public abstract class ObjectStore implements Closeable {
+  /**
+   * Creates a new {@link ObjectStore} for each document.
+   */
+  public interface Factory {
+    /**
+     * Creates a new, empty {@link ObjectStore}.
+     *
+     * @return The store.
+     */
+    ObjectStore newObjectStore();
+  }
+
+  /**
+   * Keeps objects on the Java heap, as {@link LazyMessage}s. Objects are parsed at most
+   * once. This is the default.
+   */
+  public static final Factory HEAP = new Factory() {
+
+    @Override
+    public ObjectStore newObjectStore() {
+      return new HeapObjectStore();
+    }
+  };
+
+  protected ObjectStore() {
+  }
+
+  /**
+   * Keeps the serialized objects in direct {@link java.nio.ByteBuffer} arenas of the
+   * default size, outside of the Java heap.
+   *
+   * @return A new factory, with its own pool of arenas.
+   * @see #offHeap(int, int)
+   */
+  public static Factory offHeap() {
+    return offHeap(OffHeapObjectStore.DEFAULT_ARENA_SIZE,
+        OffHeapObjectStore.DEFAULT_MAX_POOLED_ARENAS);
+  }
+
+  /**
+   * Keeps the serialized objects in direct {@link java.nio.ByteBuffer} arenas, outside of
+   * the Java heap. Objects are parsed again upon every lookup, trading CPU time for a
+   * small and predictable heap.
+   *
+   * When a store is closed, its arenas are returned to a pool that is shared by all stores
+   * created by the returned factory, so that direct memory is not reallocated for every
+   * document. The pool never allocates more than {@code maxPooledArenas} arenas; objects
+   * that are stored while all of them are in use are kept on the heap instead.
+   *
+   * @param arenaSize The size of each arena, in bytes. Larger objects are kept on the
+   *          heap.
+   * @param maxPooledArenas The maximum number of direct arenas (at least one).
+   * @return A new factory, with its own pool of arenas.
+   */
+  public static Factory offHeap(final int arenaSize, final int maxPooledArenas) {
+    if (arenaSize <= 0) {
+      throw new IllegalArgumentException("Illegal arena size: " + arenaSize);
+    }
+    final OffHeapObjectStore.ArenaPool pool =
+        new OffHeapObjectStore.ArenaPool(arenaSize, maxPooledArenas);
+    return new Factory() {
+
+      @Override
+      public ObjectStore newObjectStore() {
+        return new OffHeapObjectStore(pool);
+      }
+    };
+  }
+
+  /**
+   * Stores the given object, replacing any object with the same identifier.
+   *
+   * @param id The object identifier.
+   * @param message The object.
+   */
+  public abstract void put(long id, LazyMessage<? extends Message> message);
+
+  /**
+   * Returns the object with the given identifier, parsing it if necessary.
+   *
+   * @param id The object identifier.
+   * @return The object, or {@code null} if there is no such object.
+   * @throws InvalidProtocolBufferException if the object could not be parsed.
+   */
+  public abstract Message get(long id) throws InvalidProtocolBufferException;
+
+  /**
+   * Returns the number of stored objects.
+   */
+  public abstract int size();
+
+  /**
+   * Returns an estimate of the memory held by the stored objects, in bytes.
+   */
+  public abstract long getRetainedBytes();
+
+  /**
+   * Removes all objects, and frees the memory held by them.
+   */
+  @Override
+  public abstract void close();
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.evernote.iwana.LazyMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * An {@link ObjectStore} that keeps serialized objects in direct {@link ByteBuffer}
+ * arenas, outside of the Java heap.
+ *
+ * Objects are appended to the current arena; the heap only holds a compact index from
+ * object identifiers to their parser and location. Objects are parsed again upon every
+ * lookup. Upon {@link #close()}, all arenas are returned to the {@link ArenaPool} at once.
+ *
+ * Direct memory is never allocated beyond the pool's bound, since it is only freed by
+ * garbage collection: objects larger than an arena, and objects that are stored while all
+ * of the pool's arenas are in use, are kept in heap buffers instead.
+ *
+ * @see ObjectStore#offHeap(int, int)
+ */
+final class OffHeapObjectStore extends ObjectStore {
+  static final int DEFAULT_ARENA_SIZE = 1024 * 1024;
+  static final int DEFAULT_MAX_POOLED_ARENAS = 64;
+
+  /**
+   * A bounded pool of equally sized direct arenas, shared by the stores of one factory.
+   * At most {@code maxArenas} arenas are ever allocated.
+   */
+  static final class ArenaPool {
+    private final int arenaSize;
+    private final int maxArenas;
+    private final ArrayBlockingQueue<ByteBuffer> arenas;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    ArenaPool(final int arenaSize, final int maxPooledArenas) {
+      this.arenaSize = arenaSize;
+      this.maxArenas = Math.max(1, maxPooledArenas);
+      this.arenas = new ArrayBlockingQueue<>(maxArenas);
+    }
+
+    /**
+     * Returns a free arena, allocating one if the pool's bound permits.
+     *
+     * @return The arena, or {@code null} if all arenas are in use.
+     */
+    ByteBuffer acquire() {
+      final ByteBuffer arena = arenas.poll();
+      if (arena != null) {
+        return arena;
+      }
+      int n;
+      do {
+        n = allocated.get();
+        if (n >= maxArenas) {
+          return null;
+        }
+      } while (!allocated.compareAndSet(n, n + 1));
+      return ByteBuffer.allocateDirect(arenaSize);
+    }
+
+    void release(final ByteBuffer arena) {
+      arena.clear();
+      arenas.offer(arena);
+    }
+  }
+
+  private final ArenaPool pool;
+  private final List<ByteBuffer> arenas = new ArrayList<>();
+  private ByteBuffer current = null;
+  private int currentIndex = -1;
+
+  /**
+   * Holds a direct arena's object while it is parsed.
+   */
+  private byte[] scratch = new byte[0];
+
+  /**
+   * Object identifiers, mapped to their parsers. The location of each object is stored at
+   * the same position in {@link #locations} and {@link #lengths}.
+   */
+  private final LongObjectMap<Parser<? extends Message>> parsers = new LongObjectMap<>();
+
+  /**
+   * The arena index (upper 32 bits) and offset (lower 32 bits) of each object.
+   */
+  private long[] locations = new long[16];
+  private int[] lengths = new int[16];
+
+  OffHeapObjectStore(final ArenaPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public void put(final long id, final LazyMessage<? extends Message> message) {
+    final byte[] data = message.toByteArray();
+    final Parser<? extends Message> parser = message.getParser();
+
+    final int arenaIndex;
+    final int offset;
+    if (data.length > pool.arenaSize) {
+      // a heap "arena" of its own, without copying
+      arenaIndex = arenas.size();
+      offset = 0;
+      arenas.add(ByteBuffer.wrap(data));
+    } else {
+      if (current == null || current.remaining() < data.length) {
+        current = pool.acquire();
+        if (current == null) {
+          current = ByteBuffer.allocate(pool.arenaSize);
+        }
+        currentIndex = arenas.size();
+        arenas.add(current);
+      }
+      arenaIndex = currentIndex;
+      offset = current.position();
+      current.put(data);
+    }
+
+    parsers.put(id, parser);
+    final int pos = parsers.indexOf(id);
+    if (pos == locations.length) {
+      locations = Arrays.copyOf(locations, pos * 2);
+      lengths = Arrays.copyOf(lengths, pos * 2);
+    }
+    locations[pos] = ((long) arenaIndex << 32) | offset;
+    lengths[pos] = data.length;
+  }
+
+  @Override
+  public Message get(final long id) throws InvalidProtocolBufferException {
+    final int pos = parsers.indexOf(id);
+    if (pos == -1) {
+      return null;
+    }
+    final long location = locations[pos];
+    final ByteBuffer arena = arenas.get((int) (location >>> 32));
+    final int offset = (int) location;
+    final int length = lengths[pos];
+    if (arena.hasArray()) {
+      return parsers.valueAt(pos).parseFrom(arena.array(), arena.arrayOffset() + offset,
+          length);
+    }
+
+    // parsed messages do not retain the input array, so it can be reused
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, Math.min(scratch.length * 2, pool.arenaSize))];
+    }
+    final ByteBuffer src = arena.duplicate();
+    src.position(offset);
+    src.get(scratch, 0, length);
+    return parsers.valueAt(pos).parseFrom(scratch, 0, length);
+  }
+
+  @Override
+  public int size() {
+    return parsers.size();
+  }
+
+  @Override
+  public long getRetainedBytes() {
+    long bytes = 0;
+    for (ByteBuffer arena : arenas) {
+      bytes += arena.capacity();
+    }
+    return bytes;
+  }
+
+  @Override
+  public void close() {
+    for (ByteBuffer arena : arenas) {
+      if (arena.isDirect()) {
+        pool.release(arena);
+      }
+    }
+    arenas.clear();
+    current = null;
+    currentIndex = -1;
+    parsers.clear();
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.AbstractParser;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+/**
+ * A {@link com.google.protobuf.Parser} for {@link StorageArchive}s that only extracts the
+ * fields used by the text extractor ({@code in_document}, {@code text} and
+ * {@code table_smartfield}), and skips everything else at the wire-format level. In
+ * particular, the paragraph, character and list style tables are not parsed.
+ *
+ * If the message is unusual (one of these fields is encoded with an unexpected wire type,
+ * the message contains an unbalanced group, or the extracted fields do not form an
+ * initialized message), the message is parsed in full using {@link StorageArchive#PARSER}
+ * instead. Note that the skipped fields are not validated.
+ */
+final class StorageArchiveScanner extends AbstractParser<StorageArchive> {
+  static final StorageArchiveScanner PARSER = new StorageArchiveScanner();
+
+  private static final int TAG_TEXT = (StorageArchive.TEXT_FIELD_NUMBER << 3)
+      | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int TAG_IN_DOCUMENT = (StorageArchive.IN_DOCUMENT_FIELD_NUMBER << 3)
+      | WireFormat.WIRETYPE_VARINT;
+  private static final int TAG_TABLE_SMARTFIELD =
+      (StorageArchive.TABLE_SMARTFIELD_FIELD_NUMBER << 3)
+          | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+  private StorageArchiveScanner() {
+  }
+
+  @Override
+  public StorageArchive parsePartialFrom(final CodedInputStream input,
+      final ExtensionRegistryLite extensionRegistry) throws InvalidProtocolBufferException {
+    final int length = input.getBytesUntilLimit();
+    if (length < 0) {
+      // not limited to a single message; we can't fall back after scanning
+      return StorageArchive.PARSER.parsePartialFrom(input, extensionRegistry);
+    }
+
+    final byte[] data;
+    try {
+      data = input.readRawBytes(length);
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+
+    final StorageArchive message = scan(data, extensionRegistry);
+    if (message != null) {
+      return message;
+    }
+    return StorageArchive.PARSER.parsePartialFrom(data, extensionRegistry);
+  }
+
+  /**
+   * Scans the given payload.
+   *
+   * @return The message, or {@code null} if the message is unusual.
+   */
+  private static StorageArchive scan(final byte[] data,
+      final ExtensionRegistryLite extensionRegistry) throws InvalidProtocolBufferException {
+    final CodedInputStream in = CodedInputStream.newInstance(data);
+    final StorageArchive.Builder builder = StorageArchive.newBuilder();
+
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        switch (tag) {
+          case TAG_TEXT:
+            builder.addTextBytes(in.readBytes());
+            break;
+          case TAG_IN_DOCUMENT:
+            builder.setInDocument(in.readBool());
+            break;
+          case TAG_TABLE_SMARTFIELD:
+            in.readMessage(builder.getTableSmartfieldBuilder(), extensionRegistry);
+            break;
+          default:
+            switch (WireFormat.getTagFieldNumber(tag)) {
+              case StorageArchive.TEXT_FIELD_NUMBER:
+              case StorageArchive.IN_DOCUMENT_FIELD_NUMBER:
+              case StorageArchive.TABLE_SMARTFIELD_FIELD_NUMBER:
+                // unexpected wire type
+                return null;
+              default:
+                if (!in.skipField(tag)) {
+                  // end group
+                  return null;
+                }
+            }
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+
+    final StorageArchive message = builder.buildPartial();
+    return message.isInitialized() ? message : null;
+  }
+}
@@ -17,6 +17,7 @@ package com.evernote.iwana.extract;
 
 import java.io.IOException;
 
+import com.evernote.iwana.LazyMessage;
 import com.evernote.iwana.MessageAction;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
@@ -24,7 +25,9 @@ import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 
 /**
- * Stores the given Message in our objectStorage for deferred processing.
+ * Stores the given Message in our ObjectStore for deferred processing.
+ * 
+ * @see LazyStoreObject
  */
 class StoreObject<T extends Message> extends MessageAction<T, ExtractTextIWAContext> {
   protected StoreObject(Parser<T> parser) {
@@ -34,6 +37,6 @@ class StoreObject<T extends Message> extends MessageAction<T, ExtractTextIWACont
   @Override
   protected void onMessage(T message, ArchiveInfo ai, MessageInfo mi,
       ExtractTextIWAContext context) throws IOException {
-    context.objectStorage.put(ai.getIdentifier(), message);
+    context.objectStore.put(ai.getIdentifier(), new LazyMessage<T>(message));
   }
 }
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+
+/**
+ * Checks the estimates of {@link DocumentCost} against the actual sizes of generated
+ * documents.
+ */
+public class DocumentCostTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final IWorkGenerator generator = new IWorkGenerator().setObjects(20)
+      .setChunkSize(8192);
+
+  private static void write(final File file, final byte[] data) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  /**
+   * Returns the actual cost of the given {@code .iwa} files.
+   */
+  private static DocumentCost actualCost(final Map<String, byte[]> files)
+      throws IOException {
+    long indexBytes = 0;
+    long uncompressedIndexBytes = 0;
+    final byte[] buf = new byte[8192];
+    for (byte[] iwa : files.values()) {
+      indexBytes += iwa.length;
+      try (InputStream in =
+          new SnappyNoCRCFramedInputStream(new ByteArrayInputStream(iwa))) {
+        int read;
+        while ((read = in.read(buf)) != -1) {
+          uncompressedIndexBytes += read;
+        }
+      }
+    }
+    return new DocumentCost(indexBytes, uncompressedIndexBytes);
+  }
+
+  private static void assertCost(final DocumentCost expected, final DocumentCost actual) {
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void testStoredIndexZip() throws IOException {
+    for (DocumentType type : DocumentType.values()) {
+      final File file = tmp.newFile("Test" + type.getExtension() + ".zip");
+      write(file, generator.generate(type, "Test"));
+      assertCost(actualCost(generator.generateIndexFiles(type)),
+          DocumentCost.estimate(file));
+    }
+  }
+
+  @Test
+  public void testBundleDirectory() throws IOException {
+    final File bundle = tmp.newFolder("Test.key");
+    write(new File(bundle, "Index.zip"),
+        generator.generateIndexZip(DocumentType.KEYNOTE));
+    assertCost(actualCost(generator.generateIndexFiles(DocumentType.KEYNOTE)),
+        DocumentCost.estimate(bundle));
+  }
+
+  /**
+   * The entries of a deflated {@code Index.zip} cannot be accessed without inflating it,
+   * so the estimate falls back to its size.
+   */
+  @Test
+  public void testDeflatedIndexZip() throws IOException {
+    final IWorkGenerator deflating = new IWorkGenerator().setStoredIndexZip(false);
+    final File file = tmp.newFile("Test.key.zip");
+    write(file, deflating.generate(DocumentType.KEYNOTE, "Test"));
+    final long size = deflating.generateIndexZip(DocumentType.KEYNOTE).length;
+    assertCost(new DocumentCost(size, size * DocumentCost.ASSUMED_COMPRESSION_RATIO),
+        DocumentCost.estimate(file));
+  }
+
+  @Test
+  public void testNotAZipFile() throws IOException {
+    final File file = tmp.newFile("Test.key");
+    write(file, new byte[1000]);
+    assertCost(new DocumentCost(1000, 1000 * DocumentCost.ASSUMED_COMPRESSION_RATIO),
+        DocumentCost.estimate(file));
+  }
+}
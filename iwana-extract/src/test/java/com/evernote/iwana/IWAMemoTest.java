@@ -0,0 +1,93 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks which {@code .iwa} files are considered the same by an {@link IWAMemo}.
+ */
+public class IWAMemoTest {
+  private final IWAMemo memo = new IWAMemo(1024 * 1024);
+  private final MessageActions actions = new MessageActions();
+  private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+
+  @Test
+  public void testSameFile() {
+    final IWAMemo.Key key = memo.keyFor("Index/Slide-1.iwa", data, actions);
+    final IWAMemo.Key other = memo.keyFor("Index/Slide-1.iwa", data.clone(), actions);
+    assertEquals(key, other);
+    assertEquals(key.hashCode(), other.hashCode());
+    assertFalse(key.isShared());
+  }
+
+  /**
+   * Regular files carry the identifiers of their archives, so the same contents under
+   * another name are a different file.
+   */
+  @Test
+  public void testRegularFilesAreKeyedByName() {
+    assertNotEquals(memo.keyFor("Index/Slide-1.iwa", data, actions),
+        memo.keyFor("Index/Slide-2.iwa", data, actions));
+  }
+
+  @Test
+  public void testSharedFilesAreKeyedByContents() {
+    final IWAMemo.Key key = memo.keyFor("Index/Theme-1.iwa", data, actions);
+    assertTrue(key.isShared());
+    assertEquals(key, memo.keyFor("Index/MasterSlide-7.iwa", data, actions));
+    assertEquals(key, memo.keyFor("Index/DocumentStylesheet.iwa", data, actions));
+    assertNotEquals(key, memo.keyFor("Index/Slide-1.iwa", data, actions));
+  }
+
+  /**
+   * Files of the same size must not collide, whatever their contents.
+   */
+  @Test
+  public void testContents() {
+    final byte[] other = data.clone();
+    other[other.length - 1]++;
+    assertNotEquals(memo.keyFor("Index/Slide-1.iwa", data, actions),
+        memo.keyFor("Index/Slide-1.iwa", other, actions));
+    assertNotEquals(memo.keyFor("Index/Theme-1.iwa", data, actions),
+        memo.keyFor("Index/Theme-1.iwa", other, actions));
+  }
+
+  /**
+   * The messages that are kept depend on the actions, so each set of actions has its own
+   * entries.
+   */
+  @Test
+  public void testActions() {
+    assertNotEquals(memo.keyFor("Index/Theme-1.iwa", data, actions),
+        memo.keyFor("Index/Theme-1.iwa", data, new MessageActions(actions)));
+  }
+
+  @Test
+  public void testAccepts() {
+    final IWAMemo sharedOnly =
+        new IWAMemo(1024 * 1024, IWAMemo.DEFAULT_SHARED_FILES, false);
+    assertTrue(sharedOnly.accepts("Index/Theme-1.iwa"));
+    assertTrue(sharedOnly.accepts("Index/MasterSlide-1.iwa"));
+    assertFalse(sharedOnly.accepts("Index/Slide-1.iwa"));
+    assertTrue(memo.accepts("Index/Slide-1.iwa"));
+  }
+}
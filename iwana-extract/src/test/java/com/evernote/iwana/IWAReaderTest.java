@@ -0,0 +1,159 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Checks that {@link IWAReader} reads all messages, and rejects messages with invalid
+ * lengths.
+ */
+public class IWAReaderTest {
+  /**
+   * Reads the payload of all messages, and records the identifiers of all messages, and
+   * of all invalid messages (negated).
+   */
+  private static class RecordingSink extends IWAReader.MessageSink {
+    final List<Long> ids = new ArrayList<>();
+    private final boolean accept;
+
+    RecordingSink(final boolean accept) {
+      this.accept = accept;
+    }
+
+    @Override
+    boolean accept(MessageInfo mi) {
+      return accept;
+    }
+
+    @Override
+    void onMessage(CodedInputStream in, ArchiveInfo ai, MessageInfo mi)
+        throws IOException {
+      in.readRawBytes(mi.getLength());
+      ids.add(ai.getIdentifier());
+    }
+
+    @Override
+    void onInvalidMessage(ArchiveInfo ai, MessageInfo mi,
+        InvalidProtocolBufferException e) {
+      ids.add(-ai.getIdentifier());
+    }
+  }
+
+  private static void addArchive(final ByteArrayOutputStream out, final long id,
+      final int declaredLength, final int actualLength) throws IOException {
+    ArchiveInfo.newBuilder().setIdentifier(id)
+        .addMessageInfos(MessageInfo.newBuilder().setType(1).setLength(declaredLength))
+        .build().writeDelimitedTo(out);
+    out.write(new byte[actualLength]);
+  }
+
+  @Test
+  public void testGeneratedFile() throws IOException {
+    final byte[] iwa =
+        new IWorkGenerator().setObjects(50).setChunkSize(1000)
+            .generateIndexFiles(DocumentType.PAGES).get("Index/Document.iwa");
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Long> expected = null;
+      for (boolean parallel : new boolean[] {false, true}) {
+        final RecordingSink sink = new RecordingSink(true);
+        new IWAReader(new ByteArrayInputStream(iwa), parallel ? executor : null, 3)
+            .read(sink);
+        // 50 storages with 10 filler messages each
+        assertEquals(550, sink.ids.size());
+        if (expected == null) {
+          expected = sink.ids;
+        } else {
+          assertEquals(expected, sink.ids);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * A negative length (a large unsigned value) must be reported as an invalid message,
+   * and must not be used to skip or limit the input.
+   */
+  @Test
+  public void testNegativeMessageLength() throws IOException {
+    final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    addArchive(raw, 5, 3, 3);
+    addArchive(raw, 6, -5, 30);
+    final byte[] iwa = IWorkGenerator.frame(raw.toByteArray(), 65536);
+
+    for (boolean accept : new boolean[] {true, false}) {
+      final RecordingSink sink = new RecordingSink(accept);
+      new IWAReader(new ByteArrayInputStream(iwa), null, 0).read(sink);
+      assertEquals(accept ? Arrays.asList(5L, -6L) : Arrays.asList(-6L), sink.ids);
+    }
+  }
+
+  @Test
+  public void testMessageLengthLimit() throws IOException {
+    final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    addArchive(raw, 5, 100, 100);
+    addArchive(raw, 6, 101, 101);
+    final byte[] iwa = IWorkGenerator.frame(raw.toByteArray(), 65536);
+
+    final RecordingSink sink = new RecordingSink(true);
+    final IWAReader reader = new IWAReader(new ByteArrayInputStream(iwa), null, 0);
+    reader.setBudget(new ParseBudget(ParseLimits.NONE.withMaxMessageLength(100)));
+    try {
+      reader.read(sink);
+      fail("message length limit was not enforced");
+    } catch (ParseLimitExceededException e) {
+      assertEquals(ParseLimits.Limit.MESSAGE_LENGTH, e.getLimit());
+    }
+    assertEquals(Arrays.asList(5L), sink.ids);
+  }
+
+  /**
+   * A message that extends beyond the end of the data is passed on with the remaining
+   * data, so it is reported as an invalid message when read.
+   */
+  @Test
+  public void testTruncatedMessage() throws IOException {
+    final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    addArchive(raw, 5, 3, 3);
+    addArchive(raw, 6, 1000, 10);
+    final byte[] iwa = IWorkGenerator.frame(raw.toByteArray(), 65536);
+
+    final RecordingSink sink = new RecordingSink(true);
+    new IWAReader(new ByteArrayInputStream(iwa), null, 0).read(sink);
+    assertEquals(Arrays.asList(5L, -6L), sink.ids);
+  }
+}
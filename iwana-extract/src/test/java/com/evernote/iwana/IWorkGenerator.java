@@ -0,0 +1,546 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.iq80.snappy.Snappy;
+
+import com.evernote.iwana.pb.KN.KNArchives;
+import com.evernote.iwana.pb.TN.TNArchives;
+import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.GeometryArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.pb.TSP.TSPMessages.Point;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListEntry;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListType;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Synthesizes iWork'13-style documents (Keynote, Pages, Numbers) for tests and
+ * benchmarks.
+ *
+ * The documents are built from the protobuf classes in {@code iwana-protobuf}, with the
+ * message types the text extractor looks for, plus a configurable number of "filler"
+ * messages of a type that has no registered action (standing in for the style and
+ * command archives that make up most of a real document). Required fields that the
+ * generator does not set explicitly are filled with their default values via the
+ * message descriptors.
+ *
+ * The output is deterministic for a given configuration.
+ */
+public class IWorkGenerator {
+  /**
+   * The supported document types.
+   */
+  public enum DocumentType {
+    KEYNOTE(".key"), PAGES(".pages"), NUMBERS(".numbers");
+
+    private final String extension;
+
+    private DocumentType(final String extension) {
+      this.extension = extension;
+    }
+
+    /**
+     * Returns the file name extension, including the leading dot.
+     *
+     * @return The extension.
+     */
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  /**
+   * A message type without a registered action in the text extractor.
+   */
+  static final int FILLER_TYPE = 99999;
+
+  private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet",
+      "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod", "tempor", "incididunt",
+      "ut", "labore", "et", "dolore", "magna", "aliqua", "enim", "ad", "minim", "veniam",
+      "quis", "nostrud", "exercitation", "ullamco", "laboris", "nisi", "aliquip"};
+
+  private int objects = 50;
+  private int paragraphs = 5;
+  private int fillerMessages = 10;
+  private int chunkSize = 64 * 1024;
+  private boolean storedIndexZip = true;
+  private long seed = 42;
+
+  /**
+   * Sets the number of top-level objects: slides (Keynote), text storages (Pages) or
+   * table data lists (Numbers).
+   *
+   * @param objects The number of objects.
+   * @return This instance.
+   */
+  public IWorkGenerator setObjects(final int objects) {
+    this.objects = objects;
+    return this;
+  }
+
+  /**
+   * Sets the number of paragraphs (or list entries) per text object.
+   *
+   * @param paragraphs The number of paragraphs.
+   * @return This instance.
+   */
+  public IWorkGenerator setParagraphs(final int paragraphs) {
+    this.paragraphs = paragraphs;
+    return this;
+  }
+
+  /**
+   * Sets the number of filler messages added per top-level object.
+   *
+   * @param fillerMessages The number of filler messages.
+   * @return This instance.
+   */
+  public IWorkGenerator setFillerMessages(final int fillerMessages) {
+    this.fillerMessages = fillerMessages;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of uncompressed bytes per Snappy chunk.
+   *
+   * @param chunkSize The chunk size, at most 65536.
+   * @return This instance.
+   */
+  public IWorkGenerator setChunkSize(final int chunkSize) {
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  /**
+   * Sets whether {@code Index.zip} should be stored uncompressed in the outer zip file
+   * (as done by iWork), or deflated.
+   *
+   * @param stored {@code true} to store uncompressed.
+   * @return This instance.
+   */
+  public IWorkGenerator setStoredIndexZip(final boolean stored) {
+    this.storedIndexZip = stored;
+    return this;
+  }
+
+  /**
+   * Sets the seed for the generated text.
+   *
+   * @param seed The seed.
+   * @return This instance.
+   */
+  public IWorkGenerator setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Generates a zip file containing a document bundle ({@code <name>/Index.zip}).
+   *
+   * @param type The document type.
+   * @param name The document name, without extension.
+   * @return The zip file's contents.
+   * @throws IOException
+   */
+  public byte[] generate(final DocumentType type, final String name) throws IOException {
+    return toDocument(type, name, generateIndexFiles(type));
+  }
+
+  /**
+   * Packages the given {@code .iwa} files as a zip file containing a document bundle
+   * ({@code <name>/Index.zip}).
+   *
+   * @param type The document type.
+   * @param name The document name, without extension.
+   * @param indexFiles A map from file names (like {@code Index/Document.iwa}) to file
+   *          contents.
+   * @return The zip file's contents.
+   * @throws IOException
+   */
+  public byte[] toDocument(final DocumentType type, final String name,
+      final Map<String, byte[]> indexFiles) throws IOException {
+    final byte[] indexZip = toIndexZip(indexFiles);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(indexZip.length + 1024);
+    try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+      putEntry(zos, name + type.getExtension() + "/Index.zip", indexZip, storedIndexZip);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Generates a document's {@code Index.zip}.
+   *
+   * @param type The document type.
+   * @return The zip file's contents.
+   * @throws IOException
+   */
+  public byte[] generateIndexZip(final DocumentType type) throws IOException {
+    return toIndexZip(generateIndexFiles(type));
+  }
+
+  private static byte[] toIndexZip(final Map<String, byte[]> indexFiles)
+      throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+      for (Map.Entry<String, byte[]> en : indexFiles.entrySet()) {
+        // iWork stores the .iwa files uncompressed
+        putEntry(zos, en.getKey(), en.getValue(), true);
+      }
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Generates the Snappy-framed {@code .iwa} files of a document.
+   *
+   * @param type The document type.
+   * @return A map from file names (like {@code Index/Document.iwa}) to file contents.
+   * @throws IOException
+   */
+  public Map<String, byte[]> generateIndexFiles(final DocumentType type)
+      throws IOException {
+    final Random random = new Random(seed);
+    switch (type) {
+      case KEYNOTE:
+        return generateKeynote(random);
+      case PAGES:
+        return generatePages(random);
+      case NUMBERS:
+        return generateNumbers(random);
+      default:
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+  }
+
+  private Map<String, byte[]> generateKeynote(final Random random) throws IOException {
+    final Map<String, byte[]> files = new LinkedHashMap<>();
+    long nextId = 1000;
+
+    final IWABuilder document = new IWABuilder();
+    document.add(1, 1, KNArchives.DocumentArchive.newBuilder().setShow(ref(2)));
+    document.add(2, 2, KNArchives.ShowArchive.newBuilder().setSlideTree(
+        withRequired(KNArchives.SlideTreeArchive.newBuilder().setRootSlideNode(ref(3)))));
+
+    final KNArchives.SlideNodeArchive.Builder root = KNArchives.SlideNodeArchive.newBuilder();
+    final long[] slideIds = new long[objects];
+    for (int s = 0; s < objects; s++) {
+      final long nodeId = nextId++;
+      slideIds[s] = nextId++;
+      root.addChildren(ref(nodeId));
+      document.add(nodeId, 4,
+          KNArchives.SlideNodeArchive.newBuilder().setSlide(ref(slideIds[s])));
+    }
+    document.add(3, 4, root);
+    addFiller(document, random, objects);
+    files.put("Index/Document.iwa", document.toIWA());
+
+    for (int s = 0; s < objects; s++) {
+      final IWABuilder slideIWA = new IWABuilder();
+      final KNArchives.SlideArchive.Builder slide = KNArchives.SlideArchive.newBuilder();
+
+      for (int d = 0; d < 3; d++) {
+        final long shapeId = nextId++;
+        final long storageId = nextId++;
+        slide.addOwnedDrawables(ref(shapeId));
+        slideIWA.add(shapeId, 2011, shape(storageId, 100 * (d % 2), 50 * d));
+        slideIWA.add(storageId, 2001, storage(random, paragraphs));
+      }
+
+      final long noteId = nextId++;
+      final long noteStorageId = nextId++;
+      slide.setNote(ref(noteId));
+      slideIWA.add(noteId, 15,
+          KNArchives.NoteArchive.newBuilder().setContainedStorage(ref(noteStorageId)));
+      slideIWA.add(noteStorageId, 2001, storage(random, 1));
+
+      slideIWA.add(slideIds[s], 5, slide);
+      addFiller(slideIWA, random, fillerMessages);
+      files.put("Index/Slide-" + s + ".iwa", slideIWA.toIWA());
+    }
+
+    final IWABuilder master = new IWABuilder();
+    master.add(nextId++, 2001, storage(random, 1));
+    addFiller(master, random, fillerMessages);
+    files.put("Index/MasterSlide-1.iwa", master.toIWA());
+
+    return files;
+  }
+
+  private Map<String, byte[]> generatePages(final Random random) throws IOException {
+    final Map<String, byte[]> files = new LinkedHashMap<>();
+    long nextId = 1000;
+
+    final IWABuilder document = new IWABuilder();
+    for (int i = 0; i < objects; i++) {
+      document.add(nextId++, 2001, storage(random, paragraphs));
+      addFiller(document, random, fillerMessages);
+    }
+    files.put("Index/Document.iwa", document.toIWA());
+
+    return files;
+  }
+
+  private Map<String, byte[]> generateNumbers(final Random random) throws IOException {
+    final Map<String, byte[]> files = new LinkedHashMap<>();
+    long nextId = 1000;
+
+    final IWABuilder document = new IWABuilder();
+    document.add(1, 1, TNArchives.DocumentArchive.newBuilder());
+    addFiller(document, random, fillerMessages);
+    files.put("Index/Document.iwa", document.toIWA());
+
+    for (int t = 0; t < objects; t++) {
+      final IWABuilder table = new IWABuilder();
+      final TableDataList.Builder list =
+          TableDataList.newBuilder().setListType(ListType.STRING);
+      for (int p = 0; p < paragraphs; p++) {
+        list.addEntries(withRequired(
+            ListEntry.newBuilder().setKey(p + 1).setString(sentence(random))));
+      }
+      table.add(nextId++, 6005, list);
+      addFiller(table, random, fillerMessages);
+      files.put("Index/Tables/DataList-" + t + ".iwa", table.toIWA());
+    }
+
+    return files;
+  }
+
+  private void addFiller(final IWABuilder iwa, final Random random, final int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      iwa.add(iwa.nextFillerId++, FILLER_TYPE, storage(random, 1));
+    }
+  }
+
+  private static Reference ref(final long id) {
+    return Reference.newBuilder().setIdentifier(id).build();
+  }
+
+  private static ShapeInfoArchive.Builder shape(final long storageId, final float x,
+      final float y) {
+    final GeometryArchive.Builder geometry = GeometryArchive.newBuilder().setPosition(
+        withRequired(Point.newBuilder().setX(x).setY(y)));
+    final DrawableArchive.Builder drawable =
+        withRequired(DrawableArchive.newBuilder().setGeometry(withRequired(geometry)));
+    return ShapeInfoArchive.newBuilder()
+        .setSuper(withRequired(ShapeArchive.newBuilder().setSuper(drawable)))
+        .setContainedStorage(ref(storageId));
+  }
+
+  /**
+   * Builds a text storage with the given number of paragraphs, including paragraph and
+   * character style tables.
+   */
+  private static StorageArchive.Builder storage(final Random random, final int paragraphs) {
+    final StringBuilder sb = new StringBuilder();
+    final ObjectAttributeTable.Builder paraStyles = ObjectAttributeTable.newBuilder();
+    final ObjectAttributeTable.Builder charStyles = ObjectAttributeTable.newBuilder();
+    for (int p = 0; p < paragraphs; p++) {
+      paraStyles.addEntries(withRequired(ObjectAttribute.newBuilder()
+          .setCharacterIndex(sb.length()).setObject(ref(10 + p % 4))));
+      charStyles.addEntries(withRequired(ObjectAttribute.newBuilder()
+          .setCharacterIndex(sb.length()).setObject(ref(20 + p % 3))));
+      sb.append(sentence(random));
+      sb.append('\n');
+    }
+    return StorageArchive.newBuilder().setInDocument(true).addText(sb.toString())
+        .setTableParaStyle(paraStyles).setTableCharStyle(charStyles);
+  }
+
+  private static String sentence(final Random random) {
+    final StringBuilder sb = new StringBuilder();
+    final int words = 5 + random.nextInt(20);
+    for (int w = 0; w < words; w++) {
+      if (w > 0) {
+        sb.append(' ');
+      }
+      sb.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    sb.append('.');
+    return sb.toString();
+  }
+
+  /**
+   * Sets all unset required fields of the given builder (and of any set sub-messages) to
+   * their default values. Needs to be applied to builders before passing them to another
+   * builder's setters, as these build the message right away.
+   *
+   * @return The builder.
+   */
+  static <B extends Message.Builder> B withRequired(final B builder) {
+    fillRequired(builder);
+    return builder;
+  }
+
+  private static void fillRequired(final Message.Builder builder) {
+    for (FieldDescriptor field : builder.getDescriptorForType().getFields()) {
+      final boolean isMessage = field.getJavaType() == FieldDescriptor.JavaType.MESSAGE;
+      if (field.isRepeated()) {
+        if (isMessage) {
+          final int count = builder.getRepeatedFieldCount(field);
+          for (int i = 0; i < count; i++) {
+            Message.Builder sub = ((Message) builder.getRepeatedField(field, i)).toBuilder();
+            fillRequired(sub);
+            builder.setRepeatedField(field, i, sub.buildPartial());
+          }
+        }
+      } else if (builder.hasField(field)) {
+        if (isMessage) {
+          Message.Builder sub = ((Message) builder.getField(field)).toBuilder();
+          fillRequired(sub);
+          builder.setField(field, sub.buildPartial());
+        }
+      } else if (field.isRequired()) {
+        if (isMessage) {
+          Message.Builder sub = builder.newBuilderForField(field);
+          fillRequired(sub);
+          builder.setField(field, sub.buildPartial());
+        } else {
+          builder.setField(field, field.getDefaultValue());
+        }
+      }
+    }
+  }
+
+  private static void putEntry(final ZipOutputStream zos, final String name,
+      final byte[] data, final boolean stored) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    if (stored) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+      entry.setCrc(crc.getValue());
+    }
+    zos.putNextEntry(entry);
+    zos.write(data);
+    zos.closeEntry();
+  }
+
+  /**
+   * Collects the archives of one {@code .iwa} file.
+   */
+  private final class IWABuilder {
+    private final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    long nextFillerId = 900000000L;
+
+    void add(final long id, final int type, final Message.Builder builder)
+        throws IOException {
+      final Message message = withRequired(builder).build();
+      final MessageInfo.Builder mi =
+          MessageInfo.newBuilder().setType(type).setLength(message.getSerializedSize());
+      final ArchiveInfo ai =
+          withRequired(ArchiveInfo.newBuilder().setIdentifier(id)
+              .addMessageInfos(withRequired(mi))).build();
+      ai.writeDelimitedTo(raw);
+      message.writeTo(raw);
+    }
+
+    /**
+     * Returns the archives in the Snappy framing format without CRC values, as used by
+     * {@code .iwa} files.
+     */
+    byte[] toIWA() throws IOException {
+      return frame(raw.toByteArray(), chunkSize);
+    }
+  }
+
+  /**
+   * Compresses the given data in the Snappy framing format without CRC values, as used by
+   * {@code .iwa} files.
+   *
+   * @param data The uncompressed data (a sequence of archives, for {@code .iwa} files).
+   * @param chunkSize The maximum number of uncompressed bytes per chunk, at most 65536.
+   * @return The framed data.
+   */
+  public static byte[] frame(final byte[] data, final int chunkSize) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+    final byte[] compressed = new byte[Snappy.maxCompressedLength(chunkSize)];
+    for (int off = 0; off < data.length; off += chunkSize) {
+      final int len = Math.min(chunkSize, data.length - off);
+      final int compressedLength = Snappy.compress(data, off, len, compressed, 0);
+      writeChunkHeader(out, 0, compressedLength);
+      out.write(compressed, 0, compressedLength);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the header of a chunk in the Snappy framing format.
+   *
+   * @param out The target stream.
+   * @param chunkType The chunk type (e.g., {@code 0} for compressed data).
+   * @param length The length of the chunk's data.
+   */
+  public static void writeChunkHeader(final ByteArrayOutputStream out,
+      final int chunkType, final int length) {
+    out.write(chunkType);
+    out.write(length);
+    out.write(length >>> 8);
+    out.write(length >>> 16);
+  }
+
+  /**
+   * Writes one synthetic document of each type to the given directory.
+   *
+   * @param args The target directory, and optionally the number of objects.
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Syntax: IWorkGenerator <target-directory> [<objects>]");
+      System.exit(1);
+    }
+    final File dir = new File(args[0]);
+    dir.mkdirs();
+
+    final IWorkGenerator generator = new IWorkGenerator();
+    if (args.length == 2) {
+      generator.setObjects(Integer.parseInt(args[1]));
+    }
+    for (DocumentType type : DocumentType.values()) {
+      final File file = new File(dir, "Synthetic" + type.getExtension() + ".zip");
+      try (OutputStream out = new FileOutputStream(file)) {
+        out.write(generator.generate(type, "Synthetic"));
+      }
+      System.out.println(file);
+    }
+  }
+}
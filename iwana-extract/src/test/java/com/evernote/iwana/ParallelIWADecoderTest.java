@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ParallelIWADecoder#readFully(java.io.InputStream, long, ParseBudget)},
+ * which reads zip entries whose declared size is not trusted.
+ */
+public class ParallelIWADecoderTest {
+  private static byte[] randomBytes(final int length) {
+    final byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testReadFully() throws IOException {
+    final byte[] data = randomBytes(100000);
+    for (long sizeHint : new long[] {-1, 0, 10, data.length, 1L << 40, Long.MAX_VALUE}) {
+      assertArrayEquals(String.valueOf(sizeHint), data, ParallelIWADecoder.readFully(
+          new ByteArrayInputStream(data), sizeHint, null));
+    }
+  }
+
+  @Test
+  public void testReadFullyChargesBudget() throws IOException {
+    final byte[] data = randomBytes(100000);
+    assertArrayEquals(data, ParallelIWADecoder.readFully(new ByteArrayInputStream(data),
+        data.length, new ParseBudget(ParseLimits.NONE.withMaxUncompressedBytes(100000))));
+
+    try {
+      ParallelIWADecoder.readFully(new ByteArrayInputStream(data), 10,
+          new ParseBudget(ParseLimits.NONE.withMaxUncompressedBytes(99999)));
+      fail("budget was not charged");
+    } catch (ParseLimitExceededException e) {
+      assertEquals(ParseLimits.Limit.UNCOMPRESSED_BYTES, e.getLimit());
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.iq80.snappy.Snappy;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks {@link SnappyNoCRCFramedDecoder} and {@link SnappyNoCRCFramedInputStream}, with
+ * and without parallel decompression.
+ */
+public class SnappyNoCRCFramedDecoderTest {
+  private static ExecutorService executor;
+
+  private static byte[] expected;
+  private static byte[] framed;
+
+  @BeforeClass
+  public static void setUp() {
+    executor = Executors.newFixedThreadPool(3);
+
+    // compressed and stored chunks of random and repetitive data
+    final Random random = new Random(1);
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 12; i++) {
+      final byte[] data = new byte[i % 2 == 0 ? 65536 : 20000 + i];
+      if (i % 4 == 2) {
+        Arrays.fill(data, (byte) i);
+      } else {
+        random.nextBytes(data);
+      }
+      plain.write(data, 0, data.length);
+      if (i % 3 == 1) {
+        IWorkGenerator.writeChunkHeader(out, 1, data.length);
+        out.write(data, 0, data.length);
+      } else {
+        final byte[] compressed = Snappy.compress(data);
+        IWorkGenerator.writeChunkHeader(out, 0, compressed.length);
+        out.write(compressed, 0, compressed.length);
+      }
+    }
+    expected = plain.toByteArray();
+    framed = out.toByteArray();
+  }
+
+  @AfterClass
+  public static void shutDownExecutor() {
+    executor.shutdown();
+  }
+
+  private static SnappyNoCRCFramedDecoder newDecoder(final byte[] data,
+      final boolean parallel) {
+    return new SnappyNoCRCFramedDecoder(new ByteArrayInputStream(data),
+        parallel ? executor : null, 3);
+  }
+
+  private static byte[] decode(final SnappyNoCRCFramedDecoder decoder)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    while (decoder.fill()) {
+      out.write(decoder.array(), decoder.position(), decoder.remaining());
+      decoder.consume(decoder.remaining());
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testDecoder() throws IOException {
+    for (boolean parallel : new boolean[] {false, true}) {
+      final SnappyNoCRCFramedDecoder decoder = newDecoder(framed, parallel);
+      assertArrayEquals(expected, decode(decoder));
+      assertTrue(decoder.isEOF());
+
+      // reused after reset, and after release
+      decoder.reset(new ByteArrayInputStream(framed));
+      assertArrayEquals(expected, decode(decoder));
+      decoder.release();
+      decoder.reset(new ByteArrayInputStream(framed));
+      assertArrayEquals(expected, decode(decoder));
+      decoder.release();
+    }
+  }
+
+  @Test
+  public void testInputStream() throws IOException {
+    for (boolean parallel : new boolean[] {false, true}) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream in =
+          new SnappyNoCRCFramedInputStream(new ByteArrayInputStream(framed), true,
+              parallel ? executor : null, 3)) {
+        final byte[] buf = new byte[7000];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+          out.write(buf, 0, read);
+        }
+      }
+      assertArrayEquals(expected, out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testSkip() throws IOException {
+    for (boolean parallel : new boolean[] {false, true}) {
+      for (int offset : new int[] {0, 1, 65536, 100000, 250000}) {
+        final SnappyNoCRCFramedDecoder decoder = newDecoder(framed, parallel);
+        assertTrue(decoder.skip(offset));
+        assertTrue(decoder.require(10));
+        final int position = decoder.position();
+        assertArrayEquals(Arrays.copyOfRange(expected, offset, offset + 10),
+            Arrays.copyOfRange(decoder.array(), position, position + 10));
+        decoder.release();
+      }
+      final SnappyNoCRCFramedDecoder decoder = newDecoder(framed, parallel);
+      assertFalse(decoder.skip(expected.length + 1));
+      decoder.release();
+    }
+  }
+
+  /**
+   * Moving the window's data must be observable, since readers keep offsets into the
+   * window's array.
+   */
+  @Test
+  public void testGenerationChangesOnCompaction() throws IOException {
+    final SnappyNoCRCFramedDecoder decoder = newDecoder(framed, false);
+    assertTrue(decoder.fill());
+    final byte[] array = decoder.array();
+    int generation = decoder.generation();
+    boolean compacted = false;
+    while (!compacted && decoder.remaining() > 0) {
+      decoder.consume(decoder.remaining() - 1);
+      final int position = decoder.position();
+      assertTrue(decoder.fill());
+      if (decoder.generation() != generation) {
+        compacted = decoder.array() == array && decoder.position() != position;
+        generation = decoder.generation();
+      } else {
+        assertSame(array, decoder.array());
+        assertEquals(position, decoder.position());
+      }
+    }
+    assertTrue("window was never compacted in place", compacted);
+    decoder.release();
+  }
+
+  /**
+   * A chunk must not declare a decompressed length that its data cannot possibly have,
+   * since the decoder allocates the declared length up front.
+   */
+  @Test
+  public void testDeclaredLengthBombs() throws IOException {
+    final byte[][] bombs = {
+        // varint lengths of 2^31 - 1, 2^32 - 1 (negative as int) and 256 KB
+        {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0, 0, 0},
+        {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f, 0, 0, 0},
+        {(byte) 0x80, (byte) 0x80, 0x10, 0, 0}};
+    for (byte[] bomb : bombs) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IWorkGenerator.writeChunkHeader(out, 0, bomb.length);
+      out.write(bomb, 0, bomb.length);
+      final byte[] data = out.toByteArray();
+
+      for (boolean parallel : new boolean[] {false, true}) {
+        try {
+          newDecoder(data, parallel).fill();
+          fail("fill() accepted " + Arrays.toString(bomb));
+        } catch (IOException e) {
+          assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt Snappy chunk"));
+        }
+        try {
+          newDecoder(data, parallel).skip(10);
+          fail("skip() accepted " + Arrays.toString(bomb));
+        } catch (IOException e) {
+          assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt Snappy chunk"));
+        }
+        try (InputStream in =
+            new SnappyNoCRCFramedInputStream(new ByteArrayInputStream(data), true,
+                parallel ? executor : null, 3)) {
+          in.read();
+          fail("read() accepted " + Arrays.toString(bomb));
+        } catch (IOException e) {
+          assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt Snappy chunk"));
+        }
+      }
+    }
+  }
+
+  /**
+   * Padding chunks are never decompressed, but still count towards the budget.
+   */
+  @Test
+  public void testPaddingIsCharged() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] padding = new byte[65535];
+    for (int i = 0; i < 64; i++) {
+      IWorkGenerator.writeChunkHeader(out, 0xfe, padding.length);
+      out.write(padding, 0, padding.length);
+    }
+    out.write(framed, 0, framed.length);
+    final byte[] data = out.toByteArray();
+
+    for (boolean parallel : new boolean[] {false, true}) {
+      final SnappyNoCRCFramedDecoder decoder = newDecoder(data, parallel);
+      decoder.setBudget(new ParseBudget(ParseLimits.NONE
+          .withMaxUncompressedBytes(1024 * 1024)));
+      try {
+        decode(decoder);
+        fail("padding was not charged");
+      } catch (ParseLimitExceededException e) {
+        assertEquals(ParseLimits.Limit.UNCOMPRESSED_BYTES, e.getLimit());
+      }
+
+      // without a budget, padding is skipped
+      assertArrayEquals(expected, decode(newDecoder(data, parallel)));
+    }
+  }
+
+  @Test
+  public void testBudget() throws IOException {
+    for (boolean parallel : new boolean[] {false, true}) {
+      SnappyNoCRCFramedDecoder decoder = newDecoder(framed, parallel);
+      decoder.setBudget(new ParseBudget(ParseLimits.NONE
+          .withMaxUncompressedBytes(expected.length)));
+      assertArrayEquals(expected, decode(decoder));
+
+      decoder = newDecoder(framed, parallel);
+      decoder.setBudget(new ParseBudget(ParseLimits.NONE
+          .withMaxUncompressedBytes(expected.length - 1)));
+      try {
+        decode(decoder);
+        fail("budget was not enforced");
+      } catch (ParseLimitExceededException e) {
+        assertEquals(ParseLimits.Limit.UNCOMPRESSED_BYTES, e.getLimit());
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.IWorkGenerator;
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+
+/**
+ * Checks that text replayed from an {@link ExtractTextCache} equals the text of a parse.
+ */
+public class ExtractTextCacheTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File generate(final DocumentType type) throws IOException {
+    final File file = tmp.newFile("Test" + type.getExtension() + ".zip");
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(new IWorkGenerator().setObjects(10).generate(type, "Test"));
+    }
+    return file;
+  }
+
+  @Test
+  public void testMemoryReplay() throws IOException {
+    final ExtractTextCache cache = new ExtractTextCache(16 * 1024 * 1024);
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setCache(cache);
+
+    int documents = 0;
+    for (DocumentType type : DocumentType.values()) {
+      final File file = generate(type);
+      final List<String> expected =
+          ExtractTextIWAParserTest.extract(new ExtractTextIWAParser(), file, false);
+      assertEquals(expected, ExtractTextIWAParserTest.extract(parser, file, false));
+      assertEquals(expected, ExtractTextIWAParserTest.extract(parser, file, false));
+      assertEquals(expected, ExtractTextIWAParserTest.extract(parser, file, true));
+      documents++;
+      assertEquals(documents, cache.getMissCount());
+      assertEquals(2 * documents, cache.getHitCount());
+    }
+  }
+
+  @Test
+  public void testDiskReplay() throws IOException {
+    final File directory = tmp.newFolder("cache");
+    final File file = generate(DocumentType.KEYNOTE);
+    final List<String> expected =
+        ExtractTextIWAParserTest.extract(new ExtractTextIWAParser(), file, false);
+
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setCache(new ExtractTextCache(0, directory, 16 * 1024 * 1024));
+    assertEquals(expected, ExtractTextIWAParserTest.extract(parser, file, false));
+
+    // a new instance reuses the entries in the directory
+    final ExtractTextCache cache = new ExtractTextCache(0, directory, 16 * 1024 * 1024);
+    assertTrue(cache.getDiskBytes() > 0);
+    parser.setCache(cache);
+    assertEquals(expected, ExtractTextIWAParserTest.extract(parser, file, true));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void testStreamingOrderIsCachedSeparately() throws IOException {
+    final ExtractTextCache cache = new ExtractTextCache(16 * 1024 * 1024);
+    final File file = generate(DocumentType.PAGES);
+
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setCache(cache);
+    ExtractTextIWAParserTest.extract(parser, file, false);
+
+    final ExtractTextIWAParser streaming = new ExtractTextIWAParser();
+    streaming.setStreaming(true);
+    streaming.setCache(cache);
+    ExtractTextIWAParserTest.extract(streaming, file, false);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.IWAMemo;
+import com.evernote.iwana.IWorkGenerator;
+import com.evernote.iwana.IWorkGenerator.DocumentType;
+import com.evernote.iwana.ParseLimitExceededException;
+import com.evernote.iwana.ParseLimits;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Checks that all modes of {@link ExtractTextIWAParser} extract the same text from
+ * generated Keynote, Pages and Numbers documents as a sequential parse, and that they
+ * handle invalid and oversized documents alike.
+ */
+public class ExtractTextIWAParserTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static ExecutorService executor;
+
+  @BeforeClass
+  public static void setUpExecutor() {
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @AfterClass
+  public static void shutDownExecutor() {
+    executor.shutdown();
+  }
+
+  /**
+   * Generates a document of the given type with several Snappy chunks per file.
+   */
+  private File generate(final DocumentType type) throws IOException {
+    return write("Test" + type.getExtension() + ".zip", new IWorkGenerator()
+        .setObjects(20).setChunkSize(4096).generate(type, "Test"));
+  }
+
+  private File write(final String name, final byte[] document) throws IOException {
+    final File file = tmp.newFile(name);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(document);
+    }
+    return file;
+  }
+
+  static List<String> extract(final ExtractTextIWAParser parser, final File file,
+      final boolean fromStream) throws IOException {
+    final List<String> blocks = new ArrayList<>();
+    final ExtractTextCallback callback = new ExtractTextCallback() {
+
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        blocks.add(attrs.getScope() + ": " + text);
+      }
+    };
+    if (fromStream) {
+      try (InputStream in = new FileInputStream(file)) {
+        parser.parse(in, callback);
+      }
+    } else {
+      parser.parse(file, callback);
+    }
+    return blocks;
+  }
+
+  /**
+   * Checks that the given parser extracts the same text as a default parser, from files
+   * and from streams.
+   */
+  private void assertSameText(final ExtractTextIWAParser parser) throws IOException {
+    for (DocumentType type : DocumentType.values()) {
+      final File file = generate(type);
+      final List<String> expected = extract(new ExtractTextIWAParser(), file, false);
+      assertFalse(type.toString(), expected.isEmpty());
+
+      for (boolean fromStream : new boolean[] {false, true}) {
+        assertEquals(type + (fromStream ? " (stream)" : " (file)"), expected,
+            extract(parser, file, fromStream));
+      }
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testParallelFiles() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setExecutor(executor, 3);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testParallelChunks() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setChunkExecutor(executor, 3);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testParallelFilesAndChunks() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setExecutor(executor, 3);
+    parser.setChunkExecutor(executor, 2);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testStreaming() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setStreaming(true);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testLowMemory() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setLowMemory(true);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testLazyObjects() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setLazyObjects(true);
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testOffHeap() throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    // small arenas, so that objects also go to heap arenas and oversized buffers
+    parser.setObjectStoreFactory(ObjectStore.offHeap(256, 2));
+    assertSameText(parser);
+  }
+
+  @Test
+  public void testIWAMemo() throws IOException {
+    final IWAMemo memo = new IWAMemo(64 * 1024 * 1024);
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setIWAMemo(memo);
+    assertSameText(parser);
+    assertTrue(memo.toString(), memo.getHitCount() > 0);
+
+    final ExtractTextIWAParser parallel = new ExtractTextIWAParser();
+    parallel.setIWAMemo(memo);
+    parallel.setExecutor(executor, 3);
+    assertSameText(parallel);
+  }
+
+  /**
+   * Builds a Keynote document with an additional, unreferenced slide whose payload is not
+   * a valid message.
+   */
+  private byte[] generateWithInvalidSlide() throws IOException {
+    final ByteArrayOutputStream archives = new ByteArrayOutputStream();
+    final byte[] payload = {0x0a, 0x7f, 0x01};
+    ArchiveInfo.newBuilder().setIdentifier(777)
+        .addMessageInfos(MessageInfo.newBuilder().setType(5).setLength(payload.length))
+        .build().writeDelimitedTo(archives);
+    archives.write(payload);
+
+    final IWorkGenerator generator = new IWorkGenerator().setObjects(3);
+    final Map<String, byte[]> files = generator.generateIndexFiles(DocumentType.KEYNOTE);
+    files.put("Index/Slide-Invalid.iwa", IWorkGenerator.frame(archives.toByteArray(),
+        4096));
+    return generator.toDocument(DocumentType.KEYNOTE, "Test", files);
+  }
+
+  @Test
+  public void testInvalidObjectFailsDocument() throws IOException {
+    final File file = write("Invalid.key.zip", generateWithInvalidSlide());
+    for (String mode : new String[] {"sequential", "parallel", "low-memory"}) {
+      final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      if ("parallel".equals(mode)) {
+        parser.setExecutor(executor, 3);
+      } else if ("low-memory".equals(mode)) {
+        parser.setLowMemory(true);
+      }
+      try {
+        extract(parser, file, false);
+        fail("Expected InvalidProtocolBufferException (" + mode + ")");
+      } catch (InvalidProtocolBufferException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Files with invalid messages are not memoized, so they fail every time.
+   */
+  @Test
+  public void testIWAMemoInvalidObject() throws IOException {
+    final File file = write("Invalid.key.zip", generateWithInvalidSlide());
+    final IWAMemo memo = new IWAMemo(64 * 1024 * 1024);
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setIWAMemo(memo);
+    for (int i = 0; i < 2; i++) {
+      try {
+        extract(parser, file, false);
+        fail("Expected InvalidProtocolBufferException");
+      } catch (InvalidProtocolBufferException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Padding chunks are never decompressed, but count towards the limit on decompressed
+   * data, whether or not the file has any wanted messages.
+   */
+  @Test
+  public void testPaddingCountsTowardsLimits() throws IOException {
+    final ByteArrayOutputStream padding = new ByteArrayOutputStream();
+    final byte[] chunk = new byte[65535];
+    for (int i = 0; i < 64; i++) {
+      IWorkGenerator.writeChunkHeader(padding, 0xfe, chunk.length);
+      padding.write(chunk);
+    }
+    final IWorkGenerator generator = new IWorkGenerator().setObjects(3);
+    final Map<String, byte[]> files = generator.generateIndexFiles(DocumentType.KEYNOTE);
+    files.put("Index/Padding.iwa", padding.toByteArray());
+    final File file = write("Padding.key.zip",
+        generator.toDocument(DocumentType.KEYNOTE, "Test", files));
+
+    for (boolean parallel : new boolean[] {false, true}) {
+      final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      parser.setLimits(ParseLimits.NONE.withMaxUncompressedBytes(1024 * 1024));
+      if (parallel) {
+        parser.setExecutor(executor, 3);
+      }
+      for (boolean fromStream : new boolean[] {false, true}) {
+        try {
+          extract(parser, file, fromStream);
+          fail("Expected ParseLimitExceededException");
+        } catch (ParseLimitExceededException e) {
+          assertEquals(ParseLimits.Limit.UNCOMPRESSED_BYTES, e.getLimit());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLazyObjectsSkipInvalidObject() throws IOException {
+    final File valid = write("Valid.key.zip",
+        new IWorkGenerator().setObjects(3).generate(DocumentType.KEYNOTE, "Test"));
+    final File invalid = write("Invalid.key.zip", generateWithInvalidSlide());
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setLazyObjects(true);
+    // the invalid slide is never referenced, so it is never parsed
+    assertEquals(extract(new ExtractTextIWAParser(), valid, false),
+        extract(parser, invalid, false));
+  }
+}
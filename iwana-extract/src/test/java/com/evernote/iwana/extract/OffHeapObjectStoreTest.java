@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.evernote.iwana.LazyMessage;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Checks that {@link OffHeapObjectStore} returns every object it stores, wherever it is
+ * kept.
+ */
+public class OffHeapObjectStoreTest {
+  private static StorageArchive storage(final int id, final int length) {
+    final StringBuilder sb = new StringBuilder();
+    while (sb.length() < length) {
+      sb.append(id).append(' ');
+    }
+    return StorageArchive.newBuilder().addText(sb.toString()).build();
+  }
+
+  /**
+   * Stores objects in direct arenas, in heap arenas once the pool is exhausted, and in
+   * buffers of their own if larger than an arena.
+   */
+  @Test
+  public void testPoolExhaustion() throws InvalidProtocolBufferException {
+    final ObjectStore.Factory factory = ObjectStore.offHeap(128, 2);
+    final ObjectStore first = factory.newObjectStore();
+    final ObjectStore second = factory.newObjectStore();
+
+    for (int i = 0; i < 50; i++) {
+      first.put(i, new LazyMessage<>(storage(i, i % 10 == 0 ? 500 : 40)));
+      second.put(i, new LazyMessage<>(storage(1000 + i, 40)));
+    }
+    assertEquals(50, first.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(storage(i, i % 10 == 0 ? 500 : 40), first.get(i));
+      assertEquals(storage(1000 + i, 40), second.get(i));
+    }
+    assertNull(first.get(50));
+
+    // the arenas are returned to the pool, and reused
+    first.close();
+    second.close();
+    final ObjectStore third = factory.newObjectStore();
+    for (int i = 0; i < 10; i++) {
+      third.put(i, new LazyMessage<>(storage(2000 + i, 40)));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals(storage(2000 + i, 40), third.get(i));
+    }
+    third.close();
+  }
+
+  @Test
+  public void testReplace() throws InvalidProtocolBufferException {
+    final ObjectStore store = ObjectStore.offHeap(1024, 1).newObjectStore();
+    store.put(1, new LazyMessage<>(storage(1, 10)));
+    store.put(1, new LazyMessage<>(storage(2, 10)));
+    assertEquals(1, store.size());
+    assertEquals(storage(2, 10), store.get(1));
+    store.close();
+  }
+}
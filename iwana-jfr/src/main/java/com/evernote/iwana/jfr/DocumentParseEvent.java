@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The parsing of one document.
+ */
+@Name(JfrParseListener.DOCUMENT_PARSE)
+@Label("Document Parse")
+@Category("Iwana")
+@Description("Parsing of an iWork document")
+final class DocumentParseEvent extends jdk.jfr.Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("Compressed Bytes")
+  @Description("Snappy-compressed bytes read from all .iwa files")
+  @DataAmount
+  long compressedBytes;
+
+  @Label("Uncompressed Bytes")
+  @DataAmount
+  long uncompressedBytes;
+
+  @Label("Messages")
+  long messages;
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The processing of one {@code .iwa} file, from
+ * {@link com.evernote.iwana.IwanaContext#onBeginParseIWAFile(String)} to
+ * {@link com.evernote.iwana.IwanaContext#onEndParseIWAFile(String)}.
+ */
+@Name(JfrParseListener.IWA_FILE_PARSE)
+@Label("IWA File Parse")
+@Category("Iwana")
+@Description("Processing of an .iwa file within a document")
+final class IwaFileParseEvent extends jdk.jfr.Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("IWA File")
+  String iwaName;
+
+  @Label("Compressed Bytes")
+  @DataAmount
+  long compressedBytes;
+
+  @Label("Uncompressed Bytes")
+  @DataAmount
+  long uncompressedBytes;
+
+  @Label("Messages")
+  long messages;
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import java.time.Duration;
+
+import com.evernote.iwana.ParseListener;
+import com.evernote.iwana.ParseProfile;
+
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+
+/**
+ * A {@link ParseListener} that emits JDK Flight Recorder events, so that parsing can be
+ * correlated with GC, I/O and other activity in continuous recordings:
+ * 
+ * <ul>
+ * <li>{@value #DOCUMENT_PARSE}, for each document;</li>
+ * <li>{@value #IWA_FILE_PARSE}, for each {@code .iwa} file, around
+ * {@link com.evernote.iwana.IwanaContext#onBeginParseIWAFile(String)} and
+ * {@link com.evernote.iwana.IwanaContext#onEndParseIWAFile(String)};</li>
+ * <li>{@value #SNAPPY_CHUNK_DECODE}, for each decompressed Snappy chunk;</li>
+ * <li>{@value #MESSAGE_DISPATCH}, for each message whose handler takes longer than the
+ * event's threshold ({@value #DEFAULT_MESSAGE_THRESHOLD} by default).</li>
+ * </ul>
+ * 
+ * Events carry the document name, the {@code .iwa} file name, the message type and byte
+ * counts, as applicable. Like any JFR event, they are enabled and configured via the
+ * recording's settings (for example, {@code com.evernote.iwana.MessageDispatch#threshold}
+ * in a {@code .jfc} file), or via {@link #enable(Recording, Duration)}.
+ * 
+ * Parse profiles only count bytes and messages, without timing each parsing stage.
+ * Message and chunk events are only created while they are enabled, and message callbacks
+ * are skipped entirely for documents that start while {@value #MESSAGE_DISPATCH} is
+ * disabled.
+ * 
+ * A single instance may be shared by all parsers; state is kept per thread.
+ * 
+ * @see com.evernote.iwana.IwanaParser#setParseListener(ParseListener)
+ */
+public class JfrParseListener extends ParseListener {
+  public static final String DOCUMENT_PARSE = "com.evernote.iwana.DocumentParse";
+  public static final String IWA_FILE_PARSE = "com.evernote.iwana.IwaFileParse";
+  public static final String SNAPPY_CHUNK_DECODE = "com.evernote.iwana.SnappyChunkDecode";
+  public static final String MESSAGE_DISPATCH = "com.evernote.iwana.MessageDispatch";
+
+  /**
+   * The default threshold of {@value #MESSAGE_DISPATCH} events.
+   */
+  public static final String DEFAULT_MESSAGE_THRESHOLD = "10 ms";
+
+  private static final EventType MESSAGE_DISPATCH_TYPE =
+      EventType.getEventType(MessageDispatchEvent.class);
+  private static final EventType SNAPPY_CHUNK_DECODE_TYPE =
+      EventType.getEventType(SnappyChunkDecodeEvent.class);
+
+  private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+  /**
+   * Enables all events of this listener in the given recording.
+   * 
+   * @param recording The recording.
+   * @param messageThreshold The minimum duration of {@value #MESSAGE_DISPATCH} events.
+   */
+  public static void enable(final Recording recording, final Duration messageThreshold) {
+    recording.enable(DOCUMENT_PARSE);
+    recording.enable(IWA_FILE_PARSE);
+    recording.enable(SNAPPY_CHUNK_DECODE);
+    recording.enable(MESSAGE_DISPATCH).withThreshold(messageThreshold);
+  }
+
+  /**
+   * Returns {@code false}: the events only carry byte and message counts, and JFR
+   * measures their durations itself.
+   */
+  @Override
+  protected boolean isTimingStages() {
+    return false;
+  }
+
+  @Override
+  protected boolean isListeningToMessages() {
+    return MESSAGE_DISPATCH_TYPE.isEnabled();
+  }
+
+  @Override
+  public void onBeginDocument(final String documentName) {
+    final State s = state.get();
+    s.documentName = documentName;
+    s.document = new DocumentParseEvent();
+    s.document.begin();
+  }
+
+  @Override
+  public void onEndDocument(final String documentName, final ParseProfile profile) {
+    final State s = state.get();
+    final DocumentParseEvent event = s.document;
+    s.document = null;
+    s.documentName = null;
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.documentName = documentName;
+      event.compressedBytes = profile.getBytes(ParseProfile.Stage.ZIP);
+      event.uncompressedBytes = profile.getBytes(ParseProfile.Stage.SNAPPY);
+      event.messages = profile.getMessageCount();
+      event.commit();
+    }
+  }
+
+  @Override
+  public void onBeginIWAFile(final String name) {
+    final State s = state.get();
+    s.iwaName = name;
+    s.file = new IwaFileParseEvent();
+    s.file.begin();
+  }
+
+  @Override
+  public void onIWAFile(final String name, final ParseProfile profile) {
+    final State s = state.get();
+    final IwaFileParseEvent event = s.file;
+    s.file = null;
+    s.iwaName = null;
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.documentName = s.documentName;
+      event.iwaName = name;
+      event.compressedBytes = profile.getBytes(ParseProfile.Stage.ZIP);
+      event.uncompressedBytes = profile.getBytes(ParseProfile.Stage.SNAPPY);
+      event.messages = profile.getMessageCount();
+      event.commit();
+    }
+  }
+
+  @Override
+  public void onBeginMessage() {
+    if (!MESSAGE_DISPATCH_TYPE.isEnabled()) {
+      return;
+    }
+    final State s = state.get();
+    s.message = new MessageDispatchEvent();
+    s.message.begin();
+  }
+
+  @Override
+  public void onEndMessage(final int type, final int length) {
+    final State s = state.get();
+    final MessageDispatchEvent event = s.message;
+    s.message = null;
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.documentName = s.documentName;
+      event.iwaName = s.iwaName;
+      event.messageType = type;
+      event.messageBytes = length;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void onBeginSnappyChunk() {
+    if (!SNAPPY_CHUNK_DECODE_TYPE.isEnabled()) {
+      return;
+    }
+    final State s = state.get();
+    s.chunk = new SnappyChunkDecodeEvent();
+    s.chunk.begin();
+  }
+
+  @Override
+  public void onEndSnappyChunk(final String documentName, final String iwaName,
+      final int compressedLength, final int uncompressedLength) {
+    final State s = state.get();
+    final SnappyChunkDecodeEvent event = s.chunk;
+    s.chunk = null;
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.documentName = documentName;
+      event.iwaName = iwaName;
+      event.compressedBytes = compressedLength;
+      event.uncompressedBytes = uncompressedLength;
+      event.commit();
+    }
+  }
+
+  /**
+   * The events in progress on one thread.
+   */
+  private static final class State {
+    String documentName;
+    String iwaName;
+    DocumentParseEvent document;
+    IwaFileParseEvent file;
+    MessageDispatchEvent message;
+    SnappyChunkDecodeEvent chunk;
+  }
+}
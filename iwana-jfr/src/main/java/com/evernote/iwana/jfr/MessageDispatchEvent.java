@@ -0,0 +1,47 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The handling of one message by its {@code MessageAction}. Only recorded above the
+ * event's threshold (by default, {@value JfrParseListener#DEFAULT_MESSAGE_THRESHOLD}).
+ */
+@Name(JfrParseListener.MESSAGE_DISPATCH)
+@Label("Message Dispatch")
+@Category("Iwana")
+@Description("Handling of a message that took longer than the threshold")
+@Threshold(JfrParseListener.DEFAULT_MESSAGE_THRESHOLD)
+final class MessageDispatchEvent extends jdk.jfr.Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("IWA File")
+  String iwaName;
+
+  @Label("Message Type")
+  int messageType;
+
+  @Label("Message Size")
+  @DataAmount
+  int messageBytes;
+}
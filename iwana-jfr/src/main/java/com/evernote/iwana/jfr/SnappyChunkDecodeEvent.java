@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014,2015 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The decompression of one compressed Snappy chunk of an {@code .iwa} file.
+ */
+@Name(JfrParseListener.SNAPPY_CHUNK_DECODE)
+@Label("Snappy Chunk Decode")
+@Category("Iwana")
+@Description("Decompression of a Snappy chunk of an .iwa file")
+final class SnappyChunkDecodeEvent extends jdk.jfr.Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("IWA File")
+  String iwaName;
+
+  @Label("Compressed Bytes")
+  @DataAmount
+  int compressedBytes;
+
+  @Label("Uncompressed Bytes")
+  @DataAmount
+  int uncompressedBytes;
+}